@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.graphics.ImageFormat;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams synthetic frames through a native session into a file sink and checks that the JNI
+ * layer allocates nothing per frame once streaming has started.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FfmpegAllocationTest {
+    // CONSTANTS.
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_RATE = 10;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int AUDIO_CHUNK_SAMPLES = 1024;
+    // Enough to get the encoders and the writer past their first packets.
+    private static final int WARMUP_FRAMES = 10;
+    private static final int MEASURED_FRAMES = 100;
+
+    private Ffmpeg ffmpeg;
+    private File output;
+    private final byte[] videoFrame = new byte[WIDTH * HEIGHT * 3 / 2];
+    private final ByteBuffer audioChunk = ByteBuffer.allocateDirect(AUDIO_CHUNK_SAMPLES * 2)
+            .order(ByteOrder.nativeOrder());
+    private long baseNanos;
+    private int framesEncoded;
+    private long samplesEncoded;
+
+    @Before
+    public void setUp() {
+        output = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "allocation-test.flv");
+        ffmpeg = new Ffmpeg();
+        ffmpeg.setAudioInput(SAMPLE_RATE, 1);
+        assertTrue(ffmpeg.init(WIDTH, HEIGHT, ImageFormat.NV21, SAMPLE_RATE, AUDIO_CHUNK_SAMPLES,
+                output.getAbsolutePath()));
+        baseNanos = System.nanoTime();
+    }
+
+    @After
+    public void tearDown() {
+        ffmpeg.shutdown();
+        ffmpeg.release();
+        output.delete();
+    }
+
+    @Test
+    public void allocationCountStaysFlatWhileStreaming() {
+        encodeFrames(WARMUP_FRAMES);
+        long allocations = ffmpeg.getNativeAllocationCount();
+
+        encodeFrames(MEASURED_FRAMES);
+
+        assertEquals("Native allocations while streaming " + MEASURED_FRAMES + " frames",
+                allocations, ffmpeg.getNativeAllocationCount());
+    }
+
+    // Encodes video frames and the audio that goes with them, stamped as if captured in real
+    // time.
+    private void encodeFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            // A moving gradient, so that x264 has something to encode every frame.
+            for (int j = 0; j < videoFrame.length; j++) {
+                videoFrame[j] = (byte) (j + framesEncoded);
+            }
+            long frameNanos = baseNanos + framesEncoded * 1000000000L / FRAME_RATE;
+            assertTrue(ffmpeg.encodeVideoFrame(videoFrame, frameNanos) >= 0);
+            framesEncoded++;
+
+            long nextFrameNanos = baseNanos + framesEncoded * 1000000000L / FRAME_RATE;
+            long chunkNanos;
+            while ((chunkNanos = baseNanos + samplesEncoded * 1000000000L / SAMPLE_RATE)
+                    < nextFrameNanos) {
+                for (int j = 0; j < AUDIO_CHUNK_SAMPLES; j++) {
+                    audioChunk.putShort(j * 2, (short) ((samplesEncoded + j) * 64));
+                }
+                assertTrue(ffmpeg.encodeAudioFrame(audioChunk, AUDIO_CHUNK_SAMPLES,
+                        chunkNanos) >= 0);
+                samplesEncoded += AUDIO_CHUNK_SAMPLES;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.benchmark;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.WindowManager;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import com.google.android.apps.watchme.MainActivity;
+
+/**
+ * Runs {@link StreamingBenchmark} at several resolutions, one after the other, and shows the
+ * results. They are logged as well, backlog curves included. Extras: "host" of the ingest
+ * (default 10.0.2.2, the emulator's host) and "seconds" per resolution (default 20).
+ */
+public class BenchmarkActivity extends Activity {
+    // CONSTANTS.
+    private static final int[][] RESOLUTIONS = {{320, 240}, {640, 480}, {1280, 720}};
+    private static final String DEFAULT_HOST = "10.0.2.2";
+    private static final int DEFAULT_SECONDS = 20;
+
+    private TextView output;
+    private Thread thread;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        output = new TextView(this);
+        ScrollView scrollView = new ScrollView(this);
+        scrollView.addView(output);
+        setContentView(scrollView);
+
+        String host = getIntent().getStringExtra("host");
+        final String ingest = "rtmp://" + (host != null ? host : DEFAULT_HOST) + ":1935/live/";
+        final int seconds = getIntent().getIntExtra("seconds", DEFAULT_SECONDS);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StreamingBenchmark benchmark = new StreamingBenchmark();
+                try {
+                    for (int[] resolution : RESOLUTIONS) {
+                        String url = ingest + "bench-" + resolution[0] + "x" + resolution[1];
+                        show("Streaming to " + url + " for " + seconds + " s");
+                        StreamingBenchmark.Result result = benchmark.run(url, resolution[0],
+                                resolution[1], seconds);
+                        if (result == null) {
+                            show("Could not connect to " + url);
+                            return;
+                        }
+                        show(result.summary());
+                        Log.i(MainActivity.APP_NAME, "Backlog curve " + resolution[0] + "x"
+                                + resolution[1] + ":\n" + result.backlogCurve());
+                    }
+                    show("Done.");
+                } catch (InterruptedException e) {
+                    // Activity went away.
+                }
+            }
+        }, "StreamingBenchmark");
+        thread.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        thread.interrupt();
+        super.onDestroy();
+    }
+
+    private void show(final String line) {
+        Log.i(MainActivity.APP_NAME, "Benchmark: " + line);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                output.append(line + "\n");
+            }
+        });
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.benchmark;
+
+import android.graphics.ImageFormat;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.apps.watchme.Ffmpeg;
+import com.google.android.apps.watchme.MainActivity;
+import com.google.android.apps.watchme.util.BitrateController;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Drives the full encode path, camera and microphone aside, against an RTMP ingest: synthetic
+ * NV21 frames at a fixed frame rate and a synthetic tone go through {@link Ffmpeg} with the
+ * {@link BitrateController} in the loop, as they do while streaming. Meant for the local ingest
+ * in tools/, which reports what arrived on its side.
+ */
+public class StreamingBenchmark {
+    // CONSTANTS.
+    public static final int FRAME_RATE = 30;
+    public static final long SAMPLE_INTERVAL_MILLIS = 250;
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AUDIO_CHUNK_SAMPLES = 1024;
+    // Same bitrate range and watermarks as VideoStreamingConnection.
+    private static final int VIDEO_MIN_BITRATE = 200 * 1000;
+    private static final int VIDEO_START_BITRATE = 800 * 1000;
+    private static final int VIDEO_MAX_BITRATE = 3200 * 1000;
+    private static final int WRITER_LOW_WATERMARK = 8;
+    private static final int WRITER_HIGH_WATERMARK = 64;
+    // Distinct frames cycled through; enough that the encoder can't coast on identical input.
+    private static final int SYNTHETIC_FRAMES = 8;
+
+    /**
+     * Streams for the given time and returns what the sending side saw.
+     *
+     * @param url     - RTMP URL of the ingest.
+     * @param width   - Frame width.
+     * @param height  - Frame height.
+     * @param seconds - How long to stream.
+     */
+    public Result run(String url, int width, int height, int seconds)
+            throws InterruptedException {
+        final Ffmpeg ffmpeg = new Ffmpeg();
+        final Result result = new Result(width, height);
+        try {
+            ffmpeg.setWriterWatermarks(WRITER_LOW_WATERMARK, WRITER_HIGH_WATERMARK);
+            if (!ffmpeg.init(width, height, ImageFormat.NV21, AUDIO_SAMPLE_RATE,
+                    AUDIO_CHUNK_SAMPLES, url)) {
+                Log.e(MainActivity.APP_NAME, "Benchmark could not connect to " + url);
+                return null;
+            }
+            ffmpeg.setVideoBitrate(VIDEO_START_BITRATE);
+            BitrateController bitrateController = new BitrateController(
+                    new BitrateController.Output() {
+                        @Override
+                        public int getQueueDepth() {
+                            return ffmpeg.getWriterQueueDepth(0);
+                        }
+
+                        @Override
+                        public long getBytesSent() {
+                            return ffmpeg.getWriterBytesWritten(0);
+                        }
+
+                        @Override
+                        public void setBitrate(int bitrate) {
+                            ffmpeg.setVideoBitrate(bitrate);
+                        }
+                    }, VIDEO_MIN_BITRATE, VIDEO_MAX_BITRATE, VIDEO_START_BITRATE,
+                    WRITER_LOW_WATERMARK, WRITER_HIGH_WATERMARK);
+
+            AudioSource audio = new AudioSource(ffmpeg);
+            audio.start();
+            try {
+                encodeVideo(ffmpeg, bitrateController, result, seconds * 1000L);
+            } finally {
+                audio.interrupt();
+                audio.join();
+            }
+            result.droppedPackets = ffmpeg.getWriterDroppedPackets(0);
+            result.framesDroppedByController = bitrateController.getFramesDropped();
+            ffmpeg.shutdown();
+        } finally {
+            ffmpeg.release();
+        }
+        return result;
+    }
+
+    private void encodeVideo(Ffmpeg ffmpeg, BitrateController bitrateController, Result result,
+                             long durationMillis) throws InterruptedException {
+        byte[][] frames = createFrames(result.width, result.height);
+        long frameIntervalNanos = 1000L * 1000 * 1000 / FRAME_RATE;
+        long startNanos = System.nanoTime();
+        long startMillis = SystemClock.elapsedRealtime();
+        long nextSampleMillis = startMillis;
+        long encodeNanos = 0;
+        for (int frame = 0; ; frame++) {
+            long nowMillis = SystemClock.elapsedRealtime();
+            if (nowMillis - startMillis >= durationMillis) {
+                break;
+            }
+            if (nowMillis >= nextSampleMillis) {
+                result.samples.add(new Sample(nowMillis - startMillis,
+                        ffmpeg.getWriterQueueDepth(0), ffmpeg.getWriterThroughput(0),
+                        bitrateController.getBitrate()));
+                nextSampleMillis += SAMPLE_INTERVAL_MILLIS;
+            }
+
+            // Frames are due at a fixed rate; one that is late is sent right away, so a slow
+            // encoder shows up as a lower sustained frame rate.
+            long dueNanos = startNanos + frame * frameIntervalNanos;
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            }
+
+            bitrateController.update(nowMillis);
+            if (bitrateController.shouldDropFrame()) {
+                continue;
+            }
+            long before = System.nanoTime();
+            ffmpeg.encodeVideoFrame(frames[frame % SYNTHETIC_FRAMES], before);
+            encodeNanos += System.nanoTime() - before;
+            result.framesEncoded++;
+        }
+        long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+        result.sustainedFps = result.framesEncoded * 1000.0 / elapsedMillis;
+        result.averageEncodeMillis = result.framesEncoded == 0 ? 0
+                : encodeNanos / 1e6 / result.framesEncoded;
+        result.bytesSent = ffmpeg.getWriterBytesWritten(0);
+        result.averageThroughput = result.bytesSent * 8 * 1000 / elapsedMillis;
+        result.finalBitrate = bitrateController.getBitrate();
+    }
+
+    /**
+     * NV21 frames with a moving gradient and some noise on top.
+     */
+    private static byte[][] createFrames(int width, int height) {
+        Random random = new Random(width * 31 + height);
+        byte[][] frames = new byte[SYNTHETIC_FRAMES][];
+        int lumaSize = width * height;
+        for (int f = 0; f < SYNTHETIC_FRAMES; f++) {
+            byte[] frame = new byte[lumaSize * 3 / 2];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    frame[y * width + x] = (byte) (x + y + f * 8 + random.nextInt(16));
+                }
+            }
+            for (int i = lumaSize; i < frame.length; i += 2) {
+                frame[i] = (byte) (128 + ((i + f * 4) & 0x1f));
+                frame[i + 1] = (byte) (128 - ((i / width) & 0x1f));
+            }
+            frames[f] = frame;
+        }
+        return frames;
+    }
+
+    /**
+     * Feeds a 440 Hz tone at real-time pace.
+     */
+    private static final class AudioSource extends Thread {
+        private final Ffmpeg ffmpeg;
+
+        AudioSource(Ffmpeg ffmpeg) {
+            super("BenchmarkAudio");
+            this.ffmpeg = ffmpeg;
+        }
+
+        @Override
+        public void run() {
+            short[] samples = new short[AUDIO_CHUNK_SAMPLES];
+            long chunkNanos = 1000L * 1000 * 1000 * AUDIO_CHUNK_SAMPLES / AUDIO_SAMPLE_RATE;
+            long startNanos = System.nanoTime();
+            long sample = 0;
+            try {
+                for (int chunk = 0; !isInterrupted(); chunk++) {
+                    for (int i = 0; i < samples.length; i++, sample++) {
+                        samples[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * sample
+                                / AUDIO_SAMPLE_RATE));
+                    }
+                    long captureNanos = startNanos + chunk * chunkNanos;
+                    long waitNanos = captureNanos + chunkNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    }
+                    ffmpeg.encodeAudioFrame(samples, samples.length, captureNanos);
+                }
+            } catch (InterruptedException e) {
+                // Benchmark over.
+            }
+        }
+    }
+
+    /**
+     * One point of the backlog curve.
+     */
+    public static class Sample {
+        public final long millis;
+        public final int queueDepth;
+        public final long throughput;
+        public final int bitrate;
+
+        Sample(long millis, int queueDepth, long throughput, int bitrate) {
+            this.millis = millis;
+            this.queueDepth = queueDepth;
+            this.throughput = throughput;
+            this.bitrate = bitrate;
+        }
+    }
+
+    public static class Result {
+        public final int width;
+        public final int height;
+        public final List<Sample> samples = new ArrayList<Sample>();
+        public long framesEncoded;
+        public double sustainedFps;
+        public double averageEncodeMillis;
+        public long bytesSent;
+        // Bits per second over the whole run.
+        public long averageThroughput;
+        public int finalBitrate;
+        public long droppedPackets;
+        public long framesDroppedByController;
+
+        Result(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        public String summary() {
+            return String.format(Locale.US, "%dx%d: %.1f fps sustained (%d frames, %.1f ms"
+                            + " encode), %d kbps sent, final bitrate %d kbps, %d frames shed,"
+                            + " %d packets dropped", width, height, sustainedFps, framesEncoded,
+                    averageEncodeMillis, averageThroughput / 1000, finalBitrate / 1000,
+                    framesDroppedByController, droppedPackets);
+        }
+
+        /**
+         * Backlog curve as CSV: time, queued packets, send throughput and bitrate.
+         */
+        public String backlogCurve() {
+            StringBuilder builder = new StringBuilder(
+                    "ms,queue_depth,throughput_kbps,bitrate_kbps\n");
+            for (Sample sample : samples) {
+                builder.append(sample.millis).append(',').append(sample.queueDepth).append(',')
+                        .append(sample.throughput / 1000).append(',').append(sample.bitrate / 1000)
+                        .append('\n');
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -19,30 +19,77 @@ import android.media.AudioRecord;
 import android.media.MediaRecorder;
 import android.util.Log;
 
+import com.google.android.apps.watchme.util.SpscRing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * @author Ibrahim Ulukaya <ulukaya@google.com>
  *         <p/>
  *         AudioFrameGrabber class which records audio.
+ *         <p/>
+ *         Audio is read into a pool of direct buffers that native code can read in place. A buffer
+ *         taken by the {@link FrameCallback} stays owned by the receiver until it is given back
+ *         with {@link #recycleBuffer}.
  */
 public class AudioFrameGrabber {
+    // CONSTANTS.
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+    private static final int AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    // The encoder is mono, so mono is recorded wherever the device supports it.
+    private static final int[] CHANNEL_CONFIGURATIONS = {
+            AudioFormat.CHANNEL_IN_MONO, AudioFormat.CHANNEL_IN_STEREO};
+    // Rates tried, after the one asked for, on devices that don't record at it. The encoder
+    // resamples.
+    private static final int[] FALLBACK_FREQUENCIES = {44100, 48000, 16000};
+
     private Thread thread;
     private boolean cancel = false;
     private int frequency;
+    private int channelConfiguration;
+    private int channelCount;
+    private int minBufferSize;
     private FrameCallback frameCallback;
+    private final int bufferCount;
+    // Buffers travel back from the receiver to the record thread through this.
+    private SpscRing<CapturedFrame<ByteBuffer>> freeBuffers;
+    private volatile long chunksDropped;
+
+    public AudioFrameGrabber() {
+        this(DEFAULT_BUFFER_COUNT);
+    }
+
+    /**
+     * @param bufferCount - Number of direct buffers to record into.
+     */
+    public AudioFrameGrabber(int bufferCount) {
+        this.bufferCount = bufferCount;
+    }
 
     public void setFrameCallback(FrameCallback callback) {
         frameCallback = callback;
     }
 
     /**
-     * Starts recording.
+     * Starts recording. The device may not record at the given frequency, or in mono; see
+     * {@link #getFrequency} and {@link #getChannelCount} for what it settled on.
      *
      * @param frequency - Recording frequency.
      */
     public void start(int frequency) {
         Log.d(MainActivity.APP_NAME, "start");
 
-        this.frequency = frequency;
+        negotiate(frequency);
+        Log.i(MainActivity.APP_NAME, "Recording " + this.frequency + " Hz, " + channelCount
+                + " channel(s)");
+
+        int bufferSize = minBufferSize;
+        freeBuffers = new SpscRing<CapturedFrame<ByteBuffer>>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.offer(new CapturedFrame<ByteBuffer>(
+                    ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder())));
+        }
 
         cancel = false;
         thread = new Thread(new Runnable() {
@@ -54,30 +101,91 @@ public class AudioFrameGrabber {
         thread.start();
     }
 
+    /**
+     * Picks the first channel configuration and frequency AudioRecord accepts, preferring the
+     * asked-for frequency over mono.
+     */
+    private void negotiate(int frequency) {
+        int[] frequencies = new int[FALLBACK_FREQUENCIES.length + 1];
+        frequencies[0] = frequency;
+        System.arraycopy(FALLBACK_FREQUENCIES, 0, frequencies, 1, FALLBACK_FREQUENCIES.length);
+        for (int candidate : frequencies) {
+            for (int configuration : CHANNEL_CONFIGURATIONS) {
+                int size = AudioRecord.getMinBufferSize(candidate, configuration, AUDIO_ENCODING);
+                if (size > 0) {
+                    this.frequency = candidate;
+                    channelConfiguration = configuration;
+                    channelCount = configuration == AudioFormat.CHANNEL_IN_MONO ? 1 : 2;
+                    minBufferSize = size;
+                    return;
+                }
+            }
+        }
+        throw new IllegalStateException("No supported audio recording configuration");
+    }
+
+    /**
+     * Returns the number of samples, all channels counted, handed to the {@link FrameCallback}
+     * per call, at most. Valid once started.
+     */
+    public int getBufferSizeInSamples() {
+        // Make bufferSize be in samples instead of bytes.
+        return minBufferSize / 2;
+    }
+
+    /**
+     * @return the frequency being recorded at. Valid once started.
+     */
+    public int getFrequency() {
+        return frequency;
+    }
+
+    /**
+     * @return 1 for mono, 2 for interleaved stereo. Valid once started.
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
     /**
      * Records audio and pushes to buffer.
      */
     public void recordThread() {
         Log.d(MainActivity.APP_NAME, "recordThread");
 
-        int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
-        int channelConfiguration = AudioFormat.CHANNEL_CONFIGURATION_STEREO;
-        int bufferSize = AudioRecord.getMinBufferSize(frequency, channelConfiguration, audioEncoding);
+        int bufferSize = minBufferSize;
         Log.i(MainActivity.APP_NAME, "AudioRecord buffer size: " + bufferSize);
 
-        // 16 bit PCM stereo recording was chosen as example.
-        AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, frequency, channelConfiguration,
-                audioEncoding, bufferSize);
+        AudioRecord recorder = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, frequency,
+                channelConfiguration, AUDIO_ENCODING, bufferSize);
         recorder.startRecording();
 
-        // Make bufferSize be in samples instead of bytes.
-        bufferSize /= 2;
-        short[] buffer = new short[bufferSize];
+        // Keep reading into this one when every pooled buffer is with the receiver, so AudioRecord
+        // doesn't overrun; what lands here is dropped.
+        ByteBuffer scratch = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+        CapturedFrame<ByteBuffer> buffer = null;
         while (!cancel) {
-            int bufferReadResult = recorder.read(buffer, 0, bufferSize);
+            if (buffer == null) {
+                buffer = freeBuffers.poll();
+            }
+            ByteBuffer target = buffer != null ? buffer.data : scratch;
+            target.clear();
+            int bufferReadResult = recorder.read(target, target.capacity());
             // Utils.Debug("bufferReadResult: " + bufferReadResult);
             if (bufferReadResult > 0) {
-                frameCallback.handleFrame(buffer, bufferReadResult);
+                if (target == scratch) {
+                    chunksDropped++;
+                    continue;
+                }
+                // read() returns as soon as the chunk is complete, so its last sample was
+                // captured just now.
+                int bytesPerFrame = 2 * channelCount;
+                long durationNanos = bufferReadResult / bytesPerFrame * 1000000000L / frequency;
+                buffer.timestampNanos = System.nanoTime() - durationNanos;
+                target.limit(bufferReadResult);
+                if (frameCallback != null && frameCallback.handleFrame(buffer)) {
+                    buffer = null;
+                }
             } else if (bufferReadResult < 0) {
                 Log.w(MainActivity.APP_NAME, "Error calling recorder.read: " + bufferReadResult);
             }
@@ -101,7 +209,29 @@ public class AudioFrameGrabber {
         }
     }
 
+    /**
+     * Gives a buffer taken by the {@link FrameCallback} back to the pool. Must always be called
+     * from the same thread.
+     */
+    public void recycleBuffer(CapturedFrame<ByteBuffer> audio_data) {
+        freeBuffers.offer(audio_data);
+    }
+
+    /**
+     * @return number of reads dropped because every buffer was still with the receiver.
+     */
+    public long getChunksDropped() {
+        return chunksDropped;
+    }
+
     public interface FrameCallback {
-        void handleFrame(short[] audio_data, int length);
+        /**
+         * @param audio_data - Direct buffer of native-order 16 bit samples, interleaved if
+         *                   {@link #getChannelCount} is 2, from position 0 up to its limit,
+         *                   stamped with the capture time of its first sample.
+         * @return true if the receiver keeps the buffer and will hand it to
+         * {@link #recycleBuffer}, false if the recorder may reuse it right away.
+         */
+        boolean handleFrame(CapturedFrame<ByteBuffer> audio_data);
     }
 }
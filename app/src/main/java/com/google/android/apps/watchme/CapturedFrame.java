@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+/**
+ * A capture buffer together with the time its content was captured. Grabbers allocate one per
+ * pooled buffer up front and restamp it on every capture, so nothing is allocated per frame.
+ */
+public class CapturedFrame<T> {
+    public final T data;
+    // System.nanoTime() when the first sample in data was captured.
+    public long timestampNanos;
+
+    public CapturedFrame(T data) {
+        this.data = data;
+    }
+}
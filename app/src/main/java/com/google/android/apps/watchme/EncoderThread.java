@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.util.Log;
+
+import com.google.android.apps.watchme.util.SpscRing;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread which encodes the frames of one track. The capture thread hands frames over through
+ * {@link #submit}, which never waits for the encoder; frames that don't fit into the queue are
+ * dropped.
+ */
+abstract class EncoderThread<T> extends Thread {
+    private final SpscRing<T> pending;
+    // Only contended while shutdown() runs; written under it, so no frame is queued after.
+    private final Object submitLock = new Object();
+    private volatile boolean running = true;
+
+    EncoderThread(String name, int queueCapacity) {
+        super(name);
+        pending = new SpscRing<T>(queueCapacity);
+    }
+
+    /**
+     * Queues a frame for encoding. Capture thread only.
+     *
+     * @return false if the queue was full or the thread is shutting down, and the frame was not
+     * taken.
+     */
+    public boolean submit(T frame) {
+        synchronized (submitLock) {
+            if (!running || !pending.offer(frame)) {
+                return false;
+            }
+        }
+        LockSupport.unpark(this);
+        return true;
+    }
+
+    /**
+     * Lets the thread encode the frames still queued, then stops it and waits for it to exit.
+     * Frames submitted from then on are refused. Can be called again once it has returned.
+     */
+    public void shutdown() {
+        synchronized (submitLock) {
+            running = false;
+        }
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Log.e(MainActivity.APP_NAME, "", e);
+        }
+
+        T frame;
+        while ((frame = pending.poll()) != null) {
+            discard(frame);
+        }
+    }
+
+    public SpscRing<T> getQueue() {
+        return pending;
+    }
+
+    @Override
+    public void run() {
+        for (; ; ) {
+            // Read before polling, so that once it is false the poll sees every frame queued
+            // before the shutdown.
+            boolean stopping = !running;
+            T frame = pending.poll();
+            if (frame != null) {
+                encode(frame);
+            } else if (stopping) {
+                return;
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    /**
+     * Encodes one frame. Called on this thread.
+     */
+    protected abstract void encode(T frame);
+
+    /**
+     * Called for frames that were queued but never encoded.
+     */
+    protected void discard(T frame) {
+    }
+}
@@ -22,6 +22,7 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
@@ -38,6 +39,7 @@ import com.google.android.gms.plus.Plus;
 import com.google.android.gms.plus.PlusOneButton;
 import com.google.android.gms.plus.model.people.Person;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -49,6 +51,8 @@ public class EventsListFragment extends Fragment implements
         ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
 
     private static final String TAG = EventsListFragment.class.getName();
+    // Ask for the next page once the user scrolls within this many events of the end.
+    private static final int PREFETCH_DISTANCE = 6;
     private Callbacks mCallbacks;
     private ImageLoader mImageLoader;
     private GoogleApiClient mGoogleApiClient;
@@ -77,6 +81,22 @@ public class EventsListFragment extends Fragment implements
         TextView emptyView = (TextView) listView
                 .findViewById(android.R.id.empty);
         mGridView.setEmptyView(emptyView);
+        mGridView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                // Also called after each layout, so pages keep coming until the screen is full.
+                if (mCallbacks != null && totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount
+                        >= totalItemCount - PREFETCH_DISTANCE) {
+                    mCallbacks.onLoadMoreEvents();
+                }
+            }
+        });
         return listView;
     }
 
@@ -91,7 +111,23 @@ public class EventsListFragment extends Fragment implements
             return;
         }
 
-        mGridView.setAdapter(new LiveEventAdapter(events));
+        mGridView.setAdapter(new LiveEventAdapter(new ArrayList<EventData>(events)));
+    }
+
+    /**
+     * Appends the next page of events to the grid.
+     */
+    public void addEvents(List<EventData> events) {
+        if (!isAdded()) {
+            return;
+        }
+
+        LiveEventAdapter adapter = (LiveEventAdapter) mGridView.getAdapter();
+        if (adapter == null) {
+            setEvents(events);
+            return;
+        }
+        adapter.appendEvents(events);
     }
 
     public void setProfileInfo() {
@@ -187,6 +223,12 @@ public class EventsListFragment extends Fragment implements
         public void onEventSelected(EventData event);
 
         public void onConnected(String connectedAccountName);
+
+        /**
+         * Called as the user nears the end of the events shown, to fetch the next page if any.
+         * May be called repeatedly.
+         */
+        public void onLoadMoreEvents();
     }
 
     private class LiveEventAdapter extends BaseAdapter {
@@ -196,6 +238,11 @@ public class EventsListFragment extends Fragment implements
             mEvents = events;
         }
 
+        private void appendEvents(List<EventData> events) {
+            mEvents.addAll(events);
+            notifyDataSetChanged();
+        }
+
         @Override
         public int getCount() {
             return mEvents.size();
@@ -14,24 +14,339 @@
 
 package com.google.android.apps.watchme;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Ibrahim Ulukaya <ulukaya@google.com>
  *         <p/>
  *         FFmpeg class which loads ffmpeg library and exposes its methods.
+ *         <p/>
+ *         Each instance owns one native encode session: its encoders and the sinks they feed.
+ *         Every frame is encoded once and the packets go to each sink, which has its own writer
+ *         thread and queue. Sessions share no state, so several can encode at once. Call
+ *         {@link #release} once done with an instance.
  */
 public class Ffmpeg {
+    // CONSTANTS.
+    // Recorder figures, see getDvrStat. Numbered as DvrStat in ffmpeg-jni.c.
+    public static final int DVR_STAT_BYTES_WRITTEN = 0;
+    // Bits per second, over roughly the last second.
+    public static final int DVR_STAT_THROUGHPUT = 1;
+    public static final int DVR_STAT_SEGMENTS_COMPLETED = 2;
+    // Segments cut before a keyframe came along; the next one doesn't play on its own.
+    public static final int DVR_STAT_FORCED_ROTATIONS = 3;
+    // Time to sync a finished segment to disk, in microseconds.
+    public static final int DVR_STAT_LAST_SYNC_MICROS = 4;
+    public static final int DVR_STAT_MAX_SYNC_MICROS = 5;
+    public static final int DVR_STAT_AVERAGE_SYNC_MICROS = 6;
+    public static final int DVR_STAT_ERRORS = 7;
+    public static final int DVR_STAT_DROPPED_PACKETS = 8;
 
+    // Address of the native session; 0 once released. Callers keep release() from overlapping
+    // any other call; after it, every call throws rather than hand native code a dead session.
+    private volatile long handle;
+    private volatile WriterListener writerListener;
 
     static {
         System.loadLibrary("ffmpeg");
     }
 
-    public static native boolean init(int width, int height, int audio_sample_rate, String rtmpUrl);
+    public Ffmpeg() {
+        handle = nativeCreate(this);
+        if (handle == 0) {
+            throw new OutOfMemoryError("Could not allocate an encode session");
+        }
+    }
+
+    // pixel_format is the ImageFormat of the frames passed to encodeVideoFrame, NV21 or YV12.
+    // audio_buffer_samples is the largest chunk passed to encodeAudioFrame; it sizes the native
+    // PCM ring. urls are the sinks, 1 to 4 RTMP URLs or file paths, all written as FLV; sink
+    // indexes below refer to this array. A sink that fails to open stays closed while the others
+    // stream; init only fails if none opens.
+    // audio_sample_rate is the rate of the AAC stream; captured PCM is converted to it, see
+    // setAudioInput.
+    public boolean init(int width, int height, int pixel_format, int audio_sample_rate,
+                        int audio_buffer_samples, String... urls) {
+        return nativeInit(getHandle(), width, height, pixel_format, audio_sample_rate,
+                audio_buffer_samples, urls);
+    }
+
+    public void shutdown() {
+        nativeShutdown(getHandle());
+    }
+
+    // Frees the native session. The instance can't be used afterwards.
+    public void release() {
+        if (handle != 0) {
+            nativeRelease(handle);
+            handle = 0;
+        }
+    }
+
+    private long getHandle() {
+        long handle = this.handle;
+        if (handle == 0) {
+            throw new IllegalStateException("Ffmpeg session already released");
+        }
+        return handle;
+    }
+
+    // Returns the size of the encoded frame. timestamp_nanos is the System.nanoTime() at which
+    // the frame was captured; packets are timestamped from it. The frame is copied out of the
+    // array before encoding, so the caller can hand it back to the camera right away.
+    public int encodeVideoFrame(byte[] yuv_image, long timestamp_nanos) {
+        return nativeEncodeVideoFrame(getHandle(), yuv_image, timestamp_nanos);
+    }
+
+    // timestamp_nanos is the System.nanoTime() at which the first sample was captured.
+    public int encodeAudioFrame(short[] audio_data, int length, long timestamp_nanos) {
+        return nativeEncodeAudioFrame(getHandle(), audio_data, length, timestamp_nanos);
+    }
+
+    // audio_data must be a direct buffer of native-order 16 bit samples; length is in samples,
+    // all channels counted.
+    public int encodeAudioFrame(ByteBuffer audio_data, int length, long timestamp_nanos) {
+        return nativeEncodeAudioFrame(getHandle(), audio_data, length, timestamp_nanos);
+    }
+
+    // Timestamp of the newest audio packet minus that of the newest video packet, in ms, when
+    // the last video packet was muxed. Positive when audio runs ahead in the stream.
+    public int getAvOffsetMillis() {
+        return nativeGetAvOffsetMillis(getHandle());
+    }
+
+    // Number of times the audio timestamps had to jump to catch up with the capture clock.
+    public long getAudioResyncCount() {
+        return nativeGetAudioResyncCount(getHandle());
+    }
+
+    // Number of times audio had to be dropped because the native PCM ring was full.
+    public long getAudioOverflowCount() {
+        return nativeGetAudioOverflowCount(getHandle());
+    }
+
+    // Number of heap allocations made by the JNI layer since the library was loaded. Should not
+    // change between frames once streaming has started. The sinks' queue slots aren't counted:
+    // each only grows until it has held the largest packet.
+    public long getNativeAllocationCount() {
+        return nativeGetNativeAllocationCount(getHandle());
+    }
+
+    // Changes the video encoder settings without touching the RTMP session. Any argument <= 0
+    // keeps its current value. A bitrate change alone is applied in place; anything else reopens
+    // the video encoder on the same stream and makes the next frame an IDR. In that case no
+    // encodeVideoFrame call may be in flight, and frames must have the new size from then on.
+    // Returns false if the encoder could not be opened with the new settings and was reopened
+    // with the previous ones, size included. Throws IllegalStateException if even that failed;
+    // the session can't encode video any more.
+    public boolean reconfigure(int width, int height, int bitrate, int gop_size, int frame_rate) {
+        return nativeReconfigure(getHandle(), width, height, bitrate, gop_size, frame_rate);
+    }
 
-    public static native void shutdown();
+    // Changes the video bitrate, in bits per second, starting with the next frame encoded. The
+    // VBV buffer follows it. The encoder starts out at 3200 kbps.
+    public void setVideoBitrate(int bitrate) {
+        nativeSetVideoBitrate(getHandle(), bitrate);
+    }
 
-    // Returns the size of the encoded frame.
-    public static native int encodeVideoFrame(byte[] yuv_image);
+    // Describes the PCM passed to encodeAudioFrame: 16 bit samples at sample_rate, channels 1 for
+    // mono or 2 for interleaved stereo. It is downmixed, converted to float and resampled to the
+    // encoder's rate natively. Defaults to mono at the encoder's rate. Call before init.
+    public void setAudioInput(int sample_rate, int channels) {
+        nativeSetAudioInput(getHandle(), sample_rate, channels);
+    }
 
-    public static native int encodeAudioFrame(short[] audio_data, int length);
+    // Makes the next frame encoded an IDR, with the frame pattern carrying on from there. May be
+    // called from any thread.
+    public void requestKeyframe() {
+        nativeRequestKeyframe(getHandle());
+    }
+
+    // Encoded packets are sent by each sink's native writer thread through a bounded queue. The
+    // listener hears when a queue fills up to high and when it drains back down to low.
+    public void setWriterWatermarks(int low, int high) {
+        nativeSetWriterWatermarks(getHandle(), low, high);
+    }
+
+    // Number of URLs passed to init.
+    public int getSinkCount() {
+        return nativeGetSinkCount(getHandle());
+    }
+
+    public boolean isSinkOpen(int sink) {
+        return nativeIsSinkOpen(getHandle(), sink);
+    }
+
+    public int getWriterQueueDepth(int sink) {
+        return nativeGetWriterQueueDepth(getHandle(), sink);
+    }
+
+    public long getWriterBytesWritten(int sink) {
+        return nativeGetWriterBytesWritten(getHandle(), sink);
+    }
+
+    // Packets dropped because the sink's writer queue was full.
+    public long getWriterDroppedPackets(int sink) {
+        return nativeGetWriterDroppedPackets(getHandle(), sink);
+    }
+
+    // Bits per second the sink wrote over roughly the last second.
+    public long getWriterThroughput(int sink) {
+        return nativeGetWriterThroughput(getHandle(), sink);
+    }
+
+    // Network sinks reconnect with backoff when a write fails; packets keep queueing meanwhile.
+    // What doesn't fit the memory queue goes to a spill file of up to maxBytes in directory (null
+    // to keep the backlog in memory only). Once reconnected, a backlog spanning up to
+    // maxCatchupMillis of stream is sent as fast as the connection takes it; an older one is cut
+    // back to its newest keyframe. Call before init.
+    public void setWriterBacklog(String directory, long maxBytes, int maxCatchupMillis) {
+        nativeSetWriterBacklog(getHandle(), directory, maxBytes, maxCatchupMillis);
+    }
+
+    public boolean isSinkConnected(int sink) {
+        return nativeIsSinkConnected(getHandle(), sink);
+    }
+
+    // Bytes of the sink's backlog that were spilled to disk.
+    public long getWriterBacklogBytes(int sink) {
+        return nativeGetWriterBacklogBytes(getHandle(), sink);
+    }
+
+    public long getWriterReconnectCount(int sink) {
+        return nativeGetWriterReconnectCount(getHandle(), sink);
+    }
+
+    // Packets thrown away after reconnects because the backlog was too old to catch up on.
+    public long getWriterTrimmedPackets(int sink) {
+        return nativeGetWriterTrimmedPackets(getHandle(), sink);
+    }
+
+    // Starts recording the stream into a ring of segment files in directory, alongside the
+    // sinks. Once numSegments are on disk the oldest is deleted, so the last
+    // numSegments * segmentBytes of the stream are kept. Segments are named dvr-<sequence>.flv,
+    // begin at a keyframe and play on their own. Returns false if the session isn't encoding,
+    // already records or the files can't be created.
+    public boolean startDvr(String directory, int numSegments, int segmentBytes) {
+        return nativeStartDvr(getHandle(), directory, numSegments, segmentBytes);
+    }
+
+    // Writes out what the recorder has queued and closes the current segment.
+    public void stopDvr() {
+        nativeStopDvr(getHandle());
+    }
+
+    // One of the DVR_STAT_* figures of the running recorder, or 0 when not recording.
+    public long getDvrStat(int stat) {
+        return nativeGetDvrStat(getHandle(), stat);
+    }
+
+    public void setWriterListener(WriterListener listener) {
+        writerListener = listener;
+    }
+
+    // Called from native code on the sink's writer thread.
+    private void onWriterWatermark(int sink, int depth, boolean aboveHighWater) {
+        WriterListener listener = writerListener;
+        if (listener != null) {
+            listener.onWriterBacklog(sink, depth, aboveHighWater);
+        }
+    }
+
+    // Called from native code on the sink's writer thread.
+    private void onSinkConnection(int sink, boolean connected) {
+        WriterListener listener = writerListener;
+        if (listener != null) {
+            listener.onSinkConnectionChanged(sink, connected);
+        }
+    }
+
+    private static native long nativeCreate(Ffmpeg owner);
+
+    private static native void nativeRelease(long handle);
+
+    private static native boolean nativeInit(long handle, int width, int height, int pixel_format,
+                                             int audio_sample_rate, int audio_buffer_samples,
+                                             String[] urls);
+
+    private static native void nativeShutdown(long handle);
+
+    private static native int nativeEncodeVideoFrame(long handle, byte[] yuv_image,
+                                                     long timestamp_nanos);
+
+    private static native int nativeEncodeAudioFrame(long handle, short[] audio_data, int length,
+                                                     long timestamp_nanos);
+
+    private static native int nativeEncodeAudioFrame(long handle, ByteBuffer audio_data,
+                                                     int length, long timestamp_nanos);
+
+    private static native int nativeGetAvOffsetMillis(long handle);
+
+    private static native long nativeGetAudioResyncCount(long handle);
+
+    private static native long nativeGetAudioOverflowCount(long handle);
+
+    private static native long nativeGetNativeAllocationCount(long handle);
+
+    private static native boolean nativeReconfigure(long handle, int width, int height,
+                                                    int bitrate, int gop_size, int frame_rate);
+
+    private static native void nativeSetVideoBitrate(long handle, int bitrate);
+
+    private static native void nativeRequestKeyframe(long handle);
+
+    private static native void nativeSetAudioInput(long handle, int sample_rate, int channels);
+
+    private static native void nativeSetWriterWatermarks(long handle, int low, int high);
+
+    private static native int nativeGetSinkCount(long handle);
+
+    private static native boolean nativeIsSinkOpen(long handle, int sink);
+
+    private static native int nativeGetWriterQueueDepth(long handle, int sink);
+
+    private static native long nativeGetWriterBytesWritten(long handle, int sink);
+
+    private static native long nativeGetWriterDroppedPackets(long handle, int sink);
+
+    private static native long nativeGetWriterThroughput(long handle, int sink);
+
+    private static native void nativeSetWriterBacklog(long handle, String directory,
+                                                      long maxBytes, int maxCatchupMillis);
+
+    private static native boolean nativeIsSinkConnected(long handle, int sink);
+
+    private static native long nativeGetWriterBacklogBytes(long handle, int sink);
+
+    private static native long nativeGetWriterReconnectCount(long handle, int sink);
+
+    private static native long nativeGetWriterTrimmedPackets(long handle, int sink);
+
+    private static native boolean nativeStartDvr(long handle, String directory, int numSegments,
+                                                 int segmentBytes);
+
+    private static native void nativeStopDvr(long handle);
+
+    private static native long nativeGetDvrStat(long handle, int stat);
+
+    public interface WriterListener {
+        /**
+         * Called on the sink's native writer thread; must return quickly.
+         *
+         * @param sink           - Index of the sink in the URLs passed to init.
+         * @param depth          - Packets queued when the watermark was crossed.
+         * @param aboveHighWater - True when the high watermark was reached, false once the queue
+         *                       drained back to the low watermark.
+         */
+        void onWriterBacklog(int sink, int depth, boolean aboveHighWater);
+
+        /**
+         * Called on the sink's native writer thread when its connection drops and again once
+         * it has reconnected.
+         *
+         * @param sink      - Index of the sink in the URLs passed to init.
+         * @param connected - False when a write failed, true once reconnected.
+         */
+        void onSinkConnectionChanged(int sink, boolean connected);
+    }
 }
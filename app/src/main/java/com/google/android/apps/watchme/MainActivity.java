@@ -29,9 +29,11 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
 import android.widget.Button;
+import android.widget.Toast;
 
 import com.android.volley.toolbox.ImageLoader;
 import com.google.android.apps.watchme.util.EventData;
+import com.google.android.apps.watchme.util.LiveEventsCache;
 import com.google.android.apps.watchme.util.NetworkSingleton;
 import com.google.android.apps.watchme.util.Utils;
 import com.google.android.apps.watchme.util.YouTubeApi;
@@ -48,7 +50,6 @@ import com.google.api.services.youtube.YouTube;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.List;
 
 /**
  * @author Ibrahim Ulukaya <ulukaya@google.com>
@@ -58,6 +59,7 @@ import java.util.List;
 public class MainActivity extends Activity implements
         EventsListFragment.Callbacks {
     public static final String ACCOUNT_KEY = "accountName";
+    private static final String STREAM_KEY_PREFIX = "liveStream.";
     public static final String APP_NAME = "WatchMe";
     private static final int REQUEST_GOOGLE_PLAY_SERVICES = 0;
     private static final int REQUEST_GMS_ERROR_DIALOG = 1;
@@ -70,6 +72,15 @@ public class MainActivity extends Activity implements
     private String mChosenAccountName;
     private ImageLoader mImageLoader;
     private EventsListFragment mEventsListFragment;
+    // Paging of the events list: token of the next page, null once all are shown; whether a page
+    // is being fetched; and which load the pages belong to, so pages of a superseded load are
+    // dropped.
+    private String mNextPageToken;
+    private boolean mLoadingEvents;
+    private int mEventsGeneration;
+    // Waits for the stream of the event being started to become active; cancelled if the event
+    // ends first.
+    private StartEventTask mStartEventTask;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -101,7 +112,11 @@ public class MainActivity extends Activity implements
 
         String broadcastId = event.getId();
 
-        new StartEventTask().execute(broadcastId);
+        // The wait for the stream can take up to a minute; the serial executor would hold up
+        // every other task, ending the event included, for as long.
+        mStartEventTask = new StartEventTask();
+        mStartEventTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, broadcastId,
+                event.getBoundStreamId());
 
         Intent intent = new Intent(getApplicationContext(),
                 StreamerActivity.class);
@@ -112,11 +127,33 @@ public class MainActivity extends Activity implements
 
     }
 
-    private void getLiveEvents() {
+    private YouTube buildYouTube() {
+        YouTube.Builder builder = new YouTube.Builder(transport, jsonFactory, credential)
+                .setApplicationName(APP_NAME);
+        // Debug builds can talk to a local fake of the API, see tools/FakeYouTubeApi.
+        if (BuildConfig.YOUTUBE_ROOT_URL != null) {
+            builder.setRootUrl(BuildConfig.YOUTUBE_ROOT_URL);
+        }
+        return builder.build();
+    }
+
+    private void getLiveEvents(boolean revalidate) {
         if (mChosenAccountName == null) {
             return;
         }
-        new GetLiveEventsTask().execute();
+        mEventsGeneration++;
+        mNextPageToken = null;
+        mLoadingEvents = true;
+        new GetLiveEventsTask(null, revalidate, mEventsGeneration).execute();
+    }
+
+    @Override
+    public void onLoadMoreEvents() {
+        if (mLoadingEvents || mNextPageToken == null || mChosenAccountName == null) {
+            return;
+        }
+        mLoadingEvents = true;
+        new GetLiveEventsTask(mNextPageToken, false, mEventsGeneration).execute();
     }
 
     public void createEvent(View view) {
@@ -143,11 +180,14 @@ public class MainActivity extends Activity implements
         sp.edit().putString(ACCOUNT_KEY, mChosenAccountName).apply();
     }
 
-    private void loadData() {
+    /**
+     * @param revalidate - Whether to check with YouTube even if the cached events are fresh.
+     */
+    private void loadData(boolean revalidate) {
         if (mChosenAccountName == null) {
             return;
         }
-        getLiveEvents();
+        getLiveEvents(revalidate);
     }
 
     @Override
@@ -166,7 +206,7 @@ public class MainActivity extends Activity implements
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_refresh:
-                loadData();
+                loadData(true);
                 break;
             case R.id.menu_accounts:
                 chooseAccount();
@@ -210,6 +250,10 @@ public class MainActivity extends Activity implements
                         && data.getExtras() != null) {
                     String broadcastId = data.getStringExtra(YouTubeApi.BROADCAST_ID_KEY);
                     if (broadcastId != null) {
+                        if (mStartEventTask != null) {
+                            mStartEventTask.cancel(true);
+                            mStartEventTask = null;
+                        }
                         new EndEventTask().execute(broadcastId);
                     }
                 }
@@ -232,7 +276,7 @@ public class MainActivity extends Activity implements
     @Override
     public void onConnected(String connectedAccountName) {
         // Make API requests only when the user has successfully signed in.
-        loadData();
+        loadData(false);
     }
 
     public void showGooglePlayServicesAvailabilityErrorDialog(
@@ -288,24 +332,44 @@ public class MainActivity extends Activity implements
         startStreaming(liveBroadcast);
     }
 
+    /**
+     * Fetches one page of events and shows it: the first page replaces the grid, later ones are
+     * appended to it.
+     */
     private class GetLiveEventsTask extends
-            AsyncTask<Void, Void, List<EventData>> {
+            AsyncTask<Void, Void, YouTubeApi.EventPage> {
+        private final String pageToken;
+        private final boolean revalidate;
+        private final int generation;
         private ProgressDialog progressDialog;
 
+        /**
+         * @param pageToken  - Token of the page, or null for the first.
+         * @param revalidate - Whether to check with YouTube even if the page is cached and fresh.
+         * @param generation - mEventsGeneration of the load the page belongs to.
+         */
+        GetLiveEventsTask(String pageToken, boolean revalidate, int generation) {
+            this.pageToken = pageToken;
+            this.revalidate = revalidate;
+            this.generation = generation;
+        }
+
         @Override
         protected void onPreExecute() {
-            progressDialog = ProgressDialog.show(MainActivity.this, null,
-                    getResources().getText(R.string.loadingEvents), true);
+            // Later pages load in the background as the user scrolls.
+            if (pageToken == null) {
+                progressDialog = ProgressDialog.show(MainActivity.this, null,
+                        getResources().getText(R.string.loadingEvents), true);
+            }
         }
 
         @Override
-        protected List<EventData> doInBackground(
+        protected YouTubeApi.EventPage doInBackground(
                 Void... params) {
-            YouTube youtube = new YouTube.Builder(transport, jsonFactory,
-                    credential).setApplicationName(APP_NAME)
-                    .build();
+            YouTube youtube = buildYouTube();
             try {
-                return YouTubeApi.getLiveEvents(youtube);
+                return LiveEventsCache.getInstance().getLiveEventsPage(youtube,
+                        mChosenAccountName, pageToken, revalidate);
             } catch (UserRecoverableAuthIOException e) {
                 startActivityForResult(e.getIntent(), REQUEST_AUTHORIZATION);
             } catch (IOException e) {
@@ -316,20 +380,31 @@ public class MainActivity extends Activity implements
 
         @Override
         protected void onPostExecute(
-                List<EventData> fetchedEvents) {
-            if (fetchedEvents == null) {
+                YouTubeApi.EventPage fetchedPage) {
+            if (progressDialog != null) {
                 progressDialog.dismiss();
+            }
+            if (generation != mEventsGeneration) {
+                return;
+            }
+            mLoadingEvents = false;
+            if (fetchedPage == null) {
                 return;
             }
 
-            mEventsListFragment.setEvents(fetchedEvents);
-            progressDialog.dismiss();
+            if (pageToken == null) {
+                mEventsListFragment.setEvents(fetchedPage.getEvents());
+            } else {
+                mEventsListFragment.addEvents(fetchedPage.getEvents());
+            }
+            mNextPageToken = fetchedPage.getNextPageToken();
         }
     }
 
     private class CreateLiveEventTask extends
-            AsyncTask<Void, Void, List<EventData>> {
+            AsyncTask<Void, Void, Void> {
         private ProgressDialog progressDialog;
+        private boolean failed;
 
         @Override
         protected void onPreExecute() {
@@ -338,38 +413,47 @@ public class MainActivity extends Activity implements
         }
 
         @Override
-        protected List<EventData> doInBackground(
+        protected Void doInBackground(
                 Void... params) {
-            YouTube youtube = new YouTube.Builder(transport, jsonFactory,
-                    credential).setApplicationName(APP_NAME)
-                    .build();
+            YouTube youtube = buildYouTube();
+            // Each account keeps one stream per format, bound to every event it creates.
+            SharedPreferences sp = PreferenceManager
+                    .getDefaultSharedPreferences(MainActivity.this);
+            String streamKey = STREAM_KEY_PREFIX + mChosenAccountName + "."
+                    + YouTubeApi.STREAM_FORMAT;
+            String date = new Date().toString();
             try {
-                String date = new Date().toString();
-                YouTubeApi.createLiveEvent(youtube, "Event - " + date,
-                        "A live streaming event - " + date);
-                return YouTubeApi.getLiveEvents(youtube);
-
+                String streamId = YouTubeApi.createLiveEvent(youtube, "Event - " + date,
+                        "A live streaming event - " + date, sp.getString(streamKey, null));
+                sp.edit().putString(streamKey, streamId).apply();
+                LiveEventsCache.getInstance().invalidate();
             } catch (UserRecoverableAuthIOException e) {
                 startActivityForResult(e.getIntent(), REQUEST_AUTHORIZATION);
             } catch (IOException e) {
                 Log.e(MainActivity.APP_NAME, "", e);
+                failed = true;
             }
             return null;
         }
 
         @Override
-        protected void onPostExecute(
-                List<EventData> fetchedEvents) {
+        protected void onPostExecute(Void param) {
 
             Button buttonCreateEvent = (Button) findViewById(R.id.create_button);
             buttonCreateEvent.setEnabled(true);
 
             progressDialog.dismiss();
+            if (failed) {
+                Toast.makeText(MainActivity.this, R.string.createEventFailed, Toast.LENGTH_LONG)
+                        .show();
+            }
+            getLiveEvents(true);
         }
     }
 
     private class StartEventTask extends AsyncTask<String, Void, Void> {
         private ProgressDialog progressDialog;
+        private boolean streamInactive;
 
         @Override
         protected void onPreExecute() {
@@ -379,13 +463,15 @@ public class MainActivity extends Activity implements
 
         @Override
         protected Void doInBackground(String... params) {
-            YouTube youtube = new YouTube.Builder(transport, jsonFactory,
-                    credential).setApplicationName(APP_NAME)
-                    .build();
+            YouTube youtube = buildYouTube();
             try {
-                YouTubeApi.startEvent(youtube, params[0]);
+                YouTubeApi.startEvent(youtube, params[0], params[1]);
+                LiveEventsCache.getInstance().invalidate();
             } catch (UserRecoverableAuthIOException e) {
                 startActivityForResult(e.getIntent(), REQUEST_AUTHORIZATION);
+            } catch (YouTubeApi.StreamInactiveException e) {
+                Log.e(MainActivity.APP_NAME, "", e);
+                streamInactive = true;
             } catch (IOException e) {
                 Log.e(MainActivity.APP_NAME, "", e);
             }
@@ -395,6 +481,16 @@ public class MainActivity extends Activity implements
         @Override
         protected void onPostExecute(Void param) {
             progressDialog.dismiss();
+            mStartEventTask = null;
+            if (streamInactive) {
+                Toast.makeText(MainActivity.this, R.string.streamNotReceived, Toast.LENGTH_LONG)
+                        .show();
+            }
+        }
+
+        @Override
+        protected void onCancelled(Void param) {
+            progressDialog.dismiss();
         }
 
     }
@@ -410,12 +506,11 @@ public class MainActivity extends Activity implements
 
         @Override
         protected Void doInBackground(String... params) {
-            YouTube youtube = new YouTube.Builder(transport, jsonFactory,
-                    credential).setApplicationName(APP_NAME)
-                    .build();
+            YouTube youtube = buildYouTube();
             try {
                 if (params.length >= 1) {
                     YouTubeApi.endEvent(youtube, params[0]);
+                    LiveEventsCache.getInstance().invalidate();
                 }
             } catch (UserRecoverableAuthIOException e) {
                 startActivityForResult(e.getIntent(), REQUEST_AUTHORIZATION);
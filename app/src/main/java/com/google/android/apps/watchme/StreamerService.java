@@ -23,11 +23,19 @@ import android.content.Intent;
 import android.hardware.Camera;
 import android.hardware.Camera.CameraInfo;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.google.android.apps.watchme.util.StreamingMetrics;
 import com.google.android.apps.watchme.util.Utils;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FilenameFilter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
 /**
  * @author Ibrahim Ulukaya <ulukaya@google.com>
  *         <p/>
@@ -35,10 +43,30 @@ import com.google.android.apps.watchme.util.Utils;
  */
 public class StreamerService extends Service {
     private static int STREAMER_NOTIFICATION_ID = 1001;
+    // Local recording keeps DVR_SEGMENT_COUNT segments of DVR_SEGMENT_BYTES, about ten minutes
+    // at the bitrates the stream runs at.
+    private static final String DVR_DIRECTORY = "dvr";
+    private static final int DVR_SEGMENT_COUNT = 10;
+    private static final int DVR_SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final String BACKLOG_DIRECTORY = "backlog";
+    private static final long NOTIFICATION_REFRESH_MILLIS = 2000;
     private final IBinder binder = new LocalBinder();
     // Member variables.
     private VideoStreamingConnection connection;
     private Camera camera;
+    private Notification.Builder notificationBuilder;
+    private final Handler handler = new Handler();
+    private final Runnable notificationRefresher = new Runnable() {
+        @Override
+        public void run() {
+            StreamingMetrics.Snapshot snapshot = getMetrics();
+            if (snapshot == null) {
+                return;
+            }
+            updateNotification(snapshot.toSummary());
+            handler.postDelayed(this, NOTIFICATION_REFRESH_MILLIS);
+        }
+    };
 
     @Override
     public void onCreate() {
@@ -64,17 +92,27 @@ public class StreamerService extends Service {
         return false;
     }
 
-    public void startStreaming(String streamUrl) {
+    /**
+     * @param streamUrls - Where to stream to, e.g. the primary ingest, a backup ingest and a local
+     *                   file to archive to. The stream is encoded once for all of them.
+     */
+    public void startStreaming(String... streamUrls) {
         Log.d(MainActivity.APP_NAME, "startStreaming");
         showForegroundNotification();
         connection = new VideoStreamingConnection();
+        File backlogDirectory = new File(getCacheDir(), BACKLOG_DIRECTORY);
+        if (backlogDirectory.isDirectory() || backlogDirectory.mkdirs()) {
+            connection.setBacklogDirectory(backlogDirectory);
+        }
         // TODO Pass an actual preview surface.
-        connection.open(streamUrl, camera, null);
+        connection.open(streamUrls, camera, null);
+        handler.postDelayed(notificationRefresher, NOTIFICATION_REFRESH_MILLIS);
     }
 
     public void stopStreaming() {
         Log.d(MainActivity.APP_NAME, "stopStreaming");
 
+        handler.removeCallbacks(notificationRefresher);
         if (connection != null) {
             connection.close();
         }
@@ -82,10 +120,89 @@ public class StreamerService extends Service {
         stopForeground(true);
     }
 
+    /**
+     * Changes the encoder settings of the running stream, see
+     * {@link VideoStreamingInterface#reconfigure}.
+     */
+    public boolean reconfigureStreaming(int width, int height, int bitrate) {
+        Log.d(MainActivity.APP_NAME, "reconfigureStreaming");
+
+        return connection != null && connection.reconfigure(width, height, bitrate, 0, 0);
+    }
+
+    /**
+     * Starts keeping the last minutes of the running stream on disk.
+     *
+     * @return false if not streaming or the recording could not be started.
+     */
+    public boolean startRecording() {
+        Log.d(MainActivity.APP_NAME, "startRecording");
+
+        File directory = getRecordingDirectory();
+        if (connection == null || !(directory.isDirectory() || directory.mkdirs())) {
+            return false;
+        }
+        return connection.startRecording(directory, DVR_SEGMENT_COUNT, DVR_SEGMENT_BYTES);
+    }
+
+    public void stopRecording() {
+        Log.d(MainActivity.APP_NAME, "stopRecording");
+
+        if (connection != null) {
+            connection.stopRecording();
+        }
+    }
+
+    /**
+     * @return recorded segments, oldest first. The newest is still being written while
+     * recording.
+     */
+    public File[] getRecordedSegments() {
+        File[] segments = getRecordingDirectory().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("dvr-") && name.endsWith(".flv");
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        // Names carry a zero-padded sequence number.
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File getRecordingDirectory() {
+        File base = getExternalFilesDir(null);
+        return new File(base != null ? base : getFilesDir(), DVR_DIRECTORY);
+    }
+
     public boolean isStreaming() {
         return (connection != null);
     }
 
+    /**
+     * @return capture, encode and send figures of the running stream, or null if not streaming.
+     */
+    public StreamingMetrics.Snapshot getMetrics() {
+        VideoStreamingConnection connection = this.connection;
+        return connection != null ? connection.getMetrics() : null;
+    }
+
+    /**
+     * Prints the stream metrics, e.g. with
+     * {@code adb shell dumpsys activity service com.google.android.apps.watchme/.StreamerService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        StreamingMetrics.Snapshot snapshot = getMetrics();
+        if (snapshot == null) {
+            writer.println("Not streaming.");
+        } else {
+            writer.print(snapshot.dump());
+        }
+    }
+
     public void releaseCamera() {
         Log.d(MainActivity.APP_NAME, "releaseCamera");
         if (!isStreaming() && camera != null) {
@@ -110,21 +227,38 @@ public class StreamerService extends Service {
         PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
                 notificationIntent, PendingIntent.FLAG_CANCEL_CURRENT);
 
-        Notification notification = new Notification.Builder(getApplicationContext())
+        notificationBuilder = new Notification.Builder(getApplicationContext())
                 .setContentTitle(getText(R.string.activeStreamingLabel))
                 .setContentText(getText(R.string.activeStreamingStatus))
                 .setContentIntent(contentIntent)
                 .setSmallIcon(R.drawable.ic_launcher)
-                .setWhen(System.currentTimeMillis())
-                .build();
+                .setOnlyAlertOnce(true)
+                .setWhen(System.currentTimeMillis());
+
+        notifyManager.notify(STREAMER_NOTIFICATION_ID, notificationBuilder.build());
+    }
 
-        notifyManager.notify(STREAMER_NOTIFICATION_ID, notification);
+    private void updateNotification(CharSequence text) {
+        if (notificationBuilder == null) {
+            return;
+        }
+        NotificationManager notifyManager =
+                (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationBuilder.setContentText(text);
+        notifyManager.notify(STREAMER_NOTIFICATION_ID, notificationBuilder.build());
     }
 
     public class LocalBinder extends Binder {
         StreamerService getService() {
             return StreamerService.this;
         }
+
+        /**
+         * @return metrics of the running stream, or null if not streaming.
+         */
+        public StreamingMetrics.Snapshot getMetricsSnapshot() {
+            return getMetrics();
+        }
     }
 
 }
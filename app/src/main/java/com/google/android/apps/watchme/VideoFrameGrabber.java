@@ -18,15 +18,57 @@ import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.hardware.Camera.Size;
 
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * @author Ibrahim Ulukaya <ulukaya@google.com>
  *         <p/>
  *         VideoFrameGrabber class which grabs video frames to buffer.
+ *         <p/>
+ *         Frames are captured into a fixed pool of preview buffers. A frame handed to the
+ *         {@link FrameCallback} stays owned by the receiver until it is given back with
+ *         {@link #recycleBuffer} or {@link #dropFrame}.
  */
 public class VideoFrameGrabber {
+    // CONSTANTS.
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
     // Member variables
-    private Camera camera;
+    private final int bufferCount;
+    private final DropPolicy dropPolicy;
+    private volatile Camera camera;
     private FrameCallback frameCallback;
+    private int previewFormat;
+    private int frameSize;
+    // Buffers currently queued with the camera, i.e. available to capture into.
+    private final AtomicInteger buffersAtCamera = new AtomicInteger();
+    private final AtomicLong framesCaptured = new AtomicLong();
+    private final AtomicLong framesDelivered = new AtomicLong();
+    private final AtomicLong framesDroppedAtCapture = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong buffersRecycled = new AtomicLong();
+    // Timestamp holder of each preview buffer. Only written in start().
+    private final IdentityHashMap<byte[], CapturedFrame<byte[]>> frames =
+            new IdentityHashMap<byte[], CapturedFrame<byte[]>>();
+
+    public VideoFrameGrabber() {
+        this(DEFAULT_BUFFER_COUNT, DropPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * @param bufferCount - Number of preview buffers to allocate, at least 2.
+     * @param dropPolicy  - What to drop once every buffer but one is in flight.
+     */
+    public VideoFrameGrabber(int bufferCount, DropPolicy dropPolicy) {
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("bufferCount must be at least 2: " + bufferCount);
+        }
+        this.bufferCount = bufferCount;
+        this.dropPolicy = dropPolicy;
+    }
 
     public void setFrameCallback(FrameCallback callback) {
         frameCallback = callback;
@@ -39,24 +81,65 @@ public class VideoFrameGrabber {
      * @return preview size.
      */
     public Size start(Camera camera) {
+        return start(camera, StreamerActivity.CAMERA_WIDTH, StreamerActivity.CAMERA_HEIGHT);
+    }
+
+    /**
+     * Starts camera recording to buffer at the given preview size. Changing the size of a
+     * running preview needs the preview stopped first.
+     *
+     * @param camera - Camera to be recorded.
+     * @param width  - Preview width.
+     * @param height - Preview height.
+     * @return preview size the camera settled on.
+     */
+    public Size start(Camera camera, int width, int height) {
         this.camera = camera;
 
         Camera.Parameters params = camera.getParameters();
-        params.setPreviewSize(StreamerActivity.CAMERA_WIDTH, StreamerActivity.CAMERA_HEIGHT);
+        params.setPreviewSize(width, height);
+        // The encoder takes planar YUV. YV12 can be passed to it as is, while NV21 (which every
+        // camera supports) needs its chroma deinterleaved first.
+        List<Integer> formats = params.getSupportedPreviewFormats();
+        if (formats != null && formats.contains(ImageFormat.YV12)) {
+            params.setPreviewFormat(ImageFormat.YV12);
+        } else {
+            params.setPreviewFormat(ImageFormat.NV21);
+        }
         camera.setParameters(params);
 
         Size previewSize = params.getPreviewSize();
-        int bufferSize = previewSize.width * previewSize.height * ImageFormat.getBitsPerPixel(
-                params.getPreviewFormat());
-        camera.addCallbackBuffer(new byte[bufferSize]);
+        previewFormat = params.getPreviewFormat();
+        frameSize = getFrameSize(previewFormat, previewSize.width, previewSize.height);
+        buffersAtCamera.set(0);
+        frames.clear();
+        for (int i = 0; i < bufferCount; i++) {
+            byte[] buffer = new byte[frameSize];
+            frames.put(buffer, new CapturedFrame<byte[]>(buffer));
+            camera.addCallbackBuffer(buffer);
+            buffersAtCamera.incrementAndGet();
+        }
 
         camera.setPreviewCallbackWithBuffer(new Camera.PreviewCallback() {
             @Override
             public void onPreviewFrame(byte[] yuv_image, Camera camera) {
-                if (frameCallback != null) {
-                    frameCallback.handleFrame(yuv_image);
+                // The preview callback carries no timestamp; this is as close to the sensor as
+                // it gets.
+                long timestampNanos = System.nanoTime();
+                int remaining = buffersAtCamera.decrementAndGet();
+                framesCaptured.incrementAndGet();
+                if (frameCallback == null) {
+                    recycleBuffer(yuv_image);
+                } else if (remaining == 0 && dropPolicy == DropPolicy.DROP_NEWEST) {
+                    // Keep one buffer with the camera at all times so it never drops silently.
+                    framesDroppedAtCapture.incrementAndGet();
+                    dropFrame(yuv_image);
+                } else {
+                    framesDelivered.incrementAndGet();
+                    CapturedFrame<byte[]> frame = frames.get(yuv_image);
+                    frame.timestampNanos = timestampNanos;
+                    frameCallback.handleFrame(frame);
                 }
-                camera.addCallbackBuffer(yuv_image);
             }
         });
 
@@ -68,7 +151,101 @@ public class VideoFrameGrabber {
         camera = null;
     }
 
+    /**
+     * Gives a delivered frame back to the camera. May be called from any thread.
+     */
+    public void recycleBuffer(byte[] yuv_image) {
+        Camera camera = this.camera;
+        if (camera != null && yuv_image.length == frameSize) {
+            camera.addCallbackBuffer(yuv_image);
+            buffersAtCamera.incrementAndGet();
+        }
+        buffersRecycled.incrementAndGet();
+    }
+
+    /**
+     * Gives a frame back to the camera without it having been encoded.
+     */
+    public void dropFrame(byte[] yuv_image) {
+        framesDropped.incrementAndGet();
+        recycleBuffer(yuv_image);
+    }
+
+    /**
+     * With {@link DropPolicy#DROP_OLDEST}, returns true while the camera has no buffer left to
+     * capture into. The receiver should then drop its oldest queued frame instead of encoding it.
+     */
+    public boolean shouldDropOldest() {
+        return dropPolicy == DropPolicy.DROP_OLDEST && buffersAtCamera.get() <= 0;
+    }
+
+    /**
+     * Returns the size in bytes of one preview frame.
+     */
+    static int getFrameSize(int format, int width, int height) {
+        if (format == ImageFormat.YV12) {
+            // Rows of each plane are padded to 16 bytes.
+            int yStride = (width + 15) / 16 * 16;
+            int uvStride = (yStride / 2 + 15) / 16 * 16;
+            return yStride * height + uvStride * height;
+        }
+        // getBitsPerPixel() is in bits; the camera wants the buffer size in bytes.
+        return width * height * ImageFormat.getBitsPerPixel(format) / 8;
+    }
+
+    /**
+     * @return the negotiated preview format, an {@link ImageFormat} constant.
+     */
+    public int getPreviewFormat() {
+        return previewFormat;
+    }
+
+    public int getBufferCount() {
+        return bufferCount;
+    }
+
+    /**
+     * @return frames the camera delivered, whether they were passed on or not.
+     */
+    public long getFramesCaptured() {
+        return framesCaptured.get();
+    }
+
+    public long getFramesDelivered() {
+        return framesDelivered.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * @return frames given back to the camera right away because every other buffer was in
+     * flight; part of {@link #getFramesDropped}.
+     */
+    public long getFramesDroppedAtCapture() {
+        return framesDroppedAtCapture.get();
+    }
+
+    public long getBuffersRecycled() {
+        return buffersRecycled.get();
+    }
+
+    /**
+     * What to do when all but the last preview buffer are waiting to be encoded.
+     */
+    public enum DropPolicy {
+        // Hand the new frame straight back to the camera; queued frames are kept.
+        DROP_NEWEST,
+        // Deliver the new frame; the receiver drops its oldest queued frame instead.
+        DROP_OLDEST
+    }
+
     public interface FrameCallback {
-        void handleFrame(byte[] yuv_image);
+        /**
+         * @param frame - Preview buffer stamped with its capture time. Give frame.data back with
+         *              {@link #recycleBuffer} or {@link #dropFrame}.
+         */
+        void handleFrame(CapturedFrame<byte[]> frame);
     }
 }
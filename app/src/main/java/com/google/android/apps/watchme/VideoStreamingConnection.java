@@ -16,74 +16,530 @@ package com.google.android.apps.watchme;
 
 import android.hardware.Camera;
 import android.hardware.Camera.Size;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
+import com.google.android.apps.watchme.util.BitrateController;
+import com.google.android.apps.watchme.util.FrameDropPolicy;
+import com.google.android.apps.watchme.util.StreamingMetrics;
+import com.google.android.apps.watchme.util.StreamingMetrics.DropReason;
+import com.google.android.apps.watchme.util.StreamingMetrics.Track;
+
+import java.io.File;
+import java.nio.ByteBuffer;
 
 public class VideoStreamingConnection implements VideoStreamingInterface {
     // CONSTANTS.
     private static final int AUDIO_SAMPLE_RATE = 44100;
+    // The ingest is 240p; start well below what the encoder was opened with and let the
+    // controller find what the uplink sustains.
+    private static final int VIDEO_MIN_BITRATE = 200 * 1000;
+    private static final int VIDEO_START_BITRATE = 800 * 1000;
+    private static final int VIDEO_MAX_BITRATE = 3200 * 1000;
+    // The encoder is opened for this rate, and its rate control counts on frames arriving at it.
+    private static final int VIDEO_FRAME_RATE = 10;
+    // Frames that can't be encoded within this long of being captured are skipped.
+    private static final int VIDEO_MAX_LATENCY_MILLIS = 500;
+    // Packets queued for the network.
+    private static final int WRITER_LOW_WATERMARK = 8;
+    private static final int WRITER_HIGH_WATERMARK = 64;
+    // While an ingest is unreachable, packets beyond the writer queue go to disk, up to this much
+    // per sink. On reconnect, up to BACKLOG_MAX_CATCHUP_MILLIS of stream is sent late; an older
+    // backlog is cut back to its newest keyframe.
+    private static final long BACKLOG_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int BACKLOG_MAX_CATCHUP_MILLIS = 10 * 1000;
 
     // Member variables.
+    private Ffmpeg ffmpeg;
     private VideoFrameGrabber videoFrameGrabber;
     private AudioFrameGrabber audioFrameGrabber;
-    private Object frame_mutex = new Object();
-    private boolean encoding;
+    private volatile EncoderThread<CapturedFrame<byte[]>> videoEncoder;
+    private EncoderThread<CapturedFrame<ByteBuffer>> audioEncoder;
+    private BitrateController bitrateController;
+    private StreamingMetrics metrics;
+    private FrameDropPolicy frameDropPolicy;
+    // Sink whose backlog steers the bitrate: the first one that opened, normally the primary
+    // ingest. The others keep up or drop on their own.
+    private volatile int controlSink;
+    private volatile boolean encoding;
+    private boolean closed;
+    // Set while the video encoder is being restarted; frames go straight back to the camera.
+    private volatile boolean videoPaused;
+    private Camera camera;
+    private File backlogDirectory;
+    private int width;
+    private int height;
+
+    /**
+     * @param directory - Where to spill the backlog of an unreachable ingest; must exist. Without
+     *                  it the backlog is held in memory only. Takes effect on {@link #open}.
+     */
+    public void setBacklogDirectory(File directory) {
+        backlogDirectory = directory;
+    }
 
     @Override
-    public void open(String url, Camera camera, Surface previewSurface) {
+    public void open(String[] urls, Camera camera, Surface previewSurface) {
         Log.d(MainActivity.APP_NAME, "open");
 
-        videoFrameGrabber = new VideoFrameGrabber();
-        videoFrameGrabber.setFrameCallback(new VideoFrameGrabber.FrameCallback() {
+        this.camera = camera;
+        ffmpeg = new Ffmpeg();
+        metrics = new StreamingMetrics();
+        // Every frame reaches the drop policy, which picks the oldest to skip.
+        videoFrameGrabber = new VideoFrameGrabber(VideoFrameGrabber.DEFAULT_BUFFER_COUNT,
+                VideoFrameGrabber.DropPolicy.DROP_OLDEST);
+        frameDropPolicy = new FrameDropPolicy(VIDEO_FRAME_RATE, VIDEO_MAX_LATENCY_MILLIS);
+        bitrateController = new BitrateController(new BitrateController.Output() {
+            @Override
+            public int getQueueDepth() {
+                return ffmpeg.getWriterQueueDepth(controlSink);
+            }
+
+            @Override
+            public long getBytesSent() {
+                return ffmpeg.getWriterBytesWritten(controlSink);
+            }
+
+            @Override
+            public void setBitrate(int bitrate) {
+                Log.i(MainActivity.APP_NAME, "Video bitrate set to " + bitrate / 1000 + " kbps");
+                ffmpeg.setVideoBitrate(bitrate);
+            }
+        }, VIDEO_MIN_BITRATE, VIDEO_MAX_BITRATE, VIDEO_START_BITRATE, WRITER_LOW_WATERMARK,
+                WRITER_HIGH_WATERMARK);
+        videoEncoder = createVideoEncoder();
+
+        audioFrameGrabber = new AudioFrameGrabber();
+        audioEncoder = new EncoderThread<CapturedFrame<ByteBuffer>>("AudioEncoder",
+                AudioFrameGrabber.DEFAULT_BUFFER_COUNT) {
+            @Override
+            protected void encode(CapturedFrame<ByteBuffer> audio_data) {
+                long start = System.nanoTime();
+                int encoded_size = ffmpeg.encodeAudioFrame(audio_data.data,
+                        audio_data.data.limit() / 2, audio_data.timestampNanos);
+                metrics.recordEncode(Track.AUDIO, System.nanoTime() - start, encoded_size);
+                audioFrameGrabber.recycleBuffer(audio_data);
+            }
+
             @Override
-            public void handleFrame(byte[] yuv_image) {
-                if (encoding) {
-                    synchronized (frame_mutex) {
-                        int encoded_size = Ffmpeg.encodeVideoFrame(yuv_image);
+            protected void discard(CapturedFrame<ByteBuffer> audio_data) {
+                audioFrameGrabber.recycleBuffer(audio_data);
+            }
+        };
 
-                        // Logging.Verbose("Encoded video! Size = " + encoded_size);
+        videoFrameGrabber.setFrameCallback(new VideoFrameGrabber.FrameCallback() {
+            @Override
+            public void handleFrame(CapturedFrame<byte[]> frame) {
+                // The preview buffer itself goes to the encoder; it returns to the camera once
+                // encoded.
+                if (!encoding || videoPaused) {
+                    videoFrameGrabber.recycleBuffer(frame.data);
+                } else if (!videoEncoder.submit(frame)) {
+                    // Refused by an encoder that is being shut down, or by a full queue.
+                    if (videoPaused) {
+                        videoFrameGrabber.recycleBuffer(frame.data);
+                    } else {
+                        metrics.recordDroppedFrame(DropReason.ENCODER_QUEUE_FULL);
+                        videoFrameGrabber.dropFrame(frame.data);
                     }
                 }
             }
         });
 
-        audioFrameGrabber = new AudioFrameGrabber();
         audioFrameGrabber.setFrameCallback(new AudioFrameGrabber.FrameCallback() {
             @Override
-            public void handleFrame(short[] audioData, int length) {
-                if (encoding) {
-                    synchronized (frame_mutex) {
-                        int encoded_size = Ffmpeg.encodeAudioFrame(audioData, length);
+            public boolean handleFrame(CapturedFrame<ByteBuffer> audio_data) {
+                return encoding && audioEncoder.submit(audio_data);
+            }
+        });
 
-                        // Logging.Verbose("Encoded audio! Size = " + encoded_size);
-                    }
+        Size previewSize = videoFrameGrabber.start(camera);
+        audioFrameGrabber.start(AUDIO_SAMPLE_RATE);
+
+        width = previewSize.width;
+        height = previewSize.height;
+
+        ffmpeg.setWriterListener(new Ffmpeg.WriterListener() {
+            @Override
+            public void onWriterBacklog(int sink, int depth, boolean aboveHighWater) {
+                if (aboveHighWater) {
+                    Log.w(MainActivity.APP_NAME, "Sink " + sink + " can't keep up, " + depth
+                            + " packets queued");
+                } else {
+                    Log.i(MainActivity.APP_NAME, "Sink " + sink + " caught up, " + depth
+                            + " packets queued");
                 }
             }
-        });
 
-        synchronized (frame_mutex) {
-            Size previewSize = videoFrameGrabber.start(camera);
-            audioFrameGrabber.start(AUDIO_SAMPLE_RATE);
+            @Override
+            public void onSinkConnectionChanged(int sink, boolean connected) {
+                if (connected) {
+                    Log.i(MainActivity.APP_NAME, "Sink " + sink + " reconnected");
+                } else {
+                    Log.w(MainActivity.APP_NAME, "Sink " + sink + " lost its connection,"
+                            + " reconnecting");
+                }
+            }
+        });
 
-            int width = previewSize.width;
-            int height = previewSize.height;
-            encoding = Ffmpeg.init(width, height, AUDIO_SAMPLE_RATE, url);
+        ffmpeg.setWriterWatermarks(WRITER_LOW_WATERMARK, WRITER_HIGH_WATERMARK);
+        ffmpeg.setWriterBacklog(
+                backlogDirectory != null ? backlogDirectory.getAbsolutePath() : null,
+                BACKLOG_MAX_BYTES, BACKLOG_MAX_CATCHUP_MILLIS);
 
-            Log.i(MainActivity.APP_NAME, "Ffmpeg.init() returned " + encoding);
+        videoEncoder.start();
+        audioEncoder.start();
+        int audioBufferSamples = audioFrameGrabber.getBufferSizeInSamples();
+        ffmpeg.setAudioInput(audioFrameGrabber.getFrequency(), audioFrameGrabber.getChannelCount());
+        boolean initialized = ffmpeg.init(width, height, videoFrameGrabber.getPreviewFormat(),
+                AUDIO_SAMPLE_RATE, audioBufferSamples, urls);
+        if (initialized) {
+            for (int i = ffmpeg.getSinkCount() - 1; i >= 0; i--) {
+                if (ffmpeg.isSinkOpen(i)) {
+                    controlSink = i;
+                } else {
+                    Log.e(MainActivity.APP_NAME, "Could not open " + urls[i]);
+                }
+            }
+            ffmpeg.setVideoBitrate(VIDEO_START_BITRATE);
         }
+        encoding = initialized;
+
+        Log.i(MainActivity.APP_NAME, "Ffmpeg.init() returned " + encoding);
     }
 
     @Override
     public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
         Log.i(MainActivity.APP_NAME, "close");
 
         videoFrameGrabber.stop();
         audioFrameGrabber.stop();
 
-        encoding = false;
+        // Let the encoder threads finish their current frame before tearing down the encoder.
+        videoEncoder.shutdown();
+        audioEncoder.shutdown();
+
+        // Every method that reaches into ffmpeg holds the same lock and checks encoding, so none
+        // can run into a released session.
+        synchronized (this) {
+            if (encoding) {
+                encoding = false;
+                ffmpeg.shutdown();
+            }
+            ffmpeg.setWriterListener(null);
+            ffmpeg.release();
+        }
+    }
+
+    @Override
+    public synchronized boolean reconfigure(int width, int height, int bitrate, int gopSize,
+                                            int frameRate) {
+        if (!encoding) {
+            return false;
+        }
+        Log.i(MainActivity.APP_NAME, "reconfigure " + width + "x" + height + ", " + bitrate
+                + " bps, gop " + gopSize + ", " + frameRate + " fps");
+
+        if (bitrate > 0) {
+            bitrateController.setBitrate(bitrate);
+        }
+        boolean resize = width > 0 && height > 0 && (width != this.width || height != this.height);
+        if (!resize && gopSize <= 0 && frameRate <= 0) {
+            // Bitrate alone is changed in place.
+            return true;
+        }
+
+        // The encoder is reopened, so no frame may be in flight. A frame the camera delivers
+        // meanwhile is refused by the stopped encoder thread and goes back to the camera. Audio
+        // and the RTMP session carry on untouched.
+        videoPaused = true;
+        videoEncoder.shutdown();
+        int previousWidth = this.width;
+        int previousHeight = this.height;
+        if (resize) {
+            camera.stopPreview();
+            restartPreview(width, height);
+        }
+        boolean reconfigured;
+        try {
+            reconfigured = ffmpeg.reconfigure(this.width, this.height,
+                    bitrateController.getBitrate(), gopSize, frameRate);
+        } catch (IllegalStateException e) {
+            // Without a video encoder the session is of no use. Stop everything that reaches into
+            // it while holding the lock; close() releases it as usual.
+            Log.e(MainActivity.APP_NAME, "Could not reopen the video encoder, stopping", e);
+            encoding = false;
+            audioEncoder.shutdown();
+            ffmpeg.shutdown();
+            if (resize) {
+                camera.startPreview();
+            }
+            return false;
+        }
+        if (!reconfigured) {
+            // The encoder went back to its previous settings, and the camera has to follow.
+            Log.e(MainActivity.APP_NAME, "Could not apply the new video settings, keeping "
+                    + previousWidth + "x" + previousHeight);
+            if (resize) {
+                restartPreview(previousWidth, previousHeight);
+            }
+        } else if (frameRate > 0) {
+            frameDropPolicy.setTargetFrameRate(frameRate);
+        }
+        // The first frame of the new encoder is an IDR.
+        frameDropPolicy.protectKeyframe();
+        videoEncoder = createVideoEncoder();
+        videoEncoder.start();
+        videoPaused = false;
+        if (resize) {
+            camera.startPreview();
+        }
+        return reconfigured;
+    }
+
+    private void restartPreview(int width, int height) {
+        videoFrameGrabber.stop();
+        Size previewSize = videoFrameGrabber.start(camera, width, height);
+        this.width = previewSize.width;
+        this.height = previewSize.height;
+    }
+
+    /**
+     * Starts keeping the last part of the stream on disk, see {@link Ffmpeg#startDvr}.
+     *
+     * @param directory    - Where the segment files go; must exist.
+     * @param numSegments  - Segments to keep.
+     * @param segmentBytes - Size of each segment.
+     * @return false if not streaming or the recorder could not be started.
+     */
+    public synchronized boolean startRecording(File directory, int numSegments, int segmentBytes) {
+        if (!encoding) {
+            return false;
+        }
+        Log.i(MainActivity.APP_NAME, "Recording to " + directory);
+        if (!ffmpeg.startDvr(directory.getAbsolutePath(), numSegments, segmentBytes)) {
+            return false;
+        }
+        // The recording starts at a keyframe; don't wait out the GOP for one.
+        ffmpeg.requestKeyframe();
+        frameDropPolicy.protectKeyframe();
+        return true;
+    }
+
+    public synchronized void stopRecording() {
         if (encoding) {
-            Ffmpeg.shutdown();
+            ffmpeg.stopDvr();
         }
     }
+
+    /**
+     * @param stat - One of the Ffmpeg.DVR_STAT_* constants.
+     * @return the figure for the running recorder, 0 when not recording.
+     */
+    public synchronized long getRecordingStat(int stat) {
+        return encoding ? ffmpeg.getDvrStat(stat) : 0;
+    }
+
+    private EncoderThread<CapturedFrame<byte[]>> createVideoEncoder() {
+        // Large enough to hold every preview buffer, so handing a frame over never fails.
+        return new EncoderThread<CapturedFrame<byte[]>>("VideoEncoder",
+                videoFrameGrabber.getBufferCount()) {
+            @Override
+            protected void encode(CapturedFrame<byte[]> frame) {
+                byte[] yuv_image = frame.data;
+                bitrateController.update(SystemClock.elapsedRealtime());
+                long start = System.nanoTime();
+                DropReason reason = frameDropPolicy.decide(frame.timestampNanos, start,
+                        getQueue().size(), videoFrameGrabber.shouldDropOldest(),
+                        bitrateController.isCongested());
+                if (reason != null) {
+                    metrics.recordDroppedFrame(reason);
+                    videoFrameGrabber.dropFrame(yuv_image);
+                    return;
+                }
+                int encoded_size = ffmpeg.encodeVideoFrame(yuv_image, frame.timestampNanos);
+                long elapsed = System.nanoTime() - start;
+                frameDropPolicy.recordEncode(elapsed);
+                metrics.recordEncode(Track.VIDEO, elapsed, encoded_size);
+                videoFrameGrabber.recycleBuffer(yuv_image);
+            }
+
+            @Override
+            protected void discard(CapturedFrame<byte[]> frame) {
+                videoFrameGrabber.recycleBuffer(frame.data);
+            }
+        };
+    }
+
+    /**
+     * Reads every pipeline figure at once; see {@link StreamingMetrics}. Rates cover the last
+     * few seconds, whoever else asks for them.
+     *
+     * @return the figures, or null if not streaming.
+     */
+    public synchronized StreamingMetrics.Snapshot getMetrics() {
+        if (!encoding) {
+            return null;
+        }
+        return metrics.snapshot(new StreamingMetrics.Source() {
+            @Override
+            public long getFramesCaptured() {
+                return videoFrameGrabber.getFramesCaptured();
+            }
+
+            @Override
+            public long getFramesDroppedAtCapture() {
+                return videoFrameGrabber.getFramesDroppedAtCapture();
+            }
+
+            @Override
+            public int getVideoQueueDepth() {
+                return VideoStreamingConnection.this.getVideoQueueDepth();
+            }
+
+            @Override
+            public int getAudioQueueDepth() {
+                return VideoStreamingConnection.this.getAudioQueueDepth();
+            }
+
+            @Override
+            public int getSinkCount() {
+                return ffmpeg.getSinkCount();
+            }
+
+            @Override
+            public int getSinkQueueDepth(int sink) {
+                return ffmpeg.getWriterQueueDepth(sink);
+            }
+
+            @Override
+            public long getBytesSent() {
+                long bytes = 0;
+                for (int i = 0; i < ffmpeg.getSinkCount(); i++) {
+                    bytes += ffmpeg.getWriterBytesWritten(i);
+                }
+                return bytes;
+            }
+
+            @Override
+            public long getAudioOverruns() {
+                return getAudioDroppedChunks() + ffmpeg.getAudioOverflowCount();
+            }
+
+            @Override
+            public long getReconnectCount() {
+                long reconnects = 0;
+                for (int i = 0; i < ffmpeg.getSinkCount(); i++) {
+                    reconnects += ffmpeg.getWriterReconnectCount(i);
+                }
+                return reconnects;
+            }
+
+            @Override
+            public int getVideoBitrate() {
+                return bitrateController.getBitrate();
+            }
+        });
+    }
+
+    /**
+     * @return number of video frames waiting for the encoder.
+     */
+    public int getVideoQueueDepth() {
+        return videoEncoder.getQueue().size();
+    }
+
+    /**
+     * @return number of video frames dropped because the encoder fell behind.
+     */
+    public long getVideoDroppedFrames() {
+        return videoFrameGrabber.getFramesDropped();
+    }
+
+    /**
+     * @return current video bitrate, in bits per second.
+     */
+    public int getVideoBitrate() {
+        return bitrateController.getBitrate();
+    }
+
+    /**
+     * @return smoothed network send throughput, in bits per second.
+     */
+    public long getSendThroughput() {
+        return bitrateController.getThroughput();
+    }
+
+    /**
+     * @return number of outputs the stream is written to, open or not.
+     */
+    public synchronized int getSinkCount() {
+        return encoding ? ffmpeg.getSinkCount() : 0;
+    }
+
+    /**
+     * @param sink - Index of the output in the URLs passed to {@link #open}.
+     * @return packets waiting to be written to the output.
+     */
+    public synchronized int getSinkQueueDepth(int sink) {
+        return encoding ? ffmpeg.getWriterQueueDepth(sink) : 0;
+    }
+
+    /**
+     * @param sink - Index of the output in the URLs passed to {@link #open}.
+     * @return bits per second written to the output over roughly the last second.
+     */
+    public synchronized long getSinkThroughput(int sink) {
+        return encoding ? ffmpeg.getWriterThroughput(sink) : 0;
+    }
+
+    /**
+     * @param sink - Index of the output in the URLs passed to {@link #open}.
+     * @return false while the output is reconnecting, or if it never opened.
+     */
+    public synchronized boolean isSinkConnected(int sink) {
+        return encoding && ffmpeg.isSinkOpen(sink) && ffmpeg.isSinkConnected(sink);
+    }
+
+    /**
+     * @param sink - Index of the output in the URLs passed to {@link #open}.
+     * @return bytes of backlog the output holds on disk.
+     */
+    public synchronized long getSinkBacklogBytes(int sink) {
+        return encoding ? ffmpeg.getWriterBacklogBytes(sink) : 0;
+    }
+
+    /**
+     * @param sink - Index of the output in the URLs passed to {@link #open}.
+     * @return packets the output dropped because it fell behind.
+     */
+    public synchronized long getSinkDroppedPackets(int sink) {
+        return encoding ? ffmpeg.getWriterDroppedPackets(sink) : 0;
+    }
+
+    /**
+     * @return how far audio runs ahead of video in the muxed stream, in milliseconds.
+     */
+    public synchronized int getAvOffsetMillis() {
+        return encoding ? ffmpeg.getAvOffsetMillis() : 0;
+    }
+
+    /**
+     * @return number of audio chunks waiting for the encoder.
+     */
+    public int getAudioQueueDepth() {
+        return audioEncoder.getQueue().size();
+    }
+
+    /**
+     * @return number of audio chunks dropped because the encoder fell behind.
+     */
+    public synchronized long getAudioDroppedChunks() {
+        return audioFrameGrabber.getChunksDropped() + audioEncoder.getQueue().getDroppedCount();
+    }
 }
@@ -18,7 +18,29 @@ import android.hardware.Camera;
 import android.view.Surface;
 
 public interface VideoStreamingInterface {
-    void open(String url, Camera camera, Surface previewSurface);
+    /**
+     * Starts capturing and streaming. The stream is encoded once and written to every URL.
+     *
+     * @param urls           - RTMP URLs or local file paths, primary ingest first.
+     * @param camera         - Camera to stream from.
+     * @param previewSurface - Surface to show the preview on.
+     */
+    void open(String[] urls, Camera camera, Surface previewSurface);
 
     void close();
+
+    /**
+     * Changes the encoder settings of an open stream without reconnecting. Any argument <= 0 keeps
+     * its current value.
+     *
+     * @param width     - Frame width in pixels.
+     * @param height    - Frame height in pixels.
+     * @param bitrate   - Video bitrate in bits per second.
+     * @param gopSize   - Frames between keyframes.
+     * @param frameRate - Frames per second the encoder assumes.
+     * @return false if the stream isn't open or the new settings could not be applied. The
+     * stream then carries on with the previous ones, or is closed if the encoder can't be
+     * reopened at all.
+     */
+    boolean reconfigure(int width, int height, int bitrate, int gopSize, int frameRate);
 }
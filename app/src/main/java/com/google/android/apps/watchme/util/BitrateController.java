@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+/**
+ * Adapts the video bitrate to what the uplink sustains.
+ * <p/>
+ * The controller samples the depth of the outgoing packet queue and the bytes actually sent. A
+ * queue that backs up and doesn't drain means the network can't keep up: the bitrate is cut below
+ * the measured send throughput. A queue that stays near empty lets the bitrate climb back up in
+ * small steps. Once the queue reaches the high watermark, every other video frame is dropped as
+ * well until it drains.
+ * <p/>
+ * It has no Android dependencies, so it can be driven against any {@link Output}, for example a
+ * throttled local TCP sink.
+ */
+public class BitrateController {
+    // CONSTANTS.
+    public static final long SAMPLE_INTERVAL_MILLIS = 500;
+    // Multiplicative decrease on congestion, as a fraction of the measured throughput.
+    private static final double DECREASE_FACTOR = 0.85;
+    // Additive increase per sample, as a fraction of the maximum bitrate.
+    private static final double INCREASE_STEP = 0.05;
+    // Samples the queue must stay at or below the low watermark before the bitrate goes up.
+    private static final int STABLE_SAMPLES_BEFORE_INCREASE = 4;
+    // Weight of the newest sample in the throughput average.
+    private static final double THROUGHPUT_SMOOTHING = 0.3;
+
+    private final Output output;
+    private final int minBitrate;
+    private final int maxBitrate;
+    private final int lowWatermark;
+    private final int highWatermark;
+
+    private volatile int bitrate;
+    // 0 until a sample has seen bytes go out.
+    private volatile long throughput;
+    private volatile boolean dropping;
+    private long lastSampleMillis = -1;
+    private long lastBytesSent;
+    private int lastDepth;
+    private int stableSamples;
+    private long frameCounter;
+    private volatile long framesDropped;
+
+    /**
+     * @param output        - Where the bitrate is applied and the queue is sampled.
+     * @param minBitrate    - Lowest bitrate to go down to, in bits per second.
+     * @param maxBitrate    - Highest bitrate to go up to, in bits per second.
+     * @param startBitrate  - Bitrate the encoder was opened with.
+     * @param lowWatermark  - Queue depth, in packets, considered drained.
+     * @param highWatermark - Queue depth, in packets, at which frames start being dropped.
+     */
+    public BitrateController(Output output, int minBitrate, int maxBitrate, int startBitrate,
+                             int lowWatermark, int highWatermark) {
+        this.output = output;
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        bitrate = Math.max(minBitrate, Math.min(maxBitrate, startBitrate));
+    }
+
+    /**
+     * Samples the output and adjusts the bitrate if {@link #SAMPLE_INTERVAL_MILLIS} has passed
+     * since the last sample. Cheap enough to call for every frame.
+     *
+     * @param nowMillis - Current time from a monotonic clock.
+     */
+    public synchronized void update(long nowMillis) {
+        if (lastSampleMillis < 0) {
+            lastSampleMillis = nowMillis;
+            lastBytesSent = output.getBytesSent();
+            return;
+        }
+        long elapsed = nowMillis - lastSampleMillis;
+        if (elapsed < SAMPLE_INTERVAL_MILLIS) {
+            return;
+        }
+
+        long bytesSent = output.getBytesSent();
+        long sampleThroughput = (bytesSent - lastBytesSent) * 8 * 1000 / elapsed;
+        // Nothing sent, at startup or during a stall, says nothing about what the link carries
+        // once it moves, so such a sample neither starts nor drags down the average.
+        if (sampleThroughput > 0) {
+            throughput = throughput == 0 ? sampleThroughput
+                    : (long) (THROUGHPUT_SMOOTHING * sampleThroughput
+                    + (1 - THROUGHPUT_SMOOTHING) * throughput);
+        }
+        lastSampleMillis = nowMillis;
+        lastBytesSent = bytesSent;
+
+        int depth = output.getQueueDepth();
+        int newBitrate = bitrate;
+        if (depth >= highWatermark) {
+            // Severe: go straight below what is getting through and shed frames too.
+            dropping = true;
+            stableSamples = 0;
+            newBitrate = decreasedBitrate();
+        } else if (depth > lowWatermark && depth >= lastDepth) {
+            // Backed up and not draining: drop below the throughput so the queue can empty.
+            dropping = false;
+            stableSamples = 0;
+            newBitrate = decreasedBitrate();
+        } else if (depth <= lowWatermark) {
+            dropping = false;
+            if (++stableSamples >= STABLE_SAMPLES_BEFORE_INCREASE) {
+                newBitrate = bitrate + (int) (maxBitrate * INCREASE_STEP);
+            }
+        }
+        lastDepth = depth;
+
+        newBitrate = Math.max(minBitrate, Math.min(maxBitrate, newBitrate));
+        if (newBitrate != bitrate) {
+            bitrate = newBitrate;
+            output.setBitrate(newBitrate);
+        }
+    }
+
+    /**
+     * @return the bitrate to cut to on congestion: below the measured throughput, or one step
+     * below the current bitrate while there is no measurement yet.
+     */
+    private int decreasedBitrate() {
+        double decreased = bitrate * DECREASE_FACTOR;
+        if (throughput > 0) {
+            decreased = Math.min(decreased, throughput * DECREASE_FACTOR);
+        }
+        return (int) decreased;
+    }
+
+    /**
+     * Jumps straight to a bitrate, clamped to the configured range, and applies it. Adaptation
+     * carries on from there.
+     *
+     * @param bitrate - New video bitrate in bits per second.
+     */
+    public synchronized void setBitrate(int bitrate) {
+        this.bitrate = Math.max(minBitrate, Math.min(maxBitrate, bitrate));
+        stableSamples = 0;
+        dropping = false;
+        output.setBitrate(this.bitrate);
+    }
+
+    /**
+     * Frame-dropping stage: while the queue is above the high watermark, every other frame
+     * should be skipped before it reaches the encoder.
+     */
+    public boolean shouldDropFrame() {
+        if (!dropping) {
+            return false;
+        }
+        if (frameCounter++ % 2 == 0) {
+            framesDropped++;
+            return true;
+        }
+        return false;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * @return true while the queue is above the high watermark and frames should be shed.
+     */
+    public boolean isCongested() {
+        return dropping;
+    }
+
+    /**
+     * @return smoothed send throughput, in bits per second, or 0 before anything was sent.
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    /**
+     * The encoder output the controller steers.
+     */
+    public interface Output {
+        /**
+         * @return packets waiting to be sent.
+         */
+        int getQueueDepth();
+
+        /**
+         * @return total bytes sent so far.
+         */
+        long getBytesSent();
+
+        /**
+         * @param bitrate - New video bitrate in bits per second.
+         */
+        void setBitrate(int bitrate);
+    }
+}
@@ -50,6 +50,14 @@ public class EventData {
         return url;
     }
 
+    /**
+     * @return id of the stream bound to the broadcast, or null if none is.
+     */
+    public String getBoundStreamId() {
+        return mEvent.getContentDetails() != null
+                ? mEvent.getContentDetails().getBoundStreamId() : null;
+    }
+
     public String getIngestionAddress() {
         return mIngestionAddress;
     }
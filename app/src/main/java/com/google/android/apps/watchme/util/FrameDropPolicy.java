@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import com.google.android.apps.watchme.util.StreamingMetrics.DropReason;
+
+/**
+ * Decides which captured video frames the encoder skips, so that glass-to-ingest latency stays
+ * bounded when the encoder or the network can't keep up.
+ * <p/>
+ * The encoder thread asks about every frame it takes off its queue, oldest first, and reports
+ * how long each encode took. In that order, a frame is:
+ * <ol>
+ * <li>always encoded if it is a forced keyframe or the frame right after one, see
+ * {@link #protectKeyframe};</li>
+ * <li>dropped if the camera has run out of buffers and a newer frame is queued behind it;</li>
+ * <li>dropped if, at the recent encode cost, it and the frames queued behind it could not all
+ * be encoded within the latency budget. Dropping the oldest frame first keeps the newest;</li>
+ * <li>dropped if it comes too early for the target frame rate. The rate is lowered to what the
+ * encoder sustains, and halved while the network is congested.</li>
+ * </ol>
+ * The newest frame is never dropped for being late, so the encoder is never starved. Frames are
+ * stamped with their capture time, so dropping leaves A/V sync intact.
+ * <p/>
+ * Not thread-safe; {@link #protectKeyframe} and {@link #setTargetFrameRate} may be called from
+ * any thread.
+ */
+public class FrameDropPolicy {
+    // CONSTANTS.
+    // A frame this much earlier than due for the target rate still counts as on time, to absorb
+    // capture jitter.
+    private static final int EARLY_TOLERANCE_DIVISOR = 4;
+    // Weight of the newest encode in the average encode cost is 1 / COST_SMOOTHING.
+    private static final int COST_SMOOTHING = 8;
+    // A forced keyframe and the frame right after it.
+    private static final int PROTECTED_FRAMES = 2;
+
+    private final long maxLatencyNanos;
+    private volatile long targetIntervalNanos;
+    private volatile boolean keyframeRequested;
+    private int protectedFrames;
+    private long encodeCostNanos;
+    // Capture time from which the next frame is due for the target rate, 0 before the first.
+    private long nextDueNanos;
+
+    /**
+     * @param targetFrameRate  - Highest frame rate to encode at, in frames per second.
+     * @param maxLatencyMillis - How long a frame may take from capture to the end of its encode.
+     */
+    public FrameDropPolicy(int targetFrameRate, int maxLatencyMillis) {
+        setTargetFrameRate(targetFrameRate);
+        maxLatencyNanos = maxLatencyMillis * 1000000L;
+    }
+
+    /**
+     * @param frameRate - New highest frame rate, in frames per second.
+     */
+    public void setTargetFrameRate(int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("frameRate must be positive: " + frameRate);
+        }
+        targetIntervalNanos = 1000000000L / frameRate;
+    }
+
+    /**
+     * Tells the policy that the encoder was asked for a keyframe. The next frame, which becomes
+     * that keyframe, and the one after it are encoded whatever the load: a viewer or sink waiting
+     * on the keyframe should get moving video right away.
+     */
+    public void protectKeyframe() {
+        keyframeRequested = true;
+    }
+
+    /**
+     * Decides about the oldest queued frame. Encoder thread only.
+     *
+     * @param captureNanos - Capture time of the frame.
+     * @param nowNanos     - Current time on the same clock.
+     * @param queued       - Frames queued behind it.
+     * @param starved      - Whether the camera has no buffer left to capture into.
+     * @param congested    - Whether the network is falling behind.
+     * @return why the frame should be dropped, or null to encode it.
+     */
+    public DropReason decide(long captureNanos, long nowNanos, int queued, boolean starved,
+                             boolean congested) {
+        if (keyframeRequested) {
+            keyframeRequested = false;
+            protectedFrames = PROTECTED_FRAMES;
+        }
+        long interval = Math.max(targetIntervalNanos, encodeCostNanos);
+        if (congested) {
+            interval *= 2;
+        }
+        if (protectedFrames > 0) {
+            protectedFrames--;
+            accept(captureNanos, interval);
+            return null;
+        }
+        if (queued > 0) {
+            if (starved) {
+                return DropReason.STALE;
+            }
+            long age = nowNanos - captureNanos;
+            if (age + (queued + 1) * encodeCostNanos > maxLatencyNanos) {
+                return DropReason.DEADLINE;
+            }
+        }
+        if (nextDueNanos != 0 && captureNanos < nextDueNanos - interval / EARLY_TOLERANCE_DIVISOR) {
+            return congested ? DropReason.CONGESTION : DropReason.FRAME_RATE;
+        }
+        accept(captureNanos, interval);
+        return null;
+    }
+
+    /**
+     * Reports how long the encode of an accepted frame took. Encoder thread only.
+     */
+    public void recordEncode(long elapsedNanos) {
+        encodeCostNanos = encodeCostNanos == 0 ? elapsedNanos
+                : encodeCostNanos + (elapsedNanos - encodeCostNanos) / COST_SMOOTHING;
+    }
+
+    /**
+     * @return the average encode cost, in nanoseconds.
+     */
+    public long getEncodeCostNanos() {
+        return encodeCostNanos;
+    }
+
+    private void accept(long captureNanos, long interval) {
+        // After a gap, start over from this frame rather than letting a burst through.
+        if (nextDueNanos == 0 || captureNanos - nextDueNanos > interval) {
+            nextDueNanos = captureNanos + interval;
+        } else {
+            nextDueNanos += interval;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import android.util.Log;
+
+import com.google.android.apps.watchme.MainActivity;
+import com.google.api.services.youtube.YouTube;
+import com.google.api.services.youtube.model.LiveBroadcastListResponse;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the upcoming events of the signed-in account, page by page, so that coming back to the
+ * events list costs next to nothing when they haven't changed.
+ * <p/>
+ * Within EVENTS_TTL_MILLIS of its last fetch a page is served as is. After that, or when a
+ * reload is forced, it is revalidated with the ETag of its last response: YouTube answers 304
+ * without a body, and no quota beyond the request, if nothing changed. When the first page has
+ * changed, the pages after it are dropped, as their tokens and contents may have shifted.
+ * Ingestion addresses don't change for the life of a stream, so they are kept for
+ * INGESTION_TTL_MILLIS and only streams not seen before are looked up.
+ */
+public class LiveEventsCache {
+    // CONSTANTS.
+    private static final long EVENTS_TTL_MILLIS = 30 * 1000;
+    private static final long INGESTION_TTL_MILLIS = 60 * 60 * 1000;
+    // Key of the first page, which has no token.
+    private static final String FIRST_PAGE = "";
+
+    private static LiveEventsCache mInstance;
+
+    // Member variables.
+    private String mAccountName;
+    private final Map<String, PageEntry> mPages = new HashMap<String, PageEntry>();
+    private final Map<String, IngestionEntry> mIngestionAddresses =
+            new HashMap<String, IngestionEntry>();
+
+    private int mHits;
+    private int mRevalidations;
+    private int mMisses;
+    private long mRevalidationNanos;
+
+    public static synchronized LiveEventsCache getInstance() {
+        if (mInstance == null) {
+            mInstance = new LiveEventsCache();
+        }
+        return mInstance;
+    }
+
+    /**
+     * @param accountName - Account the YouTube client is signed in with.
+     * @param pageToken   - Token of the page, or null for the first.
+     * @param revalidate  - Whether to check with YouTube even if the page is fresh, as for an
+     *                    explicit reload.
+     * @return the page of upcoming events, with their ingestion addresses.
+     */
+    public synchronized YouTubeApi.EventPage getLiveEventsPage(YouTube youtube,
+                                                               String accountName,
+                                                               String pageToken,
+                                                               boolean revalidate)
+            throws IOException {
+        if (!accountName.equals(mAccountName)) {
+            clear();
+            mAccountName = accountName;
+        }
+        String key = pageToken != null ? pageToken : FIRST_PAGE;
+        PageEntry entry = mPages.get(key);
+        long now = System.currentTimeMillis();
+        if (entry != null && !revalidate && now - entry.fetchedMillis < EVENTS_TTL_MILLIS) {
+            mHits++;
+            return entry.page;
+        }
+
+        long startNanos = System.nanoTime();
+        LiveBroadcastListResponse response = YouTubeApi.listUpcomingBroadcasts(youtube,
+                pageToken, entry != null ? entry.etag : null);
+        if (response == null) {
+            mRevalidations++;
+            mRevalidationNanos += System.nanoTime() - startNanos;
+            entry.fetchedMillis = now;
+            Log.d(MainActivity.APP_NAME, "Live events unchanged. " + getStatsSummary());
+            return entry.page;
+        }
+
+        List<EventData> events = YouTubeApi.toEventData(response.getItems());
+        YouTubeApi.setIngestionAddresses(events, getIngestionAddresses(youtube,
+                YouTubeApi.getBoundStreamIds(events), now));
+        YouTubeApi.EventPage page = new YouTubeApi.EventPage(events,
+                response.getNextPageToken());
+        mMisses++;
+        if (FIRST_PAGE.equals(key)) {
+            mPages.clear();
+        }
+        mPages.put(key, new PageEntry(page, response.getEtag(), now));
+        Log.d(MainActivity.APP_NAME, "Live events fetched. " + getStatsSummary());
+        return page;
+    }
+
+    /**
+     * Makes the next {@link #getLiveEventsPage} of every page check with YouTube, after an event
+     * was created, started or ended.
+     */
+    public synchronized void invalidate() {
+        for (PageEntry entry : mPages.values()) {
+            entry.fetchedMillis = 0;
+        }
+    }
+
+    public synchronized void clear() {
+        mAccountName = null;
+        mPages.clear();
+        mIngestionAddresses.clear();
+    }
+
+    /**
+     * @return share of {@link #getLiveEventsPage} calls answered without a full fetch, fresh or
+     * revalidated.
+     */
+    public synchronized float getHitRate() {
+        int total = mHits + mRevalidations + mMisses;
+        return total > 0 ? (float) (mHits + mRevalidations) / total : 0;
+    }
+
+    /**
+     * @return average time of a revalidation that found the list unchanged, in milliseconds.
+     */
+    public synchronized float getAverageRevalidationMillis() {
+        return mRevalidations > 0 ? mRevalidationNanos / 1e6f / mRevalidations : 0;
+    }
+
+    public synchronized String getStatsSummary() {
+        return String.format("Cache: %d fresh, %d revalidated (%.0f ms avg), %d fetched, "
+                        + "hit rate %.0f%%.", mHits, mRevalidations,
+                getAverageRevalidationMillis(), mMisses, getHitRate() * 100);
+    }
+
+    private Map<String, String> getIngestionAddresses(YouTube youtube, Set<String> streamIds,
+                                                      long now) throws IOException {
+        Map<String, String> addresses = new HashMap<String, String>();
+        Set<String> missing = new HashSet<String>();
+        for (String streamId : streamIds) {
+            IngestionEntry entry = mIngestionAddresses.get(streamId);
+            if (entry != null && now - entry.fetchedMillis < INGESTION_TTL_MILLIS) {
+                addresses.put(streamId, entry.address);
+            } else {
+                missing.add(streamId);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<String, String> fetched = YouTubeApi.getIngestionAddresses(youtube, missing);
+            for (Map.Entry<String, String> address : fetched.entrySet()) {
+                mIngestionAddresses.put(address.getKey(),
+                        new IngestionEntry(address.getValue(), now));
+            }
+            addresses.putAll(fetched);
+        }
+        return addresses;
+    }
+
+    private static class PageEntry {
+        final YouTubeApi.EventPage page;
+        final String etag;
+        long fetchedMillis;
+
+        PageEntry(YouTubeApi.EventPage page, String etag, long fetchedMillis) {
+            this.page = page;
+            this.etag = etag;
+            this.fetchedMillis = fetchedMillis;
+        }
+    }
+
+    private static class IngestionEntry {
+        final String address;
+        final long fetchedMillis;
+
+        IngestionEntry(String address, long fetchedMillis) {
+            this.address = address;
+            this.fetchedMillis = fetchedMillis;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded single-producer/single-consumer ring.
+ * <p/>
+ * {@link #offer} may only be called from one thread and {@link #poll} from one (other) thread.
+ * Neither call blocks or takes a lock; a full ring rejects the item and counts it as dropped.
+ */
+public class SpscRing<T> {
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    // Next slot to read. Written by the consumer only.
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to write. Written by the producer only.
+    private final AtomicLong tail = new AtomicLong();
+    // Counters below are written by the producer only.
+    private volatile long offeredCount;
+    private volatile long droppedCount;
+    private volatile int maxOccupancy;
+
+    /**
+     * @param capacity - Requested capacity, rounded up to the next power of two.
+     */
+    public SpscRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<T>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an item to the ring. Producer thread only.
+     *
+     * @return false if the ring was full and the item was dropped.
+     */
+    public boolean offer(T item) {
+        offeredCount++;
+        long t = tail.get();
+        int occupancy = (int) (t - head.get());
+        if (occupancy > mask) {
+            droppedCount++;
+            return false;
+        }
+        slots.lazySet((int) t & mask, item);
+        tail.lazySet(t + 1);
+        if (occupancy + 1 > maxOccupancy) {
+            maxOccupancy = occupancy + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest item from the ring. Consumer thread only.
+     *
+     * @return the item, or null if the ring is empty.
+     */
+    public T poll() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        T item = slots.get(index);
+        slots.lazySet(index, null);
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * @return number of items currently queued. Safe to call from any thread.
+     */
+    public int size() {
+        // Read head first so a concurrent poll() can only make the result too large, never
+        // negative.
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getOfferedCount() {
+        return offeredCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the highest occupancy seen since the ring was created.
+     */
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+}
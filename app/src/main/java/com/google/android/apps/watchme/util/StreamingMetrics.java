@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Figures of a running stream, cheap enough to record for every frame.
+ * <p/>
+ * The encoder threads record what only they see: how long each encode took, how many bytes it
+ * produced and why a frame was dropped. Each of those is a relaxed increment, and each track is
+ * recorded by one thread only. Everything that is already counted elsewhere, such as queue
+ * depths, bytes written and reconnects, is read from a {@link Source} when a {@link Snapshot} is
+ * taken, so it costs nothing until somebody looks. Rates cover a trailing window of
+ * {@link #RATE_WINDOW_MILLIS} to twice that, however often and by however many callers
+ * snapshots are taken.
+ * <p/>
+ * It has no Android dependencies, like {@link BitrateController}.
+ */
+public class StreamingMetrics {
+    // CONSTANTS.
+    // Histogram bucket i counts encodes that took [2^i, 2^(i+1)) microseconds; the last bucket
+    // takes everything from about 2 seconds up.
+    static final int LATENCY_BUCKETS = 22;
+    public static final long RATE_WINDOW_MILLIS = 2000;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Track.values().length];
+    private final AtomicLongArray encodedBytes = new AtomicLongArray(Track.values().length);
+    private final AtomicLongArray drops = new AtomicLongArray(DropReason.values().length);
+    private final long startNanos;
+
+    // Counts at the start of the current rate window and of the one before, which rates are
+    // measured from until the current one is RATE_WINDOW_MILLIS old. Guarded by this.
+    private RateMark mark;
+    private RateMark previousMark;
+
+    public StreamingMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        startNanos = System.nanoTime();
+        mark = new RateMark(startNanos, 0, 0, new long[Track.values().length]);
+        previousMark = mark;
+    }
+
+    /**
+     * Records one encode call. Only the encoder thread of the track may call this.
+     *
+     * @param track        - Track that was encoded.
+     * @param elapsedNanos - Time the encode call took.
+     * @param bytes        - Bytes it produced; may be 0 while the encoder buffers.
+     */
+    public void recordEncode(Track track, long elapsedNanos, int bytes) {
+        latencies[track.ordinal()].record(elapsedNanos / 1000);
+        if (bytes > 0) {
+            encodedBytes.getAndAdd(track.ordinal(), bytes);
+        }
+    }
+
+    /**
+     * Records a video frame that was given back without being encoded.
+     */
+    public void recordDroppedFrame(DropReason reason) {
+        drops.incrementAndGet(reason.ordinal());
+    }
+
+    /**
+     * Reads every figure and computes the rates over the last rate window. May be called from
+     * any thread.
+     *
+     * @param source - The pipeline the figures are read from.
+     */
+    public synchronized Snapshot snapshot(Source source) {
+        long now = System.nanoTime();
+        long framesCaptured = source.getFramesCaptured();
+        long bytesSent = source.getBytesSent();
+        long[] bytesEncoded = new long[Track.values().length];
+        for (int i = 0; i < bytesEncoded.length; i++) {
+            bytesEncoded[i] = encodedBytes.get(i);
+        }
+        RateMark base = previousMark;
+        if (now - mark.nanos >= RATE_WINDOW_MILLIS * 1000000) {
+            base = mark;
+            previousMark = mark;
+            mark = new RateMark(now, framesCaptured, bytesSent, bytesEncoded);
+        }
+        double seconds = Math.max(now - base.nanos, 1) / 1e9;
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.uptimeMillis = (now - startNanos) / 1000000;
+        snapshot.framesCaptured = framesCaptured;
+        snapshot.captureFps = (framesCaptured - base.framesCaptured) / seconds;
+        snapshot.bytesSent = bytesSent;
+        snapshot.bytesOutPerSecond = (long) ((bytesSent - base.bytesSent) / seconds);
+        for (Track track : Track.values()) {
+            int i = track.ordinal();
+            snapshot.encodedBytes[i] = bytesEncoded[i];
+            snapshot.encodedBitrate[i] =
+                    (long) ((bytesEncoded[i] - base.encodedBytes[i]) * 8 / seconds);
+            latencies[i].copyTo(snapshot.encodeLatencies[i]);
+        }
+        for (DropReason reason : DropReason.values()) {
+            snapshot.droppedFrames[reason.ordinal()] = drops.get(reason.ordinal());
+        }
+        snapshot.droppedFrames[DropReason.CAPTURE_BACKLOG.ordinal()] +=
+                source.getFramesDroppedAtCapture();
+        snapshot.videoQueueDepth = source.getVideoQueueDepth();
+        snapshot.audioQueueDepth = source.getAudioQueueDepth();
+        snapshot.sinkQueueDepths = new int[source.getSinkCount()];
+        for (int i = 0; i < snapshot.sinkQueueDepths.length; i++) {
+            snapshot.sinkQueueDepths[i] = source.getSinkQueueDepth(i);
+        }
+        snapshot.audioOverruns = source.getAudioOverruns();
+        snapshot.reconnects = source.getReconnectCount();
+        snapshot.videoBitrate = source.getVideoBitrate();
+        return snapshot;
+    }
+
+    public enum Track {
+        VIDEO,
+        AUDIO
+    }
+
+    /**
+     * Why a captured video frame never reached the encoder.
+     */
+    public enum DropReason {
+        // Every preview buffer was waiting for the encoder; the camera got the frame back.
+        CAPTURE_BACKLOG,
+        // The encoder queue was full.
+        ENCODER_QUEUE_FULL,
+        // The frame rate was halved because the network fell behind.
+        CONGESTION,
+        // The camera had no buffer left and a newer frame was waiting, so this one was skipped.
+        STALE,
+        // At the recent encode cost, it could not have been encoded within the latency budget.
+        DEADLINE,
+        // It came too early for the target frame rate.
+        FRAME_RATE
+    }
+
+    /**
+     * Counts owned by other parts of the pipeline.
+     */
+    public interface Source {
+        /**
+         * @return video frames delivered by the camera so far, dropped ones included.
+         */
+        long getFramesCaptured();
+
+        /**
+         * @return frames the grabber gave back to the camera on its own.
+         */
+        long getFramesDroppedAtCapture();
+
+        int getVideoQueueDepth();
+
+        int getAudioQueueDepth();
+
+        int getSinkCount();
+
+        /**
+         * @return packets waiting to be written to the sink.
+         */
+        int getSinkQueueDepth(int sink);
+
+        /**
+         * @return bytes written to all sinks so far.
+         */
+        long getBytesSent();
+
+        /**
+         * @return audio lost because a buffer or queue on its way to the encoder was full.
+         */
+        long getAudioOverruns();
+
+        /**
+         * @return reconnects of all sinks so far.
+         */
+        long getReconnectCount();
+
+        /**
+         * @return video bitrate currently asked of the encoder, in bits per second.
+         */
+        int getVideoBitrate();
+    }
+
+    /**
+     * Counts at the start of a rate window.
+     */
+    private static class RateMark {
+        final long nanos;
+        final long framesCaptured;
+        final long bytesSent;
+        final long[] encodedBytes;
+
+        RateMark(long nanos, long framesCaptured, long bytesSent, long[] encodedBytes) {
+            this.nanos = nanos;
+            this.framesCaptured = framesCaptured;
+            this.bytesSent = bytesSent;
+            this.encodedBytes = encodedBytes;
+        }
+    }
+
+    /**
+     * Log2 histogram of encode times. Written by one thread, read by any.
+     */
+    static class LatencyHistogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKETS);
+        private volatile long maxMicros;
+
+        void record(long micros) {
+            int bucket = micros <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+            buckets.incrementAndGet(Math.min(bucket, LATENCY_BUCKETS - 1));
+            if (micros > maxMicros) {
+                maxMicros = micros;
+            }
+        }
+
+        void copyTo(long[] counts) {
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            counts[LATENCY_BUCKETS] = maxMicros;
+        }
+    }
+
+    /**
+     * Everything at one point in time. Safe to keep and to hand to other threads.
+     */
+    public static class Snapshot {
+        public long uptimeMillis;
+        public long framesCaptured;
+        public double captureFps;
+        public long bytesSent;
+        public long bytesOutPerSecond;
+        // Indexed by Track.ordinal().
+        public final long[] encodedBytes = new long[Track.values().length];
+        public final long[] encodedBitrate = new long[Track.values().length];
+        // Indexed by DropReason.ordinal().
+        public final long[] droppedFrames = new long[DropReason.values().length];
+        public int videoQueueDepth;
+        public int audioQueueDepth;
+        public int[] sinkQueueDepths;
+        public long audioOverruns;
+        public long reconnects;
+        public int videoBitrate;
+        // Histogram buckets of each track, with the maximum in microseconds at the end.
+        private final long[][] encodeLatencies =
+                new long[Track.values().length][LATENCY_BUCKETS + 1];
+
+        public long getEncodeCount(Track track) {
+            long count = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                count += encodeLatencies[track.ordinal()][i];
+            }
+            return count;
+        }
+
+        /**
+         * @param percentile - Between 0 and 100.
+         * @return upper bound of the bucket holding the percentile, in microseconds; 0 if the
+         * track has no encodes yet.
+         */
+        public long getEncodeLatencyMicros(Track track, double percentile) {
+            long[] buckets = encodeLatencies[track.ordinal()];
+            long count = getEncodeCount(track);
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(2L << i, getMaxEncodeLatencyMicros(track));
+                }
+            }
+            return 0;
+        }
+
+        public long getMaxEncodeLatencyMicros(Track track) {
+            return encodeLatencies[track.ordinal()][LATENCY_BUCKETS];
+        }
+
+        public long getDroppedFrames() {
+            long total = 0;
+            for (long dropped : droppedFrames) {
+                total += dropped;
+            }
+            return total;
+        }
+
+        public int getMaxSinkQueueDepth() {
+            int max = 0;
+            for (int depth : sinkQueueDepths) {
+                max = Math.max(max, depth);
+            }
+            return max;
+        }
+
+        /**
+         * @return one line for the streaming notification.
+         */
+        public String toSummary() {
+            return String.format(Locale.US, "%.0f fps, %d kbps out, %d dropped, %d reconnects",
+                    captureFps, bytesOutPerSecond * 8 / 1000, getDroppedFrames(), reconnects);
+        }
+
+        /**
+         * @return every figure, one per line, for bug reports.
+         */
+        public String dump() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US, "uptime: %.1f s%n", uptimeMillis / 1000.0));
+            builder.append(String.format(Locale.US, "capture: %.1f fps, %d frames%n", captureFps,
+                    framesCaptured));
+            for (Track track : Track.values()) {
+                builder.append(String.format(Locale.US,
+                        "%s encode: %d calls, p50 %d us, p90 %d us, p99 %d us, max %d us,"
+                                + " %d kbps encoded%n",
+                        track.name().toLowerCase(Locale.US), getEncodeCount(track),
+                        getEncodeLatencyMicros(track, 50), getEncodeLatencyMicros(track, 90),
+                        getEncodeLatencyMicros(track, 99), getMaxEncodeLatencyMicros(track),
+                        encodedBitrate[track.ordinal()] / 1000));
+            }
+            builder.append(String.format(Locale.US, "video bitrate target: %d kbps%n",
+                    videoBitrate / 1000));
+            builder.append(String.format(Locale.US, "out: %d bytes/s, %d bytes total%n",
+                    bytesOutPerSecond, bytesSent));
+            builder.append("dropped frames:");
+            for (DropReason reason : DropReason.values()) {
+                builder.append(' ').append(reason.name().toLowerCase(Locale.US)).append('=')
+                        .append(droppedFrames[reason.ordinal()]);
+            }
+            builder.append(String.format(Locale.US, "%nqueues: video %d, audio %d, sinks",
+                    videoQueueDepth, audioQueueDepth));
+            for (int depth : sinkQueueDepths) {
+                builder.append(' ').append(depth);
+            }
+            builder.append(String.format(Locale.US, "%naudio overruns: %d%nreconnects: %d%n",
+                    audioOverruns, reconnects));
+            return builder.toString();
+        }
+    }
+}
@@ -14,11 +14,17 @@
 
 package com.google.android.apps.watchme.util;
 
+import android.os.AsyncTask;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.android.apps.watchme.MainActivity;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.util.BackOff;
 import com.google.api.client.util.DateTime;
+import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.services.youtube.YouTube;
 import com.google.api.services.youtube.YouTube.LiveBroadcasts.Transition;
 import com.google.api.services.youtube.model.CdnSettings;
@@ -34,20 +40,59 @@ import com.google.api.services.youtube.model.LiveStreamSnippet;
 import com.google.api.services.youtube.model.MonitorStreamInfo;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class YouTubeApi {
 
     public static final String RTMP_URL_KEY = "rtmpUrl";
     public static final String BROADCAST_ID_KEY = "broadcastId";
+    // Format of the streams created for events, which the encoder's settings are made for.
+    public static final String STREAM_FORMAT = "240p";
     private static final int FUTURE_DATE_OFFSET_MILLIS = 5 * 1000;
+    private static final String STREAM_STATUS_ACTIVE = "active";
+    // Most ids the API takes in one list request.
+    private static final int MAX_IDS_PER_REQUEST = 50;
+    // Events per page of the events list; about a screenful, so the first one shows up quickly.
+    private static final int EVENTS_PAGE_SIZE = 10;
+    // Polling of the stream's status before going live: how soon to ask again, growing by the
+    // multiplier up to the maximum, and when to stop waiting.
+    private static final int STREAM_POLL_INITIAL_MILLIS = 250;
+    private static final double STREAM_POLL_MULTIPLIER = 1.5;
+    private static final int STREAM_POLL_MAX_INTERVAL_MILLIS = 2000;
+    private static final int STREAM_POLL_DEADLINE_MILLIS = 60 * 1000;
 
     public static void createLiveEvent(YouTube youtube, String description,
-                                       String name) {
+                                       String name) throws IOException {
+        createLiveEvent(youtube, description, name, null);
+    }
+
+    /**
+     * Creates a broadcast and binds a stream to it. A stream can feed any number of broadcasts,
+     * one at a time, so the stream of an earlier event is reused when given: that saves its
+     * insert, and the encoder keeps the same ingestion address. Otherwise the broadcast and a new
+     * stream are inserted concurrently, as neither depends on the other. If the event can't be
+     * created, whatever was inserted for it is deleted again before the error is thrown.
+     *
+     * @param streamId - Stream of this account to reuse, in STREAM_FORMAT, or null for a new one.
+     * @return id of the stream bound to the broadcast, to reuse for the next event.
+     */
+    public static String createLiveEvent(YouTube youtube, String description, String name,
+                                         String streamId) throws IOException {
         // We need a date that's in the proper ISO format and is in the future,
         // since the API won't
         // create events that start in the past.
@@ -64,127 +109,367 @@ public class YouTubeApi {
                 "Creating event: name='%s', description='%s', date='%s'.",
                 name, description, date));
 
-        try {
-
-            LiveBroadcastSnippet broadcastSnippet = new LiveBroadcastSnippet();
-            broadcastSnippet.setTitle(name);
-            broadcastSnippet.setScheduledStartTime(new DateTime(futureDate));
-
-            LiveBroadcastContentDetails contentDetails = new LiveBroadcastContentDetails();
-            MonitorStreamInfo monitorStream = new MonitorStreamInfo();
-            monitorStream.setEnableMonitorStream(false);
-            contentDetails.setMonitorStream(monitorStream);
-
-            // Create LiveBroadcastStatus with privacy status.
-            LiveBroadcastStatus status = new LiveBroadcastStatus();
-            status.setPrivacyStatus("unlisted");
-
-            LiveBroadcast broadcast = new LiveBroadcast();
-            broadcast.setKind("youtube#liveBroadcast");
-            broadcast.setSnippet(broadcastSnippet);
-            broadcast.setStatus(status);
-            broadcast.setContentDetails(contentDetails);
-
-            // Create the insert request
-            YouTube.LiveBroadcasts.Insert liveBroadcastInsert = youtube
-                    .liveBroadcasts().insert("snippet,status,contentDetails",
-                            broadcast);
+        LiveBroadcastSnippet broadcastSnippet = new LiveBroadcastSnippet();
+        broadcastSnippet.setTitle(name);
+        broadcastSnippet.setScheduledStartTime(new DateTime(futureDate));
+
+        LiveBroadcastContentDetails contentDetails = new LiveBroadcastContentDetails();
+        MonitorStreamInfo monitorStream = new MonitorStreamInfo();
+        monitorStream.setEnableMonitorStream(false);
+        contentDetails.setMonitorStream(monitorStream);
+
+        // Create LiveBroadcastStatus with privacy status.
+        LiveBroadcastStatus status = new LiveBroadcastStatus();
+        status.setPrivacyStatus("unlisted");
+
+        LiveBroadcast broadcast = new LiveBroadcast();
+        broadcast.setKind("youtube#liveBroadcast");
+        broadcast.setSnippet(broadcastSnippet);
+        broadcast.setStatus(status);
+        broadcast.setContentDetails(contentDetails);
+
+        // Create the insert request
+        YouTube.LiveBroadcasts.Insert liveBroadcastInsert = youtube
+                .liveBroadcasts().insert("snippet,status,contentDetails",
+                        broadcast);
+
+        // Stream inserted for this event, deleted again if the event fails.
+        String newStreamId = null;
+        LiveBroadcast returnedBroadcast;
+        if (streamId == null) {
+            // Request is executed and inserted stream is returned, while the broadcast is
+            // inserted on this thread.
+            final YouTube.LiveStreams.Insert liveStreamInsert = newStreamInsert(youtube);
+            FutureTask<LiveStream> returnedStream = new FutureTask<LiveStream>(
+                    new Callable<LiveStream>() {
+                        @Override
+                        public LiveStream call() throws IOException {
+                            return liveStreamInsert.execute();
+                        }
+                    });
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(returnedStream);
 
             // Request is executed and inserted broadcast is returned
-            LiveBroadcast returnedBroadcast = liveBroadcastInsert.execute();
-
-            // Create a snippet with title.
-            LiveStreamSnippet streamSnippet = new LiveStreamSnippet();
-            streamSnippet.setTitle(name);
+            try {
+                returnedBroadcast = liveBroadcastInsert.execute();
+            } catch (IOException e) {
+                newStreamId = awaitInsertedStreamId(returnedStream);
+                if (newStreamId != null) {
+                    deleteStream(youtube, newStreamId);
+                }
+                throw e;
+            }
+            try {
+                newStreamId = getInsertedStream(returnedStream).getId();
+                bind(youtube, returnedBroadcast.getId(), newStreamId);
+            } catch (IOException e) {
+                deleteUnbound(youtube, returnedBroadcast.getId(), newStreamId);
+                throw e;
+            }
+            return newStreamId;
+        }
 
-            // Create content distribution network with format and ingestion
-            // type.
-            CdnSettings cdn = new CdnSettings();
-            cdn.setFormat("240p");
-            cdn.setIngestionType("rtmp");
+        returnedBroadcast = liveBroadcastInsert.execute();
+        try {
+            try {
+                bind(youtube, returnedBroadcast.getId(), streamId);
+                return streamId;
+            } catch (GoogleJsonResponseException e) {
+                if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND) {
+                    throw e;
+                }
+            }
+            // The stream was deleted since; make a new one.
+            Log.i(MainActivity.APP_NAME, "Stream " + streamId + " is gone.");
+            newStreamId = newStreamInsert(youtube).execute().getId();
+            bind(youtube, returnedBroadcast.getId(), newStreamId);
+            return newStreamId;
+        } catch (IOException e) {
+            deleteUnbound(youtube, returnedBroadcast.getId(), newStreamId);
+            throw e;
+        }
+    }
 
-            LiveStream stream = new LiveStream();
-            stream.setKind("youtube#liveStream");
-            stream.setSnippet(streamSnippet);
-            stream.setCdn(cdn);
+    private static YouTube.LiveStreams.Insert newStreamInsert(YouTube youtube)
+            throws IOException {
+        // Create a snippet with title. The stream outlives the event, so it is named after
+        // what it carries.
+        LiveStreamSnippet streamSnippet = new LiveStreamSnippet();
+        streamSnippet.setTitle(MainActivity.APP_NAME + " " + STREAM_FORMAT);
+
+        // Create content distribution network with format and ingestion
+        // type.
+        CdnSettings cdn = new CdnSettings();
+        cdn.setFormat(STREAM_FORMAT);
+        cdn.setIngestionType("rtmp");
+
+        LiveStream stream = new LiveStream();
+        stream.setKind("youtube#liveStream");
+        stream.setSnippet(streamSnippet);
+        stream.setCdn(cdn);
+
+        // Create the insert request
+        return youtube.liveStreams().insert("snippet,cdn", stream);
+    }
 
-            // Create the insert request
-            YouTube.LiveStreams.Insert liveStreamInsert = youtube.liveStreams()
-                    .insert("snippet,cdn", stream);
+    private static LiveStream getInsertedStream(Future<LiveStream> returnedStream)
+            throws IOException {
+        try {
+            return returnedStream.get();
+        } catch (InterruptedException e) {
+            returnedStream.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted inserting the stream");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
 
-            // Request is executed and inserted stream is returned
-            LiveStream returnedStream = liveStreamInsert.execute();
+    /**
+     * @return id of the inserted stream, or null if the insert failed.
+     */
+    private static String awaitInsertedStreamId(Future<LiveStream> returnedStream) {
+        try {
+            return getInsertedStream(returnedStream).getId();
+        } catch (IOException e) {
+            Log.w(MainActivity.APP_NAME, "Could not insert the stream either: " + e);
+            return null;
+        }
+    }
 
-            // Create the bind request
-            YouTube.LiveBroadcasts.Bind liveBroadcastBind = youtube
-                    .liveBroadcasts().bind(returnedBroadcast.getId(),
-                            "id,contentDetails");
+    /**
+     * Deletes what createLiveEvent inserted for an event it couldn't complete, so that neither an
+     * event without a stream nor a stream nobody knows of is left behind. Failing that, they are
+     * only reported.
+     *
+     * @param broadcastId - Broadcast that couldn't be given a stream.
+     * @param streamId    - Stream inserted for it, or null if none was.
+     */
+    private static void deleteUnbound(YouTube youtube, String broadcastId, String streamId) {
+        try {
+            youtube.liveBroadcasts().delete(broadcastId).execute();
+            Log.i(MainActivity.APP_NAME, "Deleted unbound broadcast " + broadcastId + ".");
+        } catch (IOException e) {
+            Log.w(MainActivity.APP_NAME, "Broadcast " + broadcastId
+                    + " was created without a stream and could not be deleted: " + e);
+        }
+        if (streamId != null) {
+            deleteStream(youtube, streamId);
+        }
+    }
 
-            // Set stream id to bind
-            liveBroadcastBind.setStreamId(returnedStream.getId());
+    private static void deleteStream(YouTube youtube, String streamId) {
+        try {
+            youtube.liveStreams().delete(streamId).execute();
+            Log.i(MainActivity.APP_NAME, "Deleted unused stream " + streamId + ".");
+        } catch (IOException e) {
+            Log.w(MainActivity.APP_NAME, "Stream " + streamId
+                    + " was created for nothing and could not be deleted: " + e);
+        }
+    }
 
-            // Request is executed and bound broadcast is returned
-            liveBroadcastBind.execute();
+    private static void bind(YouTube youtube, String broadcastId, String streamId)
+            throws IOException {
+        // Create the bind request
+        YouTube.LiveBroadcasts.Bind liveBroadcastBind = youtube
+                .liveBroadcasts().bind(broadcastId, "id,contentDetails");
 
-        } catch (GoogleJsonResponseException e) {
-            System.err.println("GoogleJsonResponseException code: "
-                    + e.getDetails().getCode() + " : "
-                    + e.getDetails().getMessage());
-            e.printStackTrace();
+        // Set stream id to bind
+        liveBroadcastBind.setStreamId(streamId);
 
-        } catch (IOException e) {
-            System.err.println("IOException: " + e.getMessage());
-            e.printStackTrace();
-        } catch (Throwable t) {
-            System.err.println("Throwable: " + t.getStackTrace());
-            t.printStackTrace();
-        }
+        // Request is executed and bound broadcast is returned
+        liveBroadcastBind.execute();
     }
 
+    /**
+     * Lists all the upcoming events, page by page. To show events as they arrive, use
+     * {@link #getLiveEventsPage} instead.
+     */
     // TODO: Catch those exceptions and handle them here.
     public static List<EventData> getLiveEvents(
             YouTube youtube) throws IOException {
+        List<EventData> resultList = new ArrayList<EventData>();
+        String pageToken = null;
+        do {
+            EventPage page = getLiveEventsPage(youtube, pageToken);
+            resultList.addAll(page.getEvents());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return resultList;
+    }
+
+    /**
+     * @param pageToken - Token of the page, or null for the first.
+     * @return up to EVENTS_PAGE_SIZE upcoming events, with their ingestion addresses.
+     */
+    public static EventPage getLiveEventsPage(YouTube youtube, String pageToken)
+            throws IOException {
+        LiveBroadcastListResponse returnedListResponse = listUpcomingBroadcasts(youtube,
+                pageToken, null);
+        List<EventData> resultList = toEventData(returnedListResponse.getItems());
+
+        // One lookup for all the bound streams rather than one per broadcast.
+        setIngestionAddresses(resultList,
+                getIngestionAddresses(youtube, getBoundStreamIds(resultList)));
+        return new EventPage(resultList, returnedListResponse.getNextPageToken());
+    }
+
+    /**
+     * Lists a page of the upcoming broadcasts, unless it hasn't changed since an earlier response.
+     *
+     * @param pageToken - Token of the page, or null for the first.
+     * @param etag      - ETag of the earlier response, or null to list them regardless.
+     * @return the response, or null if the page hasn't changed.
+     */
+    public static LiveBroadcastListResponse listUpcomingBroadcasts(YouTube youtube,
+                                                                   String pageToken, String etag)
+            throws IOException {
         Log.i(MainActivity.APP_NAME, "Requesting live events.");
 
         YouTube.LiveBroadcasts.List liveBroadcastRequest = youtube
                 .liveBroadcasts().list("id,snippet,contentDetails");
         // liveBroadcastRequest.setMine(true);
         liveBroadcastRequest.setBroadcastStatus("upcoming");
+        liveBroadcastRequest.setMaxResults((long) EVENTS_PAGE_SIZE);
+        liveBroadcastRequest.setPageToken(pageToken);
+        if (etag != null) {
+            liveBroadcastRequest.getRequestHeaders().setIfNoneMatch(etag);
+        }
 
         // List request is executed and list of broadcasts are returned
-        LiveBroadcastListResponse returnedListResponse = liveBroadcastRequest.execute();
-
-        // Get the list of broadcasts associated with the user.
-        List<LiveBroadcast> returnedList = returnedListResponse.getItems();
+        try {
+            return liveBroadcastRequest.execute();
+        } catch (HttpResponseException e) {
+            if (etag != null && e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+                return null;
+            }
+            throw e;
+        }
+    }
 
-        List<EventData> resultList = new ArrayList<EventData>(returnedList.size());
+    public static List<EventData> toEventData(List<LiveBroadcast> broadcasts) {
+        List<EventData> resultList = new ArrayList<EventData>(broadcasts.size());
         EventData event;
 
-        for (LiveBroadcast broadcast : returnedList) {
+        for (LiveBroadcast broadcast : broadcasts) {
             event = new EventData();
             event.setEvent(broadcast);
-            String streamId = broadcast.getContentDetails().getBoundStreamId();
-            if (streamId != null) {
-                String ingestionAddress = getIngestionAddress(youtube, streamId);
-                event.setIngestionAddress(ingestionAddress);
-            }
             resultList.add(event);
         }
         return resultList;
     }
 
-    public static void startEvent(YouTube youtube, String broadcastId)
+    /**
+     * @return ids of the streams bound to the events, each once.
+     */
+    public static Set<String> getBoundStreamIds(List<EventData> events) {
+        Set<String> streamIds = new LinkedHashSet<String>();
+        for (EventData event : events) {
+            if (event.getBoundStreamId() != null) {
+                streamIds.add(event.getBoundStreamId());
+            }
+        }
+        return streamIds;
+    }
+
+    /**
+     * @param ingestionAddresses - Ingestion address of each bound stream, by stream id. Events
+     *                           whose stream is missing get an empty address.
+     */
+    public static void setIngestionAddresses(List<EventData> events,
+                                             Map<String, String> ingestionAddresses) {
+        for (EventData event : events) {
+            String streamId = event.getBoundStreamId();
+            if (streamId != null) {
+                String ingestionAddress = ingestionAddresses.get(streamId);
+                event.setIngestionAddress(ingestionAddress != null ? ingestionAddress : "");
+            }
+        }
+    }
+
+    /**
+     * Takes a broadcast live as soon as YouTube receives its stream. YouTube refuses the
+     * transition while the bound stream is inactive, so the stream's status is polled first, with
+     * backoff, until it turns active or STREAM_POLL_DEADLINE_MILLIS passes.
+     *
+     * @param broadcastId - Broadcast to take live.
+     * @param streamId    - Stream bound to it, or null to look it up.
+     * @throws StreamInactiveException if the stream isn't received by the deadline; the
+     *                                 broadcast is left as it was.
+     */
+    public static void startEvent(YouTube youtube, String broadcastId, String streamId)
             throws IOException {
+        startEvent(youtube, broadcastId, streamId, STREAM_POLL_DEADLINE_MILLIS);
+    }
 
-        try {
-            Thread.sleep(10000);
-        } catch (InterruptedException e) {
-            Log.e(MainActivity.APP_NAME, "", e);
+    /**
+     * @param deadlineMillis - How long to wait for the stream to turn active.
+     */
+    static void startEvent(YouTube youtube, String broadcastId, String streamId,
+                           int deadlineMillis) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        if (streamId == null) {
+            streamId = getBoundStreamId(youtube, broadcastId);
+        }
+        if (streamId != null && !waitForActiveStream(youtube, streamId, deadlineMillis)) {
+            throw new StreamInactiveException(streamId);
         }
 
         Transition transitionRequest = youtube.liveBroadcasts().transition(
                 "live", broadcastId, "status");
         transitionRequest.execute();
+        Log.i(MainActivity.APP_NAME, String.format("Broadcast %s went live after %d ms.",
+                broadcastId, System.currentTimeMillis() - startMillis));
+    }
+
+    /**
+     * @return whether the stream turned active before the deadline.
+     * @throws InterruptedIOException if the thread was interrupted while waiting, with its
+     *                                interrupt status set again.
+     */
+    private static boolean waitForActiveStream(YouTube youtube, String streamId,
+                                               int deadlineMillis) throws IOException {
+        BackOff backOff = new ExponentialBackOff.Builder()
+                .setInitialIntervalMillis(STREAM_POLL_INITIAL_MILLIS)
+                .setMultiplier(STREAM_POLL_MULTIPLIER)
+                .setMaxIntervalMillis(STREAM_POLL_MAX_INTERVAL_MILLIS)
+                .setMaxElapsedTimeMillis(deadlineMillis)
+                .build();
+        YouTube.LiveStreams.List liveStreamRequest = youtube.liveStreams().list("status");
+        liveStreamRequest.setId(streamId);
+        for (; ; ) {
+            List<LiveStream> streamList = liveStreamRequest.execute().getItems();
+            if (!streamList.isEmpty() && STREAM_STATUS_ACTIVE.equals(
+                    streamList.get(0).getStatus().getStreamStatus())) {
+                return true;
+            }
+            long waitMillis = backOff.nextBackOffMillis();
+            if (waitMillis == BackOff.STOP) {
+                return false;
+            }
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                // Whoever interrupted wants the wait over, not the broadcast taken live.
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for stream " + streamId);
+            }
+        }
+    }
+
+    private static String getBoundStreamId(YouTube youtube, String broadcastId)
+            throws IOException {
+        YouTube.LiveBroadcasts.List liveBroadcastRequest = youtube.liveBroadcasts()
+                .list("contentDetails");
+        liveBroadcastRequest.setId(broadcastId);
+        List<LiveBroadcast> broadcastList = liveBroadcastRequest.execute().getItems();
+        if (broadcastList.isEmpty()) {
+            return null;
+        }
+        return broadcastList.get(0).getContentDetails().getBoundStreamId();
     }
 
     public static void endEvent(YouTube youtube, String broadcastId)
@@ -196,17 +481,76 @@ public class YouTubeApi {
 
     public static String getIngestionAddress(YouTube youtube, String streamId)
             throws IOException {
-        YouTube.LiveStreams.List liveStreamRequest = youtube.liveStreams()
-                .list("cdn");
-        liveStreamRequest.setId(streamId);
-        LiveStreamListResponse returnedStream = liveStreamRequest.execute();
+        String ingestionAddress = getIngestionAddresses(youtube,
+                Collections.singleton(streamId)).get(streamId);
+        return ingestionAddress != null ? ingestionAddress : "";
+    }
+
+    /**
+     * Looks up the ingestion addresses of streams, MAX_IDS_PER_REQUEST ids per request, following
+     * pages if the API splits a response.
+     *
+     * @param streamIds - Ids of the streams.
+     * @return ingestion address of each stream found, by stream id.
+     */
+    public static Map<String, String> getIngestionAddresses(YouTube youtube,
+                                                            Collection<String> streamIds)
+            throws IOException {
+        Map<String, String> ingestionAddresses = new HashMap<String, String>();
+        List<String> ids = new ArrayList<String>(streamIds);
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_REQUEST) {
+            List<String> chunk = ids.subList(start,
+                    Math.min(start + MAX_IDS_PER_REQUEST, ids.size()));
+            YouTube.LiveStreams.List liveStreamRequest = youtube.liveStreams()
+                    .list("id,cdn");
+            liveStreamRequest.setId(TextUtils.join(",", chunk));
+            String pageToken = null;
+            do {
+                liveStreamRequest.setPageToken(pageToken);
+                LiveStreamListResponse returnedStreams = liveStreamRequest.execute();
+                for (LiveStream stream : returnedStreams.getItems()) {
+                    IngestionInfo ingestionInfo = stream.getCdn().getIngestionInfo();
+                    ingestionAddresses.put(stream.getId(), ingestionInfo.getIngestionAddress()
+                            + "/" + ingestionInfo.getStreamName());
+                }
+                pageToken = returnedStreams.getNextPageToken();
+            } while (pageToken != null);
+        }
+        return ingestionAddresses;
+    }
+
+    /**
+     * YouTube isn't receiving the stream, so the broadcast can't go live.
+     */
+    public static class StreamInactiveException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public StreamInactiveException(String streamId) {
+            super("Stream " + streamId + " is not receiving data");
+        }
+    }
+
+    /**
+     * A page of the upcoming events.
+     */
+    public static class EventPage {
+        private final List<EventData> mEvents;
+        private final String mNextPageToken;
+
+        public EventPage(List<EventData> events, String nextPageToken) {
+            mEvents = events;
+            mNextPageToken = nextPageToken;
+        }
+
+        public List<EventData> getEvents() {
+            return mEvents;
+        }
 
-        List<LiveStream> streamList = returnedStream.getItems();
-        if (streamList.isEmpty()) {
-            return "";
+        /**
+         * @return token of the next page, or null if this is the last.
+         */
+        public String getNextPageToken() {
+            return mNextPageToken;
         }
-        IngestionInfo ingestionInfo = streamList.get(0).getCdn().getIngestionInfo();
-        return ingestionInfo.getIngestionAddress() + "/"
-                + ingestionInfo.getStreamName();
     }
 }
@@ -49,9 +49,27 @@ include $(CLEAR_VARS)
 LOCAL_PATH := $(WORKING_DIR)
 LOCAL_MODULE    := ffmpeg
 LOCAL_CFLAGS := -DHAVE_AV_CONFIG_H -std=c99 -D__STDC_CONSTANT_MACROS -DSTDC_HEADERS
-LOCAL_SRC_FILES := ffmpeg-jni.c
+LOCAL_SRC_FILES := ffmpeg-jni.c \
+                   audio-convert.c \
+                   encoder-core.c \
+                   dvr-ring.c \
+                   output-sink.c \
+                   packet-writer.c \
+                   tracked-alloc.c \
+                   yuv-convert.c
+# Only the NEON kernels are built with NEON, as not every ARMv7 CPU has it; the converters check
+# for it at run time.
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_SRC_FILES += audio-convert-neon.c.neon \
+                   yuv-convert-neon.c.neon
+else
+LOCAL_SRC_FILES += audio-convert-neon.c \
+                   yuv-convert-neon.c
+endif
 LOCAL_C_INCLUDES := $(WORKING_DIR)/../third_party/include
-LOCAL_STATIC_LIBRARIES := lame
+LOCAL_STATIC_LIBRARIES := lame cpufeatures
 LOCAL_LDLIBS := -llog -lm -lz $(WORKING_DIR)/../third_party/lib/libavformat.a $(WORKING_DIR)/../third_party/lib/libavcodec.a $(WORKING_DIR)/../third_party/lib/libavfilter.a $(WORKING_DIR)/../third_party/lib/libavresample.a $(WORKING_DIR)/../third_party/lib/libswscale.a $(WORKING_DIR)/../third_party/lib/libavutil.a $(WORKING_DIR)/../third_party/lib/libx264.a $(WORKING_DIR)/../third_party/lib/libpostproc.a $(WORKING_DIR)/../third_party/lib/libswresample.a $(WORKING_DIR)/../third_party/lib/libfdk-aac.a
 APP_OPTIM := release
 include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,android/cpufeatures)
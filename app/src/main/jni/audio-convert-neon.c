@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#include "neon-kernels.h"
+
+#if defined(WATCHME_NEON_KERNELS)
+#include <arm_neon.h>
+
+int audio_s16_to_float_neon(const short *input, float *output, int count) {
+    int i = 0;
+    for (; i + 8 <= count; i += 8) {
+        int16x8_t s = vld1q_s16(input + i);
+        // Fixed-point conversion with 15 fractional bits does the scaling for free.
+        vst1q_f32(output + i, vcvtq_n_f32_s32(vmovl_s16(vget_low_s16(s)), 15));
+        vst1q_f32(output + i + 4, vcvtq_n_f32_s32(vmovl_s16(vget_high_s16(s)), 15));
+    }
+    return i;
+}
+
+int audio_downmix_s16_to_float_neon(const short *input, float *output, int frames) {
+    int i = 0;
+    for (; i + 8 <= frames; i += 8) {
+        int16x8x2_t lr = vld2q_s16(input + 2 * i);
+        int32x4_t low = vaddl_s16(vget_low_s16(lr.val[0]), vget_low_s16(lr.val[1]));
+        int32x4_t high = vaddl_s16(vget_high_s16(lr.val[0]), vget_high_s16(lr.val[1]));
+        // 16 fractional bits: the sum of two channels, halved, over 32768.
+        vst1q_f32(output + i, vcvtq_n_f32_s32(low, 16));
+        vst1q_f32(output + i + 4, vcvtq_n_f32_s32(high, 16));
+    }
+    return i;
+}
+#endif
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#include <stdlib.h>
+
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#define AUDIO_USE_SSE2 1
+#if defined(__AVX2__)
+#include <immintrin.h>
+#define AUDIO_USE_AVX2 1
+#endif
+#endif
+
+#include "audio-convert.h"
+#include "neon-kernels.h"
+#include "tracked-alloc.h"
+
+#define S16_SCALE (1.0f / 32768)
+
+struct AudioConditioner {
+    int input_rate;
+    int channels;
+    int output_rate;
+    int max_input_samples;
+    int max_output_samples;
+    // Mono samples at the input rate.
+    float *mono;
+    // Mono samples at the output rate; unused when the rates match.
+    float *resampled;
+
+    // Resampler position: the next output sample lies phase / output_rate of the way from input
+    // sample index to index + 1 of the current chunk. Index -1 is the last sample of the
+    // previous chunk, kept in last_sample.
+    int index;
+    int phase;
+    float last_sample;
+};
+
+void audio_s16_to_float(const short *input, float *output, int count) {
+    int i = 0;
+#if defined(WATCHME_NEON_KERNELS)
+    if (neon_available()) {
+        i = audio_s16_to_float_neon(input, output, count);
+    }
+#endif
+#if defined(AUDIO_USE_AVX2)
+    const __m256 scale_256 = _mm256_set1_ps(S16_SCALE);
+    for (; i + 8 <= count; i += 8) {
+        __m256i s = _mm256_cvtepi16_epi32(_mm_loadu_si128((const __m128i *) (input + i)));
+        _mm256_storeu_ps(output + i, _mm256_mul_ps(_mm256_cvtepi32_ps(s), scale_256));
+    }
+#endif
+#if defined(AUDIO_USE_SSE2)
+    const __m128 scale = _mm_set1_ps(S16_SCALE);
+    for (; i + 8 <= count; i += 8) {
+        __m128i s = _mm_loadu_si128((const __m128i *) (input + i));
+        // Sign-extend by putting each sample in the top half of a 32 bit lane and shifting down.
+        __m128i low = _mm_srai_epi32(_mm_unpacklo_epi16(s, s), 16);
+        __m128i high = _mm_srai_epi32(_mm_unpackhi_epi16(s, s), 16);
+        _mm_storeu_ps(output + i, _mm_mul_ps(_mm_cvtepi32_ps(low), scale));
+        _mm_storeu_ps(output + i + 4, _mm_mul_ps(_mm_cvtepi32_ps(high), scale));
+    }
+#endif
+    for (; i < count; i++) {
+        output[i] = input[i] * S16_SCALE;
+    }
+}
+
+void audio_downmix_s16_to_float(const short *input, float *output, int frames) {
+    int i = 0;
+#if defined(WATCHME_NEON_KERNELS)
+    if (neon_available()) {
+        i = audio_downmix_s16_to_float_neon(input, output, frames);
+    }
+#endif
+#if defined(AUDIO_USE_AVX2)
+    const __m256i ones_256 = _mm256_set1_epi16(1);
+    const __m256 half_scale_256 = _mm256_set1_ps(S16_SCALE / 2);
+    for (; i + 8 <= frames; i += 8) {
+        // Multiply-add against ones sums each left/right pair into a 32 bit lane, in order.
+        __m256i lr = _mm256_loadu_si256((const __m256i *) (input + 2 * i));
+        __m256i sum = _mm256_madd_epi16(lr, ones_256);
+        _mm256_storeu_ps(output + i, _mm256_mul_ps(_mm256_cvtepi32_ps(sum), half_scale_256));
+    }
+#endif
+#if defined(AUDIO_USE_SSE2)
+    const __m128i ones = _mm_set1_epi16(1);
+    const __m128 half_scale = _mm_set1_ps(S16_SCALE / 2);
+    for (; i + 8 <= frames; i += 8) {
+        __m128i a = _mm_madd_epi16(_mm_loadu_si128((const __m128i *) (input + 2 * i)), ones);
+        __m128i b = _mm_madd_epi16(_mm_loadu_si128((const __m128i *) (input + 2 * i + 8)), ones);
+        _mm_storeu_ps(output + i, _mm_mul_ps(_mm_cvtepi32_ps(a), half_scale));
+        _mm_storeu_ps(output + i + 4, _mm_mul_ps(_mm_cvtepi32_ps(b), half_scale));
+    }
+#endif
+    for (; i < frames; i++) {
+        output[i] = (input[2 * i] + input[2 * i + 1]) * (S16_SCALE / 2);
+    }
+}
+
+// Linear interpolation. Capture only falls back to another rate on devices that don't record
+// at the encoder's, where a few microseconds per chunk don't matter.
+static int resample(AudioConditioner *conditioner, const float *input, int count,
+                    float *output) {
+    int index = conditioner->index;
+    int phase = conditioner->phase;
+    int produced = 0;
+    while (index + 1 < count) {
+        float a = index < 0 ? conditioner->last_sample : input[index];
+        float b = input[index + 1];
+        output[produced++] = a + (b - a) * phase / conditioner->output_rate;
+        phase += conditioner->input_rate;
+        while (phase >= conditioner->output_rate) {
+            phase -= conditioner->output_rate;
+            index++;
+        }
+    }
+    if (count > 0) {
+        conditioner->last_sample = input[count - 1];
+        conditioner->index = index - count;
+    }
+    conditioner->phase = phase;
+    return produced;
+}
+
+AudioConditioner *audio_conditioner_create(int input_rate, int channels, int output_rate,
+                                           int max_input_samples) {
+    if (input_rate <= 0 || output_rate <= 0 || channels < 1 || channels > 2 ||
+        max_input_samples < channels) {
+        return NULL;
+    }
+    AudioConditioner *conditioner = (AudioConditioner *) tracked_mallocz(
+            sizeof(AudioConditioner));
+    if (!conditioner) {
+        return NULL;
+    }
+    conditioner->input_rate = input_rate;
+    conditioner->channels = channels;
+    conditioner->output_rate = output_rate;
+    conditioner->max_input_samples = max_input_samples - max_input_samples % channels;
+
+    int max_frames = conditioner->max_input_samples / channels;
+    conditioner->mono = (float *) tracked_malloc(max_frames * sizeof(float));
+    conditioner->max_output_samples = max_frames;
+    if (input_rate != output_rate) {
+        // Plus one for the sample carried over from the previous chunk.
+        conditioner->max_output_samples =
+                (int) (((long long) max_frames + 1) * output_rate / input_rate) + 1;
+        conditioner->resampled = (float *) tracked_malloc(conditioner->max_output_samples *
+                                                          sizeof(float));
+        if (!conditioner->resampled) {
+            audio_conditioner_destroy(conditioner);
+            return NULL;
+        }
+    }
+    if (!conditioner->mono) {
+        audio_conditioner_destroy(conditioner);
+        return NULL;
+    }
+    return conditioner;
+}
+
+void audio_conditioner_destroy(AudioConditioner *conditioner) {
+    if (!conditioner) {
+        return;
+    }
+    tracked_free(conditioner->mono);
+    tracked_free(conditioner->resampled);
+    tracked_free(conditioner);
+}
+
+int audio_conditioner_max_output(const AudioConditioner *conditioner) {
+    return conditioner->max_output_samples;
+}
+
+int audio_conditioner_max_input(const AudioConditioner *conditioner) {
+    return conditioner->max_input_samples;
+}
+
+int audio_conditioner_process(AudioConditioner *conditioner, const short *input, int count,
+                              const float **output) {
+    if (count > conditioner->max_input_samples) {
+        count = conditioner->max_input_samples;
+    }
+    int frames = count / conditioner->channels;
+    if (conditioner->channels == 2) {
+        audio_downmix_s16_to_float(input, conditioner->mono, frames);
+    } else {
+        audio_s16_to_float(input, conditioner->mono, frames);
+    }
+    if (!conditioner->resampled) {
+        *output = conditioner->mono;
+        return frames;
+    }
+    *output = conditioner->resampled;
+    return resample(conditioner, conditioner->mono, frames, conditioner->resampled);
+}
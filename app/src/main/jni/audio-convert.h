@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#ifndef WATCHME_AUDIO_CONVERT_H
+#define WATCHME_AUDIO_CONVERT_H
+
+// Turns captured 16 bit PCM, mono or interleaved stereo, into the mono float samples the AAC
+// encoder takes, at the encoder's rate. Every buffer is allocated up front.
+typedef struct AudioConditioner AudioConditioner;
+
+// Creates a conditioner for chunks of up to max_input_samples s16 samples (all channels), or
+// returns NULL on failure. channels is 1 or 2.
+AudioConditioner *audio_conditioner_create(int input_rate, int channels, int output_rate,
+                                           int max_input_samples);
+
+void audio_conditioner_destroy(AudioConditioner *conditioner);
+
+// Returns the most samples a call to audio_conditioner_process can produce.
+int audio_conditioner_max_output(const AudioConditioner *conditioner);
+
+// Returns the largest count audio_conditioner_process takes in one call.
+int audio_conditioner_max_input(const AudioConditioner *conditioner);
+
+// Conditions count s16 samples, a whole number of frames and at most max_input_samples. Points
+// *output at the result, which stays valid until the next call, and returns its length. The
+// resampler carries its position over from one call to the next.
+int audio_conditioner_process(AudioConditioner *conditioner, const short *input, int count,
+                              const float **output);
+
+// Converts count s16 samples to floats in [-1, 1), using NEON, AVX2 or SSE2 when the target has
+// them.
+void audio_s16_to_float(const short *input, float *output, int count);
+
+// Averages the channels of frames interleaved stereo s16 frames into mono floats in [-1, 1),
+// using NEON, AVX2 or SSE2 when the target has them.
+void audio_downmix_s16_to_float(const short *input, float *output, int frames);
+
+#endif  // WATCHME_AUDIO_CONVERT_H
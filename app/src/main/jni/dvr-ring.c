@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#include <android/log.h>
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <unistd.h>
+
+#include "libavutil/time.h"
+
+#include "dvr-ring.h"
+
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "dvr-ring", __VA_ARGS__)
+#define IO_BUFFER_SIZE (32 * 1024)
+// A segment is handed over at the first keyframe after it is this full, in percent.
+#define ROTATE_AT_PERCENT 75
+
+static void segment_path(DvrRing *ring, int64_t sequence, char *path, size_t size) {
+    snprintf(path, size, "%s/dvr-%010lld.flv", ring->directory, (long long) sequence);
+}
+
+// Numbering carries on from the newest segment already in the directory, so that a new recording
+// never leaves a previous one's higher-numbered segments to sort after its own. Those too old to
+// be part of the ring are deleted. Returns the newest sequence number found, or -1.
+static int64_t adopt_segments(DvrRing *ring) {
+    DIR *dir = opendir(ring->directory);
+    if (!dir) {
+        return -1;
+    }
+    int64_t last = -1;
+    struct dirent *entry;
+    while ((entry = readdir(dir)) != NULL) {
+        long long sequence;
+        if (sscanf(entry->d_name, "dvr-%lld.flv", &sequence) == 1) {
+            last = FFMAX(last, (int64_t) sequence);
+        }
+    }
+    rewinddir(dir);
+    // The first new segment is last + 1; the ring holds it and the num_segments - 1 before it.
+    int64_t oldest_kept = last + 2 - ring->num_segments;
+    while ((entry = readdir(dir)) != NULL) {
+        long long sequence;
+        if (sscanf(entry->d_name, "dvr-%lld.flv", &sequence) == 1 && sequence < oldest_kept) {
+            char path[512];
+            segment_path(ring, sequence, path, sizeof(path));
+            unlink(path);
+        }
+    }
+    closedir(dir);
+    return last;
+}
+
+static void record_sync(DvrRing *ring, int64_t sync_us, int error) {
+    pthread_mutex_lock(&ring->stats_lock);
+    ring->stats.last_sync_us = sync_us;
+    ring->stats.max_sync_us = FFMAX(ring->stats.max_sync_us, sync_us);
+    ring->stats.total_sync_us += sync_us;
+    ring->stats.syncs++;
+    if (error) {
+        ring->stats.errors++;
+    }
+    pthread_mutex_unlock(&ring->stats_lock);
+}
+
+// Syncs, trims and closes the current segment.
+static void finish_segment(DvrRing *ring) {
+    if (!ring->map) {
+        return;
+    }
+    int64_t start_us = av_gettime();
+    int error = msync(ring->map, ring->used, MS_SYNC) != 0;
+    record_sync(ring, av_gettime() - start_us, error);
+    munmap(ring->map, ring->segment_bytes);
+    ring->map = NULL;
+    // Drop the unwritten tail so the file ends where the stream does.
+    if (ftruncate(ring->fd, ring->used) != 0) {
+        LOGI("Could not trim segment %lld: %s", (long long) ring->sequence, strerror(errno));
+    }
+    close(ring->fd);
+    ring->fd = -1;
+}
+
+// Creates and maps the next segment, deleting the one it replaces. with_header is 0 when the
+// segment continues a tag cut off at the end of the previous one.
+static int start_segment(DvrRing *ring, int with_header) {
+    char path[512];
+    ring->sequence++;
+    if (ring->sequence >= ring->num_segments) {
+        segment_path(ring, ring->sequence - ring->num_segments, path, sizeof(path));
+        unlink(path);
+    }
+
+    segment_path(ring, ring->sequence, path, sizeof(path));
+    ring->fd = open(path, O_RDWR | O_CREAT | O_TRUNC, 0644);
+    if (ring->fd < 0) {
+        LOGI("Could not create %s: %s", path, strerror(errno));
+        return -1;
+    }
+    if (ftruncate(ring->fd, ring->segment_bytes) != 0) {
+        LOGI("Could not size %s: %s", path, strerror(errno));
+        close(ring->fd);
+        ring->fd = -1;
+        return -1;
+    }
+    void *map = mmap(NULL, ring->segment_bytes, PROT_READ | PROT_WRITE, MAP_SHARED, ring->fd, 0);
+    if (map == MAP_FAILED) {
+        LOGI("Could not map %s: %s", path, strerror(errno));
+        close(ring->fd);
+        ring->fd = -1;
+        return -1;
+    }
+    ring->map = (uint8_t *) map;
+    ring->used = 0;
+    if (with_header && ring->header_size > 0) {
+        memcpy(ring->map, ring->header, ring->header_size);
+        ring->used = ring->header_size;
+    }
+    return 0;
+}
+
+static int rotate(DvrRing *ring, int with_header) {
+    finish_segment(ring);
+    pthread_mutex_lock(&ring->stats_lock);
+    ring->stats.segments_completed++;
+    if (!with_header) {
+        ring->stats.forced_rotations++;
+    }
+    pthread_mutex_unlock(&ring->stats_lock);
+    return start_segment(ring, with_header);
+}
+
+// AVIOContext write callback: copies a full I/O buffer into the mapped segment.
+static int write_callback(void *opaque, uint8_t *buf, int size) {
+    DvrRing *ring = (DvrRing *) opaque;
+    int remaining = size;
+    while (remaining > 0) {
+        if (!ring->map) {
+            pthread_mutex_lock(&ring->stats_lock);
+            ring->stats.errors++;
+            pthread_mutex_unlock(&ring->stats_lock);
+            return -1;
+        }
+        size_t room = ring->segment_bytes - ring->used;
+        if (room == 0) {
+            // No keyframe in time; the rest goes to the next segment, mid tag.
+            if (rotate(ring, 0) < 0) {
+                return -1;
+            }
+            continue;
+        }
+        size_t chunk = FFMIN(room, (size_t) remaining);
+        memcpy(ring->map + ring->used, buf, chunk);
+        ring->used += chunk;
+        buf += chunk;
+        remaining -= chunk;
+    }
+    pthread_mutex_lock(&ring->stats_lock);
+    ring->stats.bytes_written += size;
+    pthread_mutex_unlock(&ring->stats_lock);
+    return size;
+}
+
+int dvr_ring_open(DvrRing *ring, const char *directory, int num_segments, int segment_bytes) {
+    memset(ring, 0, sizeof(DvrRing));
+    ring->fd = -1;
+    ring->num_segments = num_segments;
+    ring->segment_bytes = segment_bytes;
+    pthread_mutex_init(&ring->stats_lock, NULL);
+
+    ring->directory = av_strdup(directory);
+    ring->io_buffer = (uint8_t *) av_malloc(IO_BUFFER_SIZE);
+    if (!ring->directory || !ring->io_buffer) {
+        dvr_ring_close(ring);
+        return -1;
+    }
+    ring->sequence = adopt_segments(ring);
+    // No seek callback: the muxer treats the output as a stream and never goes back to patch
+    // the header.
+    ring->io = avio_alloc_context(ring->io_buffer, IO_BUFFER_SIZE, 1, ring, NULL, write_callback,
+                                  NULL);
+    if (!ring->io || start_segment(ring, 0) < 0) {
+        dvr_ring_close(ring);
+        return -1;
+    }
+    LOGI("Recording to %s, %i segments of %i bytes", directory, num_segments, segment_bytes);
+    return 0;
+}
+
+AVIOContext *dvr_ring_get_io(DvrRing *ring) {
+    return ring->io;
+}
+
+int dvr_ring_end_header(DvrRing *ring) {
+    avio_flush(ring->io);
+    ring->header = (uint8_t *) av_malloc(ring->used);
+    if (!ring->header) {
+        return -1;
+    }
+    memcpy(ring->header, ring->map, ring->used);
+    ring->header_size = ring->used;
+    return 0;
+}
+
+void dvr_ring_before_packet(DvrRing *ring, AVFormatContext *muxer, const AVPacket *pkt,
+                            int is_video) {
+    if (!is_video || !(pkt->flags & AV_PKT_FLAG_KEY) || !ring->map) {
+        return;
+    }
+    if (ring->used * 100 < ring->segment_bytes * ROTATE_AT_PERCENT) {
+        return;
+    }
+    // The interleaver holds back packets until every stream has caught up, so the ones before
+    // the keyframe may not have been written yet. They belong to the segment being closed, as
+    // does whatever the I/O buffer holds; otherwise the new one wouldn't start on the keyframe.
+    if (av_interleaved_write_frame(muxer, NULL) < 0) {
+        LOGI("Could not flush the muxer before starting a new segment");
+    }
+    avio_flush(ring->io);
+    if (rotate(ring, 1) < 0) {
+        LOGI("Could not start a new segment, recording stopped");
+    }
+}
+
+void dvr_ring_get_stats(DvrRing *ring, DvrStats *stats) {
+    pthread_mutex_lock(&ring->stats_lock);
+    *stats = ring->stats;
+    pthread_mutex_unlock(&ring->stats_lock);
+}
+
+void dvr_ring_close(DvrRing *ring) {
+    if (ring->io) {
+        avio_flush(ring->io);
+    }
+    finish_segment(ring);
+    if (ring->io) {
+        // The I/O buffer may have been reallocated by avio; free the one it holds now.
+        av_freep(&ring->io->buffer);
+        av_freep(&ring->io);
+    } else {
+        av_freep(&ring->io_buffer);
+    }
+    av_freep(&ring->header);
+    av_freep(&ring->directory);
+    pthread_mutex_destroy(&ring->stats_lock);
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#ifndef WATCHME_DVR_RING_H
+#define WATCHME_DVR_RING_H
+
+#include <pthread.h>
+#include <stdint.h>
+
+#include "libavformat/avformat.h"
+
+typedef struct {
+    int64_t bytes_written;
+    int64_t segments_completed;
+    // Segments that filled up before a keyframe came along and were cut mid-GOP.
+    int64_t forced_rotations;
+    int64_t last_sync_us;
+    int64_t max_sync_us;
+    int64_t total_sync_us;
+    int64_t syncs;
+    int64_t errors;
+} DvrStats;
+
+// Fixed-size ring of FLV segment files on disk. The muxer writes into it through an AVIOContext
+// whose buffers are copied straight into the memory-mapped current segment, so muxing a packet
+// makes no system calls. Segments are named by a running sequence number, carried on from the
+// segments a previous recording left in the directory; once num_segments exist, the oldest is
+// deleted to make room. Each segment starts with the FLV header and begins at a keyframe where
+// possible, so it plays on its own.
+typedef struct {
+    char *directory;
+    int num_segments;
+    size_t segment_bytes;
+
+    AVIOContext *io;
+    uint8_t *io_buffer;
+
+    int64_t sequence;
+    int fd;
+    uint8_t *map;
+    size_t used;
+
+    // FLV header and sequence headers, replayed at the start of every segment.
+    uint8_t *header;
+    size_t header_size;
+
+    pthread_mutex_t stats_lock;
+    DvrStats stats;
+} DvrRing;
+
+int dvr_ring_open(DvrRing *ring, const char *directory, int num_segments, int segment_bytes);
+
+// The AVIOContext to mux into.
+AVIOContext *dvr_ring_get_io(DvrRing *ring);
+
+// Call once the muxer has written its header: everything written so far becomes the header of
+// every later segment.
+int dvr_ring_end_header(DvrRing *ring);
+
+// Call on the muxing thread before each packet is handed to the muxer. Starts a new segment at
+// a video keyframe once the current one is mostly full, after draining what the muxer still
+// holds for interleaving into the old one.
+void dvr_ring_before_packet(DvrRing *ring, AVFormatContext *muxer, const AVPacket *pkt,
+                            int is_video);
+
+void dvr_ring_get_stats(DvrRing *ring, DvrStats *stats);
+
+// Flushes, syncs and trims the current segment, then frees the ring.
+void dvr_ring_close(DvrRing *ring);
+
+#endif  // WATCHME_DVR_RING_H
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#include <android/log.h>
+
+#include "libavutil/opt.h"
+
+#include "encoder-core.h"
+
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "encoder-core", __VA_ARGS__)
+
+#define DEFAULT_PRESET "ultrafast"
+#define DEFAULT_SLICES 8
+#define DEFAULT_REFS 3
+
+void video_encoder_default_settings(VideoEncoderSettings *settings, int width, int height,
+                                    int bitrate, int gop_size, int frame_rate) {
+    settings->width = width;
+    settings->height = height;
+    settings->bitrate = bitrate;
+    settings->gop_size = gop_size;
+    settings->frame_rate = frame_rate;
+    settings->preset = DEFAULT_PRESET;
+    settings->slices = DEFAULT_SLICES;
+    settings->refs = DEFAULT_REFS;
+}
+
+int video_encoder_open(AVCodecContext *video_codec_ctx, const VideoEncoderSettings *settings) {
+    AVCodec *video_codec = avcodec_find_encoder(AV_CODEC_ID_H264);
+    if (!video_codec) {
+        LOGI("Did not find the video codec");
+        return -1;
+    } else {
+        LOGI("Video codec found!");
+    }
+    video_codec_ctx->codec_id = video_codec->id;
+    video_codec_ctx->codec_type = AVMEDIA_TYPE_VIDEO;
+    video_codec_ctx->level = 31;
+
+    video_codec_ctx->width = settings->width;
+    video_codec_ctx->height = settings->height;
+    video_codec_ctx->pix_fmt = PIX_FMT_YUV420P;
+    // VBV has to be on from the start for x264 to accept rate changes mid-stream.
+    video_codec_ctx->rc_max_rate = settings->bitrate;
+    video_codec_ctx->rc_buffer_size = settings->bitrate;
+    video_codec_ctx->gop_size = settings->gop_size;
+    video_codec_ctx->max_b_frames = 0;
+    video_codec_ctx->slices = settings->slices;
+    video_codec_ctx->b_frame_strategy = 1;
+    video_codec_ctx->coder_type = 0;
+    video_codec_ctx->me_cmp = 1;
+    video_codec_ctx->me_range = 16;
+    video_codec_ctx->qmin = 10;
+    video_codec_ctx->qmax = 51;
+    video_codec_ctx->keyint_min = 25;
+    video_codec_ctx->refs = settings->refs;
+    video_codec_ctx->trellis = 0;
+    video_codec_ctx->scenechange_threshold = 40;
+    video_codec_ctx->flags |= CODEC_FLAG_LOOP_FILTER;
+    video_codec_ctx->me_method = ME_HEX;
+    video_codec_ctx->me_subpel_quality = 6;
+    video_codec_ctx->i_quant_factor = 0.71;
+    video_codec_ctx->qcompress = 0.6;
+    video_codec_ctx->max_qdiff = 4;
+    video_codec_ctx->time_base.den = settings->frame_rate;
+    video_codec_ctx->time_base.num = 1;
+    video_codec_ctx->bit_rate = settings->bitrate;
+    video_codec_ctx->bit_rate_tolerance = 0;
+    video_codec_ctx->flags2 |= 0x00000100;
+
+    av_opt_set(video_codec_ctx, "partitions", "i8x8,i4x4,p8x8,b8x8", 0);
+    av_opt_set_int(video_codec_ctx, "direct-pred", 1, 0);
+    av_opt_set_int(video_codec_ctx, "rc-lookahead", 0, 0);
+    av_opt_set_int(video_codec_ctx, "fast-pskip", 1, 0);
+    av_opt_set_int(video_codec_ctx, "mixed-refs", 1, 0);
+    av_opt_set_int(video_codec_ctx, "8x8dct", 0, 0);
+    av_opt_set_int(video_codec_ctx, "weightb", 0, 0);
+
+    // Every sink is FLV, which carries SPS and PPS in its sequence header.
+    video_codec_ctx->flags |= CODEC_FLAG_GLOBAL_HEADER;
+
+    LOGI("Opening video codec");
+    AVDictionary *vopts = NULL;
+    av_dict_set(&vopts, "profile", "main", 0);
+    //av_dict_set(&vopts, "vprofile", "main", 0);
+    av_dict_set(&vopts, "rc-lookahead", 0, 0);
+    av_dict_set(&vopts, "tune", "film", 0);
+    av_dict_set(&vopts, "preset", settings->preset, 0);
+    av_opt_set(video_codec_ctx->priv_data, "tune", "film", 0);
+    av_opt_set(video_codec_ctx->priv_data, "preset", settings->preset, 0);
+    av_opt_set(video_codec_ctx->priv_data, "tune", "film", 0);
+    int open_res = avcodec_open2(video_codec_ctx, video_codec, &vopts);
+    av_dict_free(&vopts);
+    if (open_res < 0) {
+        LOGI("Error opening video codec: %i", open_res);
+        return open_res;
+    }
+    return 0;
+}
+
+AVCodecContext *audio_encoder_open(int sample_rate) {
+    AVCodec *audio_codec = avcodec_find_encoder(AV_CODEC_ID_AAC);
+    if (!audio_codec) {
+        LOGI("Did not find the audio codec");
+        return NULL;
+    } else {
+        LOGI("Audio codec found!");
+    }
+    AVCodecContext *audio_codec_ctx = avcodec_alloc_context3(audio_codec);
+    if (!audio_codec_ctx) {
+        return NULL;
+    }
+    audio_codec_ctx->codec_id = audio_codec->id;
+    audio_codec_ctx->codec_type = AVMEDIA_TYPE_AUDIO;
+    audio_codec_ctx->bit_rate = 128000;
+    audio_codec_ctx->bit_rate_tolerance = 16000;
+    audio_codec_ctx->channels = 1;
+    audio_codec_ctx->profile = FF_PROFILE_AAC_LOW;
+    audio_codec_ctx->sample_fmt = AV_SAMPLE_FMT_FLT;
+    audio_codec_ctx->sample_rate = sample_rate;
+
+    LOGI("Opening audio codec");
+    AVDictionary *opts = NULL;
+    av_dict_set(&opts, "strict", "experimental", 0);
+    int open_res = avcodec_open2(audio_codec_ctx, audio_codec, &opts);
+    av_dict_free(&opts);
+    LOGI("audio frame size: %i", audio_codec_ctx->frame_size);
+
+    if (open_res < 0) {
+        LOGI("Error opening audio codec: %i", open_res);
+        av_free(audio_codec_ctx);
+        return NULL;
+    }
+    return audio_codec_ctx;
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#ifndef WATCHME_ENCODER_CORE_H
+#define WATCHME_ENCODER_CORE_H
+
+#include "libavcodec/avcodec.h"
+
+// Everything about the H.264 encoder that can be tuned. The remaining x264 parameters are fixed
+// in encoder-core.c.
+typedef struct {
+    int width;
+    int height;
+    int bitrate;
+    int gop_size;
+    int frame_rate;
+    // x264 preset name.
+    const char *preset;
+    int slices;
+    int refs;
+} VideoEncoderSettings;
+
+// Fills in the settings the app streams with.
+void video_encoder_default_settings(VideoEncoderSettings *settings, int width, int height,
+                                    int bitrate, int gop_size, int frame_rate);
+
+// Sets up ctx, allocated with avcodec_alloc_context3(NULL), as the H.264 encoder and opens it.
+// Can be called again on a closed context to reopen it with new settings. Returns 0 or a
+// negative AVERROR.
+int video_encoder_open(AVCodecContext *ctx, const VideoEncoderSettings *settings);
+
+// Opens the mono AAC-LC encoder. Returns the allocated context, or NULL on failure.
+AVCodecContext *audio_encoder_open(int sample_rate);
+
+#endif  // WATCHME_ENCODER_CORE_H
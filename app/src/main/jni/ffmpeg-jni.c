@@ -13,92 +13,273 @@
  */
 
 #include <android/log.h>
+#include <pthread.h>
 #include <string.h>
 #include <jni.h>
 
 #include "libavcodec/avcodec.h"
 #include "libavformat/avformat.h"
-#include "libavutil/opt.h"
-
-#ifdef __cplusplus
-extern "C" {
-#endif
-
-JNIEXPORT jboolean
-        JNICALL Java_com_google_android_apps_watchme_Ffmpeg_init(JNIEnv *env, jobject thiz,
-                                                                 jint width, jint height,
-                                                                 jint audio_sample_rate,
-                                                                 jstring rtmp_url);
-        JNIEXPORT void JNICALL Java_com_google_android_apps_watchme_Ffmpeg_shutdown(JNIEnv
-*env,
-jobject thiz
-);
-JNIEXPORT jintJNICALL
-Java_com_google_android_apps_watchme_Ffmpeg_encodeVideoFrame(JNIEnv
-*env,
-jobject thiz,
-        jbyteArray
-yuv_image);
-JNIEXPORT jint
-        JNICALL Java_com_google_android_apps_watchme_Ffmpeg_encodeAudioFrame(JNIEnv *env,
-                                                                             jobject thiz,
-                                                                             jshortArray audio_data,
-                                                                             jint length);
-
-#ifdef __cplusplus
-}
-#endif
+
+#include "audio-convert.h"
+#include "dvr-ring.h"
+#include "encoder-core.h"
+#include "output-sink.h"
+#include "packet-writer.h"
+#include "tracked-alloc.h"
+#include "yuv-convert.h"
 
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "ffmpeg-jni", __VA_ARGS__)
-#define URL_WRONLY 2
-        static AVFormatContext *fmt_context;
-        static AVStream *video_stream;
-        static AVStream *audio_stream;
-
-        static int pts
-= 0;
-static int last_audio_pts = 0;
-
-// Buffers for UV format conversion
-static unsigned char *u_buf;
-static unsigned char *v_buf;
-
-static int enable_audio = 1;
-static int64_t audio_samples_written = 0;
-static int audio_sample_rate = 0;
-
-// Stupid buffer for audio samples. Not even a proper ring buffer
-#define AUDIO_MAX_BUF_SIZE 16384  // 2x what we get from Java
-static short audio_buf[AUDIO_MAX_BUF_SIZE];
-static int audio_buf_size = 0;
-
-void AudioBuffer_Push(const short *audio, int num_samples) {
-    if (audio_buf_size >= AUDIO_MAX_BUF_SIZE - num_samples) {
-        LOGI("AUDIO BUFFER OVERFLOW: %i + %i > %i", audio_buf_size, num_samples,
-             AUDIO_MAX_BUF_SIZE);
-        return;
+#define FFMPEG_CLASS "com/google/android/apps/watchme/Ffmpeg"
+
+// Looked up once in JNI_OnLoad.
+static JavaVM *java_vm;
+static jclass ffmpeg_class;
+static jclass illegal_argument_class;
+static jclass illegal_state_class;
+static jmethodID on_writer_watermark_method;
+static jmethodID on_sink_connection_method;
+
+// A/V sync. Every frame comes in stamped by the capture clock (System.nanoTime()). Packet
+// timestamps are milliseconds since the first frame that reached the muxer, kept strictly
+// increasing per stream so that dropped or late frames never shift the other track.
+#define NANOS_PER_SECOND 1000000000LL
+#define NANOS_PER_MILLI 1000000LL
+// Capture times of the frames inside x264, indexed by the pts they were given.
+#define VIDEO_TIMESTAMP_HISTORY 16
+// Audio follows its sample count and only jumps to the capture clock when the two disagree by
+// more than this, e.g. after chunks were dropped.
+#define AUDIO_RESYNC_THRESHOLD_NS (40 * NANOS_PER_MILLI)
+
+// Camera preview formats, as in android.graphics.ImageFormat.
+#define IMAGE_FORMAT_NV21 0x11
+#define IMAGE_FORMAT_YV12 0x32315659
+
+#define AUDIO_OUT_BUF_SIZE 128000
+
+// Encoded packets are muxed and sent on the writer's own thread, one per sink.
+#define WRITER_QUEUE_SIZE 128
+// Outputs one session can fan out to, e.g. primary and backup ingest plus a local archive.
+#define MAX_SINKS 4
+// Backlog that is still sent after a reconnect, in milliseconds of stream time, unless
+// setWriterBacklog says otherwise.
+#define DEFAULT_MAX_CATCHUP_MS 10000
+
+#define INITIAL_VIDEO_BITRATE (3200 * 1000)
+#define INITIAL_GOP_SIZE 12
+#define INITIAL_FRAME_RATE 10
+
+static const int enable_audio = 1;
+
+// Single-producer/single-consumer ring of conditioned samples, mono float at the encoder rate.
+// The capacity is a power of two so the free-running read and write positions wrap with a mask
+// and nothing is ever shifted. A frame that straddles the end of the ring is gathered into a
+// scratch buffer for the encoder.
+typedef struct {
+    float *data;
+    unsigned int mask;
+    unsigned int head;  // Read position. Written by the consumer only.
+    unsigned int tail;  // Write position. Written by the producer only.
+    float *frame;       // Scratch for frames that wrap around.
+    int frame_size;
+    int64_t overflows;
+} AudioRing;
+
+// Local recording into a ring of segment files. It is fed like any other sink but can be
+// started and stopped while the session streams.
+typedef struct {
+    OutputSink sink;
+    DvrRing ring;
+} DvrRecorder;
+
+// Recorder figures for getDvrStat, numbered as Ffmpeg.DVR_STAT_*.
+typedef enum {
+    DVR_STAT_BYTES_WRITTEN = 0,
+    DVR_STAT_THROUGHPUT = 1,
+    DVR_STAT_SEGMENTS_COMPLETED = 2,
+    DVR_STAT_FORCED_ROTATIONS = 3,
+    DVR_STAT_LAST_SYNC_MICROS = 4,
+    DVR_STAT_MAX_SYNC_MICROS = 5,
+    DVR_STAT_AVERAGE_SYNC_MICROS = 6,
+    DVR_STAT_ERRORS = 7,
+    DVR_STAT_DROPPED_PACKETS = 8
+} DvrStat;
+
+// One encode session: its encoders, the outputs they feed and everything they work with. Java
+// holds it as a long handle. Sessions share nothing, so any number can encode at once.
+typedef struct {
+    // Global reference to the owning Ffmpeg object, for callbacks.
+    jobject java_owner;
+    // Set from the start of init until shutdown, while the session may hold codecs, buffers and
+    // running sinks.
+    int initialized;
+
+    // Each frame is encoded once; the packets are fanned out to every sink.
+    AVCodecContext *video_codec_ctx;
+    AVCodecContext *audio_codec_ctx;
+
+    // Frame counter handed to x264 for rate control only; packets are stamped from capture
+    // time.
+    int pts;
+
+    int64_t clock_base_ns;
+    int clock_base_set;
+    int64_t last_video_pts_ms;
+    int64_t last_audio_pts_ms;
+    int av_offset_ms;
+    int64_t video_capture_ns[VIDEO_TIMESTAMP_HISTORY];
+    // Capture time of the oldest sample in audio_ring. Audio encoder thread only.
+    int64_t audio_clock_ns;
+    int audio_clock_set;
+    int64_t audio_resyncs;
+
+    // Layout of the frames handed in from Java.
+    int input_format;
+    int input_frame_bytes;
+    int y_stride;
+    int uv_stride;
+    // Where the byte[] entry points copy a frame or a chunk of PCM, so that no array stays
+    // pinned while the encoders run.
+    unsigned char *input_copy;
+    short *audio_input_copy;
+
+    // Buffers for UV format conversion
+    unsigned char *u_buf;
+    unsigned char *v_buf;
+    YuvConverter *yuv_converter;
+
+    // Encoder inputs and outputs, allocated once in init and reused for every frame.
+    AVFrame *video_frame;
+    unsigned char *video_out;
+    int video_out_size;
+    // Once the encoder has been reopened, the FLV sequence header no longer matches it, so SPS
+    // and PPS go in front of every keyframe. Frames are encoded this far into video_out to
+    // leave room.
+    int video_header_room;
+    // The next frame is forced to be an IDR. Set from any thread, cleared by the encoder thread.
+    int force_idr;
+    AVPacket video_pkt;
+    unsigned char *audio_out;
+    AVPacket audio_pkt;
+
+    // Video and audio are encoded on separate threads. The sync state above and the order
+    // packets enter the writer queues are guarded by this lock.
+    pthread_mutex_t mux_mutex;
+
+    OutputSink sinks[MAX_SINKS];
+    int num_sinks;
+    // Set while recording. Attached and detached with mux_mutex held.
+    DvrRecorder *dvr;
+    int writer_low_watermark;
+    int writer_high_watermark;
+    // Where network sinks spill what doesn't fit their queue while disconnected; NULL for
+    // memory only.
+    char *backlog_directory;
+    int64_t backlog_max_bytes;
+    int backlog_max_catchup_ms;
+
+    // Bitrate requested by setVideoBitrate, applied by the encoder thread before its next frame.
+    int pending_video_bitrate;
+
+    int64_t audio_samples_written;
+    int audio_sample_rate;
+    // Captured PCM as set by setAudioInput; 0 until then, which means mono at the encoder rate.
+    int audio_input_rate;
+    int audio_input_channels;
+    AudioConditioner *audio_conditioner;
+    AudioRing audio_ring;
+} EncoderSession;
+
+static EncoderSession *get_session(jlong handle) {
+    return (EncoderSession *) (intptr_t) handle;
+}
+
+// Returns the sink at index, or throws IllegalArgumentException and returns NULL.
+static OutputSink *get_sink(JNIEnv *env, jlong handle, jint index) {
+    EncoderSession *session = get_session(handle);
+    if (index < 0 || index >= session->num_sinks) {
+        (*env)->ThrowNew(env, illegal_argument_class, "sink index out of range");
+        return NULL;
+    }
+    return &session->sinks[index];
+}
+
+static unsigned int next_power_of_two(unsigned int n) {
+    unsigned int size = 1;
+    while (size < n) {
+        size <<= 1;
     }
-    for (int i = 0; i < num_samples; i++) {
-        audio_buf[audio_buf_size++] = audio[i];
+    return size;
+}
+
+// Sizes the ring to hold two conditioned Java buffers on top of a full encoder frame, so the
+// consumer can fall a whole read behind without the producer overflowing.
+static int AudioRing_Init(AudioRing *ring, int frame_size, int chunk_samples) {
+    unsigned int capacity = next_power_of_two(FFMAX(2 * chunk_samples + frame_size,
+                                                    4 * frame_size));
+    ring->data = (float *) tracked_malloc(capacity * sizeof(float));
+    ring->frame = (float *) tracked_malloc(frame_size * sizeof(float));
+    if (!ring->data || !ring->frame) {
+        av_freep(&ring->data);
+        av_freep(&ring->frame);
+        return -1;
     }
+    ring->mask = capacity - 1;
+    ring->head = 0;
+    ring->tail = 0;
+    ring->frame_size = frame_size;
+    ring->overflows = 0;
+    LOGI("audio ring: %u samples for frame size %i", capacity, frame_size);
+    return 0;
 }
 
-int AudioBuffer_Size() { return audio_buf_size; }
+static void AudioRing_Free(AudioRing *ring) {
+    av_freep(&ring->data);
+    av_freep(&ring->frame);
+}
 
-short *AudioBuffer_Get() { return audio_buf; }
+static unsigned int AudioRing_Size(AudioRing *ring) {
+    return __atomic_load_n(&ring->tail, __ATOMIC_ACQUIRE) -
+           __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE);
+}
 
-void AudioBuffer_Pop(int num_samples) {
-    if (num_samples > audio_buf_size) {
-        LOGI("Audio buffer Pop WTF: %i vs %i", num_samples, audio_buf_size);
-        return;
+// Appends samples. What doesn't fit is dropped and counted as an overflow.
+static void AudioRing_Push(AudioRing *ring, const float *audio, unsigned int num_samples) {
+    unsigned int capacity = ring->mask + 1;
+    unsigned int tail = ring->tail;
+    unsigned int space = capacity - (tail - __atomic_load_n(&ring->head, __ATOMIC_ACQUIRE));
+    if (num_samples > space) {
+        ring->overflows++;
+        LOGI("AUDIO BUFFER OVERFLOW: dropping %u of %u samples", num_samples - space, num_samples);
+        num_samples = space;
     }
-    memmove(audio_buf, audio_buf + num_samples, num_samples * sizeof(short));
-    audio_buf_size -= num_samples;
+
+    unsigned int start = tail & ring->mask;
+    unsigned int first = FFMIN(num_samples, capacity - start);
+    memcpy(ring->data + start, audio, first * sizeof(float));
+    memcpy(ring->data, audio + first, (num_samples - first) * sizeof(float));
+    __atomic_store_n(&ring->tail, tail + num_samples, __ATOMIC_RELEASE);
 }
 
-void AudioBuffer_Clear() {
-    memset(audio_buf, 0, sizeof(audio_buf));
-    audio_buf_size = 0;
+// Returns the next frame_size samples without consuming them, or NULL if a full frame isn't
+// buffered yet.
+static const float *AudioRing_PeekFrame(AudioRing *ring) {
+    unsigned int head = ring->head;
+    if (__atomic_load_n(&ring->tail, __ATOMIC_ACQUIRE) - head < (unsigned int) ring->frame_size) {
+        return NULL;
+    }
+
+    unsigned int start = head & ring->mask;
+    unsigned int first = ring->mask + 1 - start;
+    if (first >= (unsigned int) ring->frame_size) {
+        return ring->data + start;
+    }
+    memcpy(ring->frame, ring->data + start, first * sizeof(float));
+    memcpy(ring->frame + first, ring->data, (ring->frame_size - first) * sizeof(float));
+    return ring->frame;
+}
+
+static void AudioRing_PopFrame(AudioRing *ring) {
+    __atomic_store_n(&ring->head, ring->head + ring->frame_size, __ATOMIC_RELEASE);
 }
 
 static void log_callback(void *ptr, int level, const char *fmt, va_list vl) {
@@ -107,344 +288,1022 @@ static void log_callback(void *ptr, int level, const char *fmt, va_list vl) {
     LOGI(x);
 }
 
-JNIEXPORT jboolean
-        JNICALL Java_com_google_android_apps_watchme_Ffmpeg_init(JNIEnv *env, jobject thiz,
-                                                                 jint width, jint height,
-                                                                 jint audio_sample_rate_param,
-                                                                 jstring rtmp_url) {
-    avcodec_register_all();
-    av_register_all();
-    av_log_set_callback(log_callback);
+// Codecs are opened and closed from several sessions at once; older ffmpeg needs a lock
+// manager for that.
+static int lock_manager(void **mutex, enum AVLockOp op) {
+    switch (op) {
+        case AV_LOCK_CREATE:
+            *mutex = av_malloc(sizeof(pthread_mutex_t));
+            if (!*mutex) {
+                return 1;
+            }
+            return pthread_mutex_init((pthread_mutex_t *) *mutex, NULL) != 0;
+        case AV_LOCK_OBTAIN:
+            return pthread_mutex_lock((pthread_mutex_t *) *mutex) != 0;
+        case AV_LOCK_RELEASE:
+            return pthread_mutex_unlock((pthread_mutex_t *) *mutex) != 0;
+        case AV_LOCK_DESTROY:
+            pthread_mutex_destroy((pthread_mutex_t *) *mutex);
+            av_freep(mutex);
+            return 0;
+    }
+    return 1;
+}
 
-    fmt_context = avformat_alloc_context();
-    AVOutputFormat *ofmt = av_guess_format("flv", NULL, NULL);
-    if (ofmt) {
-        LOGI("av_guess_format returned %s", ofmt->long_name);
+// Runs on a sink's writer thread, which attaches itself to the VM the first time it reports.
+static void on_writer_watermark(void *opaque, int depth, int above_high) {
+    OutputSink *sink = (OutputSink *) opaque;
+    EncoderSession *session = (EncoderSession *) sink->owner;
+    JNIEnv *env;
+    if ((*java_vm)->AttachCurrentThread(java_vm, &env, NULL) != JNI_OK) {
+        LOGI("Could not attach the writer thread");
+        return;
+    }
+    (*env)->CallVoidMethod(env, session->java_owner, on_writer_watermark_method, sink->index,
+                           depth, above_high ? JNI_TRUE : JNI_FALSE);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionDescribe(env);
+        (*env)->ExceptionClear(env);
+    }
+}
+
+static void on_sink_connection(void *opaque, int connected) {
+    OutputSink *sink = (OutputSink *) opaque;
+    EncoderSession *session = (EncoderSession *) sink->owner;
+    JNIEnv *env;
+    if ((*java_vm)->AttachCurrentThread(java_vm, &env, NULL) != JNI_OK) {
+        LOGI("Could not attach the writer thread");
+        return;
+    }
+    (*env)->CallVoidMethod(env, session->java_owner, on_sink_connection_method, sink->index,
+                           connected ? JNI_TRUE : JNI_FALSE);
+    if ((*env)->ExceptionCheck(env)) {
+        (*env)->ExceptionDescribe(env);
+        (*env)->ExceptionClear(env);
+    }
+}
+
+static void on_dvr_packet(void *opaque, const AVPacket *pkt) {
+    OutputSink *sink = (OutputSink *) opaque;
+    DvrRecorder *dvr = (DvrRecorder *) sink->owner;
+    dvr_ring_before_packet(&dvr->ring, sink->writer.fmt_context, pkt, pkt->stream_index == 0);
+}
+
+static void on_writer_thread_exit(void *opaque) {
+    JNIEnv *env;
+    if ((*java_vm)->GetEnv(java_vm, (void **) &env, JNI_VERSION_1_6) == JNI_OK) {
+        (*java_vm)->DetachCurrentThread(java_vm);
+    }
+}
+
+// Sets up the session's H.264 encoder and opens it. Called again by reconfigure to reopen it
+// with new settings.
+static int open_video_codec(EncoderSession *session, int width, int height, int bitrate,
+                            int gop_size, int frame_rate) {
+    VideoEncoderSettings settings;
+    video_encoder_default_settings(&settings, width, height, bitrate, gop_size, frame_rate);
+    return video_encoder_open(session->video_codec_ctx, &settings);
+}
+
+// (Re)allocates everything sized by the input frame. input_format must be set.
+static int configure_video_input(EncoderSession *session, int width, int height) {
+    av_freep(&session->u_buf);
+    av_freep(&session->v_buf);
+    av_freep(&session->input_copy);
+    av_freep(&session->video_out);
+    yuv_converter_destroy(session->yuv_converter);
+    session->yuv_converter = NULL;
+
+    int frame_size = width * height;
+    if (session->input_format == IMAGE_FORMAT_YV12) {
+        // YV12 planes are already separate, so the encoder reads them in place. Android pads
+        // each row to 16 bytes.
+        session->y_stride = FFALIGN(width, 16);
+        session->uv_stride = FFALIGN(session->y_stride / 2, 16);
+        session->input_frame_bytes = session->y_stride * height + session->uv_stride * height;
     } else {
-        LOGI("av_guess_format fail");
-        return JNI_FALSE;
+        session->y_stride = width;
+        session->uv_stride = width / 2;
+        session->input_frame_bytes = frame_size + frame_size / 2;
+
+        // Initialize buffers for UV format conversion
+        session->u_buf = (unsigned char *) tracked_malloc(frame_size / 4);
+        session->v_buf = (unsigned char *) tracked_malloc(frame_size / 4);
+        session->yuv_converter = yuv_converter_create(width, height);
+        if (!session->u_buf || !session->v_buf || !session->yuv_converter) {
+            return -1;
+        }
     }
 
-    fmt_context->oformat = ofmt;
-    LOGI("creating video stream");
-    video_stream = av_new_stream(fmt_context, 0);
+    session->input_copy = (unsigned char *) tracked_malloc(session->input_frame_bytes);
+    session->video_out_size = frame_size + (frame_size / 2);
+    session->video_out = (unsigned char *) tracked_malloc(session->video_header_room +
+                                                          session->video_out_size);
+    return session->input_copy && session->video_out ? 0 : -1;
+}
 
-    if (enable_audio) {
-        LOGI("creating audio stream");
-        audio_stream = av_new_stream(fmt_context, 1);
+static jlong ffmpeg_create(JNIEnv *env, jclass clazz, jobject owner) {
+    EncoderSession *session = (EncoderSession *) av_mallocz(sizeof(EncoderSession));
+    if (!session) {
+        return 0;
     }
+    session->java_owner = (*env)->NewGlobalRef(env, owner);
+    pthread_mutex_init(&session->mux_mutex, NULL);
+    session->writer_low_watermark = WRITER_QUEUE_SIZE / 4;
+    session->writer_high_watermark = WRITER_QUEUE_SIZE * 3 / 4;
+    session->backlog_max_catchup_ms = DEFAULT_MAX_CATCHUP_MS;
+    return (jlong) (intptr_t) session;
+}
+
+// Detaches the recorder, then writes out what it has queued and closes its last segment.
+static void stop_dvr(EncoderSession *session) {
+    pthread_mutex_lock(&session->mux_mutex);
+    DvrRecorder *dvr = session->dvr;
+    session->dvr = NULL;
+    pthread_mutex_unlock(&session->mux_mutex);
+    if (dvr) {
+        output_sink_close(&dvr->sink);
+        dvr_ring_close(&dvr->ring);
+        av_free(dvr);
+    }
+}
+
+// Stops the sinks, then closes the codecs and frees what init allocated. Also undoes an init
+// that failed halfway, so it only touches what was set up and clears what it frees.
+static void close_session(EncoderSession *session) {
+    stop_dvr(session);
+    // Sinks that never opened are skipped.
+    for (int i = 0; i < session->num_sinks; i++) {
+        output_sink_close(&session->sinks[i]);
+    }
+    if (session->video_codec_ctx) {
+        avcodec_close(session->video_codec_ctx);
+        av_freep(&session->video_codec_ctx);
+    }
+    if (session->audio_codec_ctx) {
+        avcodec_close(session->audio_codec_ctx);
+        av_freep(&session->audio_codec_ctx);
+    }
+    AudioRing_Free(&session->audio_ring);
+    av_freep(&session->audio_input_copy);
+    audio_conditioner_destroy(session->audio_conditioner);
+    session->audio_conditioner = NULL;
+    av_freep(&session->u_buf);
+    av_freep(&session->v_buf);
+    av_freep(&session->input_copy);
+    yuv_converter_destroy(session->yuv_converter);
+    session->yuv_converter = NULL;
+    avcodec_free_frame(&session->video_frame);
+    av_freep(&session->video_out);
+    av_freep(&session->audio_out);
+    session->initialized = 0;
+}
+
+static void ffmpeg_release(JNIEnv *env, jclass clazz, jlong handle) {
+    EncoderSession *session = get_session(handle);
+    // Released without a shutdown, or after a failed init: nothing may outlive the session.
+    if (session->initialized) {
+        close_session(session);
+    }
+    (*env)->DeleteGlobalRef(env, session->java_owner);
+    pthread_mutex_destroy(&session->mux_mutex);
+    av_free(session->backlog_directory);
+    av_free(session);
+}
+
+// Opens one of the outputs given to init and starts its writer. Network outputs reconnect on
+// their own if the connection drops.
+static int open_sink(EncoderSession *session, OutputSink *sink, const char *url) {
+    int network = output_sink_is_network_url(url);
+    PacketWriterCallbacks callbacks = {on_writer_watermark, on_writer_thread_exit, NULL,
+                                       network ? output_sink_reconnect : NULL,
+                                       on_sink_connection, sink};
+    if (output_sink_open(sink, url, NULL, session->video_codec_ctx, session->audio_codec_ctx,
+                         WRITER_QUEUE_SIZE, session->writer_low_watermark,
+                         session->writer_high_watermark, &callbacks) < 0) {
+        return -1;
+    }
+    if (network) {
+        char spill_path[512];
+        if (session->backlog_directory) {
+            snprintf(spill_path, sizeof(spill_path), "%s/backlog-%i.bin",
+                     session->backlog_directory, sink->index);
+        }
+        if (packet_writer_set_backlog(&sink->writer,
+                                      session->backlog_directory ? spill_path : NULL,
+                                      session->backlog_max_bytes,
+                                      session->backlog_max_catchup_ms) < 0) {
+            LOGI("Sink %i keeps its backlog in memory only", sink->index);
+        }
+    }
+    if (output_sink_start(sink) < 0) {
+        output_sink_close(sink);
+        return -1;
+    }
+    return 0;
+}
+
+// Does the work of init. On failure, whatever it already set up is left for close_session.
+static int init_session(JNIEnv *env, EncoderSession *session, jint width, jint height,
+                        jint pixel_format, jint audio_sample_rate_param, jint audio_buffer_samples,
+                        jobjectArray urls, int num_urls) {
 
     // Open Video Codec.
     // ======================
-    AVCodec *video_codec = avcodec_find_encoder(AV_CODEC_ID_H264);
-    if (!video_codec) {
-        LOGI("Did not find the video codec");
-        return JNI_FALSE;  // leak!
-    } else {
-        LOGI("Video codec found!");
-    }
-    AVCodecContext *video_codec_ctx = video_stream->codec;
-    video_codec_ctx->codec_id = video_codec->id;
-    video_codec_ctx->codec_type = AVMEDIA_TYPE_VIDEO;
-    video_codec_ctx->level = 31;
-
-    video_codec_ctx->width = width;
-    video_codec_ctx->height = height;
-    video_codec_ctx->pix_fmt = PIX_FMT_YUV420P;
-    video_codec_ctx->rc_max_rate = 0;
-    video_codec_ctx->rc_buffer_size = 0;
-    video_codec_ctx->gop_size = 12;
-    video_codec_ctx->max_b_frames = 0;
-    video_codec_ctx->slices = 8;
-    video_codec_ctx->b_frame_strategy = 1;
-    video_codec_ctx->coder_type = 0;
-    video_codec_ctx->me_cmp = 1;
-    video_codec_ctx->me_range = 16;
-    video_codec_ctx->qmin = 10;
-    video_codec_ctx->qmax = 51;
-    video_codec_ctx->keyint_min = 25;
-    video_codec_ctx->refs = 3;
-    video_codec_ctx->trellis = 0;
-    video_codec_ctx->scenechange_threshold = 40;
-    video_codec_ctx->flags |= CODEC_FLAG_LOOP_FILTER;
-    video_codec_ctx->me_method = ME_HEX;
-    video_codec_ctx->me_subpel_quality = 6;
-    video_codec_ctx->i_quant_factor = 0.71;
-    video_codec_ctx->qcompress = 0.6;
-    video_codec_ctx->max_qdiff = 4;
-    video_codec_ctx->time_base.den = 10;
-    video_codec_ctx->time_base.num = 1;
-    video_codec_ctx->bit_rate = 3200 * 1000;
-    video_codec_ctx->bit_rate_tolerance = 0;
-    video_codec_ctx->flags2 |= 0x00000100;
-
-    fmt_context->bit_rate = 4000 * 1000;
-
-    av_opt_set(video_codec_ctx, "partitions", "i8x8,i4x4,p8x8,b8x8", 0);
-    av_opt_set_int(video_codec_ctx, "direct-pred", 1, 0);
-    av_opt_set_int(video_codec_ctx, "rc-lookahead", 0, 0);
-    av_opt_set_int(video_codec_ctx, "fast-pskip", 1, 0);
-    av_opt_set_int(video_codec_ctx, "mixed-refs", 1, 0);
-    av_opt_set_int(video_codec_ctx, "8x8dct", 0, 0);
-    av_opt_set_int(video_codec_ctx, "weightb", 0, 0);
-
-    if (fmt_context->oformat->flags & AVFMT_GLOBALHEADER)
-        video_codec_ctx->flags |= CODEC_FLAG_GLOBAL_HEADER;
-
-    LOGI("Opening video codec");
-    AVDictionary *vopts = NULL;
-    av_dict_set(&vopts, "profile", "main", 0);
-    //av_dict_set(&vopts, "vprofile", "main", 0);
-    av_dict_set(&vopts, "rc-lookahead", 0, 0);
-    av_dict_set(&vopts, "tune", "film", 0);
-    av_dict_set(&vopts, "preset", "ultrafast", 0);
-    av_opt_set(video_codec_ctx->priv_data, "tune", "film", 0);
-    av_opt_set(video_codec_ctx->priv_data, "preset", "ultrafast", 0);
-    av_opt_set(video_codec_ctx->priv_data, "tune", "film", 0);
-    int open_res = avcodec_open2(video_codec_ctx, video_codec, &vopts);
-    if (open_res < 0) {
-        LOGI("Error opening video codec: %i", open_res);
-        return JNI_FALSE;   // leak!
+    session->video_codec_ctx = avcodec_alloc_context3(NULL);
+    if (!session->video_codec_ctx ||
+        open_video_codec(session, width, height, INITIAL_VIDEO_BITRATE, INITIAL_GOP_SIZE,
+                         INITIAL_FRAME_RATE) < 0) {
+        return -1;
     }
 
     // Open Audio Codec.
     // ======================
 
     if (enable_audio) {
-        AudioBuffer_Clear();
-        audio_sample_rate = audio_sample_rate_param;
-        AVCodec *audio_codec = avcodec_find_encoder(AV_CODEC_ID_AAC);
-        if (!audio_codec) {
-            LOGI("Did not find the audio codec");
-            return JNI_FALSE;  // leak!
+        session->audio_sample_rate = audio_sample_rate_param;
+        session->audio_codec_ctx = audio_encoder_open(audio_sample_rate_param);
+        if (!session->audio_codec_ctx) {
+            return -1;
+        }
+        AVCodecContext *audio_codec_ctx = session->audio_codec_ctx;
+
+        int input_rate = session->audio_input_rate > 0 ? session->audio_input_rate
+                                                       : audio_sample_rate_param;
+        int input_channels = session->audio_input_channels > 0 ? session->audio_input_channels
+                                                               : 1;
+        LOGI("Audio input: %i Hz, %i channel(s)", input_rate, input_channels);
+        session->audio_conditioner = audio_conditioner_create(input_rate, input_channels,
+                                                              audio_sample_rate_param,
+                                                              audio_buffer_samples);
+        if (session->audio_conditioner) {
+            session->audio_input_copy = (short *) tracked_malloc(
+                    audio_conditioner_max_input(session->audio_conditioner) * sizeof(short));
+        }
+        if (!session->audio_conditioner || !session->audio_input_copy ||
+            AudioRing_Init(&session->audio_ring, audio_codec_ctx->frame_size,
+                           audio_conditioner_max_output(session->audio_conditioner)) < 0) {
+            LOGI("Error allocating audio ring");
+            return -1;
+        }
+    }
+
+    session->pts = 0;
+    session->force_idr = 0;
+    session->clock_base_set = 0;
+    session->last_video_pts_ms = -1;
+    session->last_audio_pts_ms = -1;
+    session->av_offset_ms = 0;
+    session->audio_clock_set = 0;
+    session->audio_resyncs = 0;
+    session->pending_video_bitrate = 0;
+    session->audio_samples_written = 0;
+
+    session->input_format = pixel_format;
+    session->video_header_room = 0;
+    if (configure_video_input(session, width, height) < 0) {
+        LOGI("ERROR: Could not allocate video buffers");
+        return -1;
+    }
+
+    tracked_count_allocation();
+    session->video_frame = avcodec_alloc_frame();
+    session->audio_out = (unsigned char *) tracked_malloc(AUDIO_OUT_BUF_SIZE);
+    if (!session->video_frame || !session->audio_out) {
+        LOGI("ERROR: Could not allocate encoder buffers");
+        return -1;
+    }
+
+    // A sink that can't be opened stays closed and the others carry on without it; only losing
+    // all of them fails init. All of them are counted from the start, so that a failure halfway
+    // closes the ones already writing.
+    for (int i = 0; i < num_urls; i++) {
+        OutputSink *sink = &session->sinks[i];
+        memset(sink, 0, sizeof(OutputSink));
+        sink->index = i;
+        sink->owner = session;
+    }
+    session->num_sinks = num_urls;
+    int open_sinks = 0;
+    for (int i = 0; i < num_urls; i++) {
+        OutputSink *sink = &session->sinks[i];
+        jstring url_string = (jstring) (*env)->GetObjectArrayElement(env, urls, i);
+        if (url_string == NULL) {
+            continue;
+        }
+        const char *url = (*env)->GetStringUTFChars(env, url_string, NULL);
+        if (url == NULL) {
+            (*env)->DeleteLocalRef(env, url_string);
+            return -1;
+        }
+        if (open_sink(session, sink, url) == 0) {
+            open_sinks++;
         } else {
-            LOGI("Audio codec found!");
+            LOGI("ERROR: Could not open sink %i", i);
         }
-        AVCodecContext *audio_codec_ctx = audio_stream->codec;
-        audio_codec_ctx->codec_id = audio_codec->id;
-        audio_codec_ctx->codec_type = AVMEDIA_TYPE_AUDIO;
-        audio_codec_ctx->bit_rate = 128000;
-        audio_codec_ctx->bit_rate_tolerance = 16000;
-        audio_codec_ctx->channels = 1;
-        audio_codec_ctx->profile = FF_PROFILE_AAC_LOW;
-        audio_codec_ctx->sample_fmt = AV_SAMPLE_FMT_FLT;
-        audio_codec_ctx->sample_rate = 44100;
-
-        LOGI("Opening audio codec");
-        AVDictionary *opts = NULL;
-        av_dict_set(&opts, "strict", "experimental", 0);
-        open_res = avcodec_open2(audio_codec_ctx, audio_codec, &opts);
-        LOGI("audio frame size: %i", audio_codec_ctx->frame_size);
-
-        if (open_res < 0) {
-            LOGI("Error opening audio codec: %i", open_res);
-            return JNI_FALSE;   // leak!
+        (*env)->ReleaseStringUTFChars(env, url_string, url);
+        (*env)->DeleteLocalRef(env, url_string);
+    }
+    if (open_sinks == 0) {
+        return -1;
+    }
+
+    LOGI("ffmpeg encoding init done, %i of %i sinks open", open_sinks, num_urls);
+    return 0;
+}
+
+static jboolean ffmpeg_init(JNIEnv *env, jclass clazz, jlong handle, jint width, jint height,
+                            jint pixel_format, jint audio_sample_rate_param, jint audio_buffer_samples,
+                            jobjectArray urls) {
+    EncoderSession *session = get_session(handle);
+
+    int num_urls = (*env)->GetArrayLength(env, urls);
+    if (num_urls < 1 || num_urls > MAX_SINKS) {
+        (*env)->ThrowNew(env, illegal_argument_class, "between 1 and 4 URLs are supported");
+        return JNI_FALSE;
+    }
+
+    session->initialized = 1;
+    if (init_session(env, session, width, height, pixel_format, audio_sample_rate_param,
+                     audio_buffer_samples, urls, num_urls) < 0) {
+        close_session(session);
+        return JNI_FALSE;
+    }
+    return JNI_TRUE;
+}
+
+static void ffmpeg_shutdown(JNIEnv *env, jclass clazz, jlong handle) {
+    close_session(get_session(handle));
+}
+
+// Hands a packet to every sink. Each copies it into its own queue, so the encoder's buffer can be
+// reused right away. Call with mux_mutex held.
+static void fan_out_packet(EncoderSession *session, const AVPacket *pkt, int is_video) {
+    for (int i = 0; i < session->num_sinks; i++) {
+        if (output_sink_enqueue(&session->sinks[i], pkt, is_video) != 0) {
+            LOGI("Sink %i queue full, dropped %s frame", i, is_video ? "video" : "audio");
         }
     }
+    if (session->dvr && output_sink_enqueue(&session->dvr->sink, pkt, is_video) != 0) {
+        LOGI("Recorder queue full, dropped %s frame", is_video ? "video" : "audio");
+    }
+}
 
-    const jbyte *url = (*env)->GetStringUTFChars(env, rtmp_url, NULL);
+// Converts a capture time to a packet timestamp, strictly after last_pts_ms. The first call
+// sets the origin. Call with mux_mutex held.
+static int64_t stream_time_ms(EncoderSession *session, int64_t capture_ns, int64_t last_pts_ms) {
+    if (!session->clock_base_set) {
+        session->clock_base_ns = capture_ns;
+        session->clock_base_set = 1;
+    }
+    int64_t pts_ms = (capture_ns - session->clock_base_ns) / NANOS_PER_MILLI;
+    if (pts_ms <= last_pts_ms) {
+        pts_ms = last_pts_ms + 1;
+    }
+    return pts_ms;
+}
 
-    // Point to an output file
-    if (!(ofmt->flags & AVFMT_NOFILE)) {
-        if (avio_open(&fmt_context->pb, url, URL_WRONLY) < 0) {
-            LOGI("ERROR: Could not open file %s", url);
-            return JNI_FALSE;  // leak!
+// Queues the compressed_length bytes x264 left at video_out + video_header_room.
+// timestamp_ns is the capture time of the frame just passed in.
+static void mux_video_packet(EncoderSession *session, int compressed_length,
+                             int64_t timestamp_ns) {
+    AVCodecContext *video_codec_ctx = session->video_codec_ctx;
+
+    // x264 may hand back an earlier frame than the one just passed in.
+    AVFrame *coded_frame = video_codec_ctx->coded_frame;
+    if (coded_frame && coded_frame->pts != AV_NOPTS_VALUE && coded_frame->pts < session->pts &&
+        coded_frame->pts >= session->pts - VIDEO_TIMESTAMP_HISTORY) {
+        timestamp_ns = session->video_capture_ns[coded_frame->pts % VIDEO_TIMESTAMP_HISTORY];
+    }
+    int key_frame = coded_frame && coded_frame->key_frame;
+
+    AVPacket *pkt = &session->video_pkt;
+    av_init_packet(pkt);
+    pkt->data = session->video_out + session->video_header_room;
+    pkt->size = compressed_length;
+    if (key_frame && session->video_header_room > 0) {
+        // The muxer turns the Annex B start codes into length prefixes, headers included.
+        pkt->data -= video_codec_ctx->extradata_size;
+        pkt->size += video_codec_ctx->extradata_size;
+        memcpy(pkt->data, video_codec_ctx->extradata, video_codec_ctx->extradata_size);
+    }
+    if (key_frame) {
+        pkt->flags |= 0x0001;
+    }
+    // Every sink numbers its streams the same way.
+    pkt->stream_index = 0;
+
+    // The audio encoder runs on its own thread; only the shared clock needs the lock.
+    pthread_mutex_lock(&session->mux_mutex);
+    session->last_video_pts_ms = stream_time_ms(session, timestamp_ns,
+                                                session->last_video_pts_ms);
+    pkt->pts = pkt->dts = session->last_video_pts_ms;
+    if (session->last_audio_pts_ms >= 0) {
+        session->av_offset_ms = (int) (session->last_audio_pts_ms - session->last_video_pts_ms);
+    }
+    fan_out_packet(session, pkt, 1);
+    pthread_mutex_unlock(&session->mux_mutex);
+}
+
+// Encodes one frame of input_frame_bytes bytes.
+static int encode_video_frame(EncoderSession *session, unsigned char *yuv_data,
+                              int64_t timestamp_ns) {
+    AVCodecContext *video_codec_ctx = session->video_codec_ctx;
+    int bitrate = __atomic_exchange_n(&session->pending_video_bitrate, 0, __ATOMIC_ACQUIRE);
+    if (bitrate > 0) {
+        // libx264 compares these against its own parameters on every frame and reconfigures
+        // itself when they change. A one second VBV buffer keeps the rate close to the target.
+        video_codec_ctx->bit_rate = bitrate;
+        video_codec_ctx->rc_max_rate = bitrate;
+        video_codec_ctx->rc_buffer_size = bitrate;
+    }
+    //LOGI("Yuv size: %i w: %i h: %i", yuv_length, video_codec_ctx->width, video_codec_ctx->height);
+
+    AVFrame *source = session->video_frame;
+    source->data[0] = yuv_data;
+    source->linesize[0] = session->y_stride;
+    source->linesize[1] = session->uv_stride;
+    source->linesize[2] = session->uv_stride;
+    if (session->input_format == IMAGE_FORMAT_YV12) {
+        // Y, then V, then U.
+        int uv_plane_size = session->uv_stride * (video_codec_ctx->height / 2);
+        source->data[2] = yuv_data + session->y_stride * video_codec_ctx->height;
+        source->data[1] = source->data[2] + uv_plane_size;
+    } else {
+        // Convert YUV from NV21 to I420. Y channel is the same so we don't touch it,
+        // we just have to deinterleave UV.
+        const unsigned char *uv = yuv_data + video_codec_ctx->width * video_codec_ctx->height;
+        yuv_converter_nv21_to_i420(session->yuv_converter, uv, session->u_buf, session->v_buf);
+        source->data[1] = session->u_buf;
+        source->data[2] = session->v_buf;
+    }
+
+    // only for bitrate regulation. irrelevant for sync.
+    source->pts = session->pts;
+    session->video_capture_ns[session->pts % VIDEO_TIMESTAMP_HISTORY] = timestamp_ns;
+    session->pts++;
+    source->pict_type = __atomic_exchange_n(&session->force_idr, 0, __ATOMIC_ACQUIRE) ?
+                        AV_PICTURE_TYPE_I : AV_PICTURE_TYPE_NONE;
+
+    int compressed_length = avcodec_encode_video(video_codec_ctx,
+                                                 session->video_out + session->video_header_room,
+                                                 session->video_out_size, source);
+    if (compressed_length > 0) {
+        mux_video_packet(session, compressed_length, timestamp_ns);
+    } else {
+        LOGI("??? compressed_length <= 0");
+    }
+
+    return compressed_length;
+}
+
+// Moves the audio clock to timestamp_ns, the capture time of the next chunk, if it has drifted
+// too far from the samples already queued.
+static void sync_audio_clock(EncoderSession *session, int64_t timestamp_ns) {
+    AudioRing *audio_ring = &session->audio_ring;
+    int audio_sample_rate = session->audio_sample_rate;
+
+    int64_t queued_ns = AudioRing_Size(audio_ring) * NANOS_PER_SECOND / audio_sample_rate;
+    int64_t drift_ns = timestamp_ns - (session->audio_clock_ns + queued_ns);
+    if (!session->audio_clock_set || drift_ns > AUDIO_RESYNC_THRESHOLD_NS ||
+        drift_ns < -AUDIO_RESYNC_THRESHOLD_NS) {
+        if (session->audio_clock_set) {
+            session->audio_resyncs++;
+        }
+        session->audio_clock_ns = timestamp_ns - queued_ns;
+        session->audio_clock_set = 1;
+    }
+}
+
+// Conditions at most audio_conditioner_max_input() samples of captured PCM and queues them.
+static void queue_audio(EncoderSession *session, const short *audio, int length) {
+    const float *samples;
+    int num_samples = audio_conditioner_process(session->audio_conditioner, audio, length,
+                                                &samples);
+    AudioRing_Push(&session->audio_ring, samples, num_samples);
+}
+
+// Encodes every complete AAC frame queued.
+static int encode_queued_audio(EncoderSession *session) {
+    AVCodecContext *audio_codec_ctx = session->audio_codec_ctx;
+    AudioRing *audio_ring = &session->audio_ring;
+    int audio_sample_rate = session->audio_sample_rate;
+
+    int total_compressed = 0;
+    while (AudioRing_Size(audio_ring) >= audio_codec_ctx->frame_size) {
+        // The encoder was opened for float samples; the old API types them as short anyway.
+        const float *frame = AudioRing_PeekFrame(audio_ring);
+        int compressed_length = avcodec_encode_audio(audio_codec_ctx, session->audio_out,
+                                                     AUDIO_OUT_BUF_SIZE, (const short *) frame);
+
+        total_compressed += compressed_length;
+        session->audio_samples_written += audio_codec_ctx->frame_size;
+
+        int64_t frame_capture_ns = session->audio_clock_ns;
+        session->audio_clock_ns +=
+                audio_codec_ctx->frame_size * NANOS_PER_SECOND / audio_sample_rate;
+        if (compressed_length > 0) {
+            AVPacket *pkt = &session->audio_pkt;
+            av_init_packet(pkt);
+            pkt->size = compressed_length;
+            //LOGI("audio_samples_written: %i  comp_length: %i", (int)audio_samples_written, (int)compressed_length);
+            pkt->flags |= 0x0001;
+            pkt->stream_index = 1;
+            pkt->data = session->audio_out;
+
+            pthread_mutex_lock(&session->mux_mutex);
+            session->last_audio_pts_ms = stream_time_ms(session, frame_capture_ns,
+                                                        session->last_audio_pts_ms);
+            pkt->pts = pkt->dts = session->last_audio_pts_ms;
+            fan_out_packet(session, pkt, 0);
+            pthread_mutex_unlock(&session->mux_mutex);
+        }
+        AudioRing_PopFrame(audio_ring);
+    }
+
+    return total_compressed;
+}
+
+// Conditions length samples of captured PCM, the first captured at timestamp_ns, queues them
+// and encodes every complete AAC frame.
+static int encode_audio_frame(EncoderSession *session, const short *audio, int length,
+                              int64_t timestamp_ns) {
+    sync_audio_clock(session, timestamp_ns);
+    // The conditioner's buffers are sized for the chunk size given to init.
+    int max_chunk = audio_conditioner_max_input(session->audio_conditioner);
+    while (length > 0) {
+        int chunk = FFMIN(length, max_chunk);
+        queue_audio(session, audio, chunk);
+        audio += chunk;
+        length -= chunk;
+    }
+    return encode_queued_audio(session);
+}
+
+// Returns the address of a direct buffer holding at least min_bytes, or throws
+// IllegalArgumentException and returns NULL.
+static void *get_direct_buffer(JNIEnv *env, jobject buffer, jlong min_bytes) {
+    void *address = (*env)->GetDirectBufferAddress(env, buffer);
+    if (address == NULL) {
+        (*env)->ThrowNew(env, illegal_argument_class, "buffer must be a direct ByteBuffer");
+        return NULL;
+    }
+    if ((*env)->GetDirectBufferCapacity(env, buffer) < min_bytes) {
+        (*env)->ThrowNew(env, illegal_argument_class, "buffer is too small");
+        return NULL;
+    }
+    return address;
+}
+
+static jint ffmpeg_encodeVideoFrame(JNIEnv *env, jclass clazz, jlong handle,
+                                    jbyteArray yuv_image, jlong timestamp_ns) {
+    EncoderSession *session = get_session(handle);
+    if ((*env)->GetArrayLength(env, yuv_image) < session->input_frame_bytes) {
+        (*env)->ThrowNew(env, illegal_argument_class, "frame is too small");
+        return -1;
+    }
+    // The camera only hands out byte[]s, so this is the one copy a frame goes through. Holding the
+    // array in a critical section for the whole encode would stall the GC, and every thread that
+    // allocates, for as long as x264 takes; the copy costs far less and frees the array at once.
+    (*env)->GetByteArrayRegion(env, yuv_image, 0, session->input_frame_bytes,
+                               (jbyte *) session->input_copy);
+    return encode_video_frame(session, session->input_copy, timestamp_ns);
+}
+
+static jint ffmpeg_encodeAudioFrame(JNIEnv *env, jclass clazz, jlong handle,
+                                    jshortArray audio_data, jint length, jlong timestamp_ns) {
+    if (!enable_audio) {
+        return 0;
+    }
+
+    EncoderSession *session = get_session(handle);
+    if (length < 0 || (*env)->GetArrayLength(env, audio_data) < length) {
+        (*env)->ThrowNew(env, illegal_argument_class, "length out of range");
+        return -1;
+    }
+    //LOGI("java audio buffer size: %i", length);
+    // Copied a chunk at a time, as for video, so the array isn't pinned while AAC encodes.
+    sync_audio_clock(session, timestamp_ns);
+    int max_chunk = audio_conditioner_max_input(session->audio_conditioner);
+    for (int offset = 0; offset < length; offset += max_chunk) {
+        int chunk = FFMIN(length - offset, max_chunk);
+        (*env)->GetShortArrayRegion(env, audio_data, offset, chunk, session->audio_input_copy);
+        queue_audio(session, session->audio_input_copy, chunk);
+    }
+    return encode_queued_audio(session);
+}
+
+static jint ffmpeg_encodeAudioFrameDirect(JNIEnv *env, jclass clazz, jlong handle,
+                                          jobject audio_data, jint length, jlong timestamp_ns) {
+    if (!enable_audio) {
+        return 0;
+    }
+
+    short *audio = get_direct_buffer(env, audio_data, (jlong) length * sizeof(short));
+    if (audio == NULL) {
+        return -1;
+    }
+    return encode_audio_frame(get_session(handle), audio, length, timestamp_ns);
+}
+
+static jlong ffmpeg_getAudioOverflowCount(JNIEnv *env, jclass clazz, jlong handle) {
+    return get_session(handle)->audio_ring.overflows;
+}
+
+static jint ffmpeg_getAvOffsetMillis(JNIEnv *env, jclass clazz, jlong handle) {
+    EncoderSession *session = get_session(handle);
+    pthread_mutex_lock(&session->mux_mutex);
+    int offset = session->av_offset_ms;
+    pthread_mutex_unlock(&session->mux_mutex);
+    return offset;
+}
+
+static jlong ffmpeg_getAudioResyncCount(JNIEnv *env, jclass clazz, jlong handle) {
+    return get_session(handle)->audio_resyncs;
+}
+
+static jlong ffmpeg_getNativeAllocationCount(JNIEnv *env, jclass clazz, jlong handle) {
+    return tracked_allocation_count();
+}
+
+static void ffmpeg_setWriterWatermarks(JNIEnv *env, jclass clazz, jlong handle, jint low,
+                                       jint high) {
+    EncoderSession *session = get_session(handle);
+    session->writer_low_watermark = low;
+    session->writer_high_watermark = high;
+    for (int i = 0; i < session->num_sinks; i++) {
+        if (session->sinks[i].open) {
+            packet_writer_set_watermarks(&session->sinks[i].writer, low, high);
         }
     }
-    (*env)->ReleaseStringUTFChars(env, rtmp_url, url);
+}
+
+static void ffmpeg_setVideoBitrate(JNIEnv *env, jclass clazz, jlong handle, jint bitrate) {
+    if (bitrate <= 0) {
+        (*env)->ThrowNew(env, illegal_argument_class, "bitrate must be positive");
+        return;
+    }
+    __atomic_store_n(&get_session(handle)->pending_video_bitrate, bitrate, __ATOMIC_RELEASE);
+}
 
-    LOGI("Writing output header.");
-    // Write file header
-    if (avformat_write_header(fmt_context, NULL) != 0) {
-        LOGI("ERROR: av_write_header failed");
+static jboolean ffmpeg_reconfigure(JNIEnv *env, jclass clazz, jlong handle, jint width,
+                                   jint height, jint bitrate, jint gop_size, jint frame_rate) {
+    EncoderSession *session = get_session(handle);
+    if (!session->video_codec_ctx) {
         return JNI_FALSE;
     }
+    AVCodecContext *video_codec_ctx = session->video_codec_ctx;
+    width = width > 0 ? width : video_codec_ctx->width;
+    height = height > 0 ? height : video_codec_ctx->height;
+    gop_size = gop_size > 0 ? gop_size : video_codec_ctx->gop_size;
+    frame_rate = frame_rate > 0 ? frame_rate : video_codec_ctx->time_base.den;
+    // Take over any bitrate still waiting for the encoder thread. One that setVideoBitrate stores
+    // after this stays pending and is applied to the reopened encoder.
+    int pending_bitrate = __atomic_exchange_n(&session->pending_video_bitrate, 0,
+                                              __ATOMIC_ACQ_REL);
+    if (bitrate <= 0) {
+        bitrate = pending_bitrate > 0 ? pending_bitrate : video_codec_ctx->bit_rate;
+    }
+
+    if (width == video_codec_ctx->width && height == video_codec_ctx->height &&
+        gop_size == video_codec_ctx->gop_size && frame_rate == video_codec_ctx->time_base.den) {
+        // x264 takes a new bitrate between frames; nothing needs to be reopened. Unless
+        // setVideoBitrate got in first, as its value is the newer one.
+        int empty = 0;
+        __atomic_compare_exchange_n(&session->pending_video_bitrate, &empty, bitrate, 0,
+                                    __ATOMIC_RELEASE, __ATOMIC_RELAXED);
+        return JNI_TRUE;
+    }
+
+    LOGI("Restarting video encoder at %ix%i, %i bps, gop %i, %i fps", width, height, bitrate,
+         gop_size, frame_rate);
+    int old_width = video_codec_ctx->width;
+    int old_height = video_codec_ctx->height;
+    int old_bitrate = video_codec_ctx->bit_rate;
+    int old_gop_size = video_codec_ctx->gop_size;
+    int old_frame_rate = video_codec_ctx->time_base.den;
+
+    // Flush what x264 still holds with the old settings.
+    int compressed_length;
+    while ((compressed_length = avcodec_encode_video(video_codec_ctx,
+                                                     session->video_out +
+                                                     session->video_header_room,
+                                                     session->video_out_size, NULL)) > 0) {
+        int last = (session->pts - 1) % VIDEO_TIMESTAMP_HISTORY;
+        mux_video_packet(session, compressed_length, session->video_capture_ns[last]);
+    }
+
+    // The sinks mux from their own copies of the codec parameters, so the encoder can be
+    // swapped while they write; they pick up the new ones afterwards.
+    avcodec_close(video_codec_ctx);
+    jboolean applied = JNI_TRUE;
+    if (open_video_codec(session, width, height, bitrate, gop_size, frame_rate) < 0) {
+        // Carry on as before rather than leave the stream without video.
+        LOGI("ERROR: Could not open the video encoder, going back to %ix%i", old_width,
+             old_height);
+        avcodec_close(video_codec_ctx);
+        width = old_width;
+        height = old_height;
+        if (open_video_codec(session, width, height, old_bitrate, old_gop_size,
+                             old_frame_rate) < 0) {
+            (*env)->ThrowNew(env, illegal_state_class, "video encoder could not be reopened");
+            return JNI_FALSE;
+        }
+        applied = JNI_FALSE;
+    }
+    for (int i = 0; i < session->num_sinks; i++) {
+        if (output_sink_update_video(&session->sinks[i], video_codec_ctx) < 0) {
+            LOGI("ERROR: Could not update sink %i", i);
+        }
+    }
+    pthread_mutex_lock(&session->mux_mutex);
+    if (session->dvr && output_sink_update_video(&session->dvr->sink, video_codec_ctx) < 0) {
+        LOGI("ERROR: Could not update the recorder");
+    }
+    pthread_mutex_unlock(&session->mux_mutex);
+
+    session->video_header_room = video_codec_ctx->extradata_size;
+    if (configure_video_input(session, width, height) < 0) {
+        (*env)->ThrowNew(env, illegal_state_class, "could not allocate video buffers");
+        return JNI_FALSE;
+    }
+    __atomic_store_n(&session->force_idr, 1, __ATOMIC_RELEASE);
+    return applied;
+}
+
+static void ffmpeg_setAudioInput(JNIEnv *env, jclass clazz, jlong handle, jint sample_rate,
+                                 jint channels) {
+    if (sample_rate <= 0 || channels < 1 || channels > 2) {
+        (*env)->ThrowNew(env, illegal_argument_class, "unsupported audio input");
+        return;
+    }
+    EncoderSession *session = get_session(handle);
+    session->audio_input_rate = sample_rate;
+    session->audio_input_channels = channels;
+}
+
+static void ffmpeg_requestKeyframe(JNIEnv *env, jclass clazz, jlong handle) {
+    __atomic_store_n(&get_session(handle)->force_idr, 1, __ATOMIC_RELEASE);
+}
+
+static jint ffmpeg_getSinkCount(JNIEnv *env, jclass clazz, jlong handle) {
+    return get_session(handle)->num_sinks;
+}
+
+static jboolean ffmpeg_isSinkOpen(JNIEnv *env, jclass clazz, jlong handle, jint index) {
+    OutputSink *sink = get_sink(env, handle, index);
+    return sink && sink->open ? JNI_TRUE : JNI_FALSE;
+}
+
+// Fills stats for the sink at index. Returns -1, with an exception pending, for a bad index.
+static int get_sink_stats(JNIEnv *env, jlong handle, jint index, PacketWriterStats *stats) {
+    OutputSink *sink = get_sink(env, handle, index);
+    if (sink == NULL) {
+        return -1;
+    }
+    packet_writer_get_stats(&sink->writer, stats);
+    return 0;
+}
+
+static jint ffmpeg_getWriterQueueDepth(JNIEnv *env, jclass clazz, jlong handle, jint sink) {
+    PacketWriterStats stats;
+    return get_sink_stats(env, handle, sink, &stats) < 0 ? 0 : stats.depth;
+}
+
+static jlong ffmpeg_getWriterBytesWritten(JNIEnv *env, jclass clazz, jlong handle, jint sink) {
+    PacketWriterStats stats;
+    return get_sink_stats(env, handle, sink, &stats) < 0 ? 0 : stats.bytes_written;
+}
+
+static jlong ffmpeg_getWriterDroppedPackets(JNIEnv *env, jclass clazz, jlong handle, jint sink) {
+    PacketWriterStats stats;
+    return get_sink_stats(env, handle, sink, &stats) < 0 ? 0 : stats.packets_dropped;
+}
 
-    pts = 0;
-    last_audio_pts = 0;
-    audio_samples_written = 0;
+static jlong ffmpeg_getWriterThroughput(JNIEnv *env, jclass clazz, jlong handle, jint sink) {
+    PacketWriterStats stats;
+    return get_sink_stats(env, handle, sink, &stats) < 0 ? 0 : stats.throughput_bps;
+}
+
+static jlong ffmpeg_getWriterBacklogBytes(JNIEnv *env, jclass clazz, jlong handle, jint sink) {
+    PacketWriterStats stats;
+    return get_sink_stats(env, handle, sink, &stats) < 0 ? 0 : stats.backlog_bytes;
+}
+
+static jlong ffmpeg_getWriterReconnectCount(JNIEnv *env, jclass clazz, jlong handle,
+                                            jint sink) {
+    PacketWriterStats stats;
+    return get_sink_stats(env, handle, sink, &stats) < 0 ? 0 : stats.reconnects;
+}
+
+static jlong ffmpeg_getWriterTrimmedPackets(JNIEnv *env, jclass clazz, jlong handle,
+                                            jint sink) {
+    PacketWriterStats stats;
+    return get_sink_stats(env, handle, sink, &stats) < 0 ? 0 : stats.packets_trimmed;
+}
+
+static jboolean ffmpeg_isSinkConnected(JNIEnv *env, jclass clazz, jlong handle, jint sink) {
+    PacketWriterStats stats;
+    return get_sink_stats(env, handle, sink, &stats) == 0 && stats.connected ? JNI_TRUE
+                                                                             : JNI_FALSE;
+}
+
+static void ffmpeg_setWriterBacklog(JNIEnv *env, jclass clazz, jlong handle, jstring directory,
+                                    jlong max_bytes, jint max_catchup_ms) {
+    EncoderSession *session = get_session(handle);
+    av_freep(&session->backlog_directory);
+    if (directory != NULL) {
+        const char *path = (*env)->GetStringUTFChars(env, directory, NULL);
+        if (path == NULL) {
+            return;
+        }
+        session->backlog_directory = av_strdup(path);
+        (*env)->ReleaseStringUTFChars(env, directory, path);
+    }
+    session->backlog_max_bytes = max_bytes;
+    session->backlog_max_catchup_ms = max_catchup_ms;
+}
+
+static jboolean ffmpeg_startDvr(JNIEnv *env, jclass clazz, jlong handle, jstring directory,
+                                jint num_segments, jint segment_bytes) {
+    EncoderSession *session = get_session(handle);
+    if (num_segments < 2 || segment_bytes < 1024 * 1024) {
+        (*env)->ThrowNew(env, illegal_argument_class,
+                         "need at least 2 segments of at least 1 MB");
+        return JNI_FALSE;
+    }
+    if (!session->video_codec_ctx || session->dvr) {
+        return JNI_FALSE;
+    }
 
-    // Initialize buffers for UV format conversion
-    int frame_size = video_codec_ctx->width * video_codec_ctx->height;
-    u_buf = (unsigned char *) av_malloc(frame_size / 4);
-    v_buf = (unsigned char *) av_malloc(frame_size / 4);
+    DvrRecorder *dvr = (DvrRecorder *) av_mallocz(sizeof(DvrRecorder));
+    if (!dvr) {
+        return JNI_FALSE;
+    }
+    const char *path = (*env)->GetStringUTFChars(env, directory, NULL);
+    if (path == NULL) {
+        av_free(dvr);
+        return JNI_FALSE;
+    }
+    int result = dvr_ring_open(&dvr->ring, path, num_segments, segment_bytes);
+    if (result == 0) {
+        dvr->sink.index = -1;
+        dvr->sink.owner = dvr;
+        PacketWriterCallbacks callbacks = {NULL, NULL, on_dvr_packet, NULL, NULL, &dvr->sink};
+        result = output_sink_open(&dvr->sink, path, dvr_ring_get_io(&dvr->ring),
+                                  session->video_codec_ctx, session->audio_codec_ctx,
+                                  WRITER_QUEUE_SIZE, session->writer_low_watermark,
+                                  session->writer_high_watermark, &callbacks);
+        if (result == 0) {
+            // Segments should open on a keyframe; the encoder is mid-GOP.
+            dvr->sink.writer.wait_for_keyframe = 1;
+            if (dvr_ring_end_header(&dvr->ring) < 0 || output_sink_start(&dvr->sink) < 0) {
+                output_sink_close(&dvr->sink);
+                result = -1;
+            }
+        }
+        if (result < 0) {
+            dvr_ring_close(&dvr->ring);
+        }
+    }
+    (*env)->ReleaseStringUTFChars(env, directory, path);
+    if (result < 0) {
+        av_free(dvr);
+        return JNI_FALSE;
+    }
 
-    LOGI("ffmpeg encoding init done");
+    pthread_mutex_lock(&session->mux_mutex);
+    session->dvr = dvr;
+    pthread_mutex_unlock(&session->mux_mutex);
     return JNI_TRUE;
 }
 
-JNIEXPORT void JNICALL
-Java_com_google_android_apps_watchme_Ffmpeg_shutdown(JNIEnv
-*env,
-jobject thiz
-) {
-av_write_trailer(fmt_context);
-avio_close(fmt_context
-->pb);
-avcodec_close(video_stream
-->codec);
-if (enable_audio) {
-avcodec_close(audio_stream
-->codec);
-}
-av_free(fmt_context);
-av_free(u_buf);
-av_free(v_buf);
-
-fmt_context = NULL;
-u_buf = NULL;
-v_buf = NULL;
-}
-
-JNIEXPORT jintJNICALL
-Java_com_google_android_apps_watchme_Ffmpeg_encodeVideoFrame(JNIEnv
-*env,
-jobject thiz,
-        jbyteArray
-yuv_image) {
-int yuv_length = (*env)->GetArrayLength(env, yuv_image);
-unsigned char *yuv_data = (*env)->GetByteArrayElements(env, yuv_image, 0);
-
-AVCodecContext *video_codec_ctx = video_stream->codec;
-//LOGI("Yuv size: %i w: %i h: %i", yuv_length, video_codec_ctx->width, video_codec_ctx->height);
-
-int frame_size = video_codec_ctx->width * video_codec_ctx->height;
-
-const unsigned char *uv = yuv_data + frame_size;
-
-// Convert YUV from NV12 to I420. Y channel is the same so we don't touch it,
-// we just have to deinterleave UV.
-for (
-int i = 0;
-i < frame_size / 4; i++) {
-v_buf[i] = uv[i * 2];
-u_buf[i] = uv[i * 2 + 1];
-}
-
-AVFrame source;
-memset(&source, 0, sizeof(AVFrame));
-source.data[0] =
-yuv_data;
-source.data[1] =
-u_buf;
-source.data[2] =
-v_buf;
-source.linesize[0] = video_codec_ctx->
-width;
-source.linesize[1] = video_codec_ctx->width / 2;
-source.linesize[2] = video_codec_ctx->width / 2;
-
-// only for bitrate regulation. irrelevant for sync.
-source.
-pts = pts;
-pts++;
-
-int out_length = frame_size + (frame_size / 2);
-unsigned char *out = (unsigned char *) av_malloc(out_length);
-int compressed_length = avcodec_encode_video(video_codec_ctx, out, out_length, &source);
-
-(*env)->
-ReleaseByteArrayElements(env, yuv_image, yuv_data,
-0);
-
-// Write to file too
-if (compressed_length > 0) {
-AVPacket pkt;
-av_init_packet(&pkt);
-pkt.
-pts = last_audio_pts;
-if (video_codec_ctx->coded_frame && video_codec_ctx->coded_frame->key_frame) {
-pkt.flags |= 0x0001;
-}
-pkt.
-stream_index = video_stream->index;
-pkt.
-data = out;
-pkt.
-size = compressed_length;
-if (
-av_interleaved_write_frame(fmt_context,
-&pkt) != 0) {
-LOGI("Error writing video frame");
-}
-} else {
-LOGI("??? compressed_length <= 0");
-}
-
-last_audio_pts++;
-
-av_free(out);
-return
-compressed_length;
-}
-
-JNIEXPORT jintJNICALL
-Java_com_google_android_apps_watchme_Ffmpeg_encodeAudioFrame(JNIEnv
-*env,
-jobject thiz,
-        jshortArray
-audio_data,
-jint length
-) {
-if (!enable_audio) {
-return 0;
-}
-
-short *audio = (*env)->GetShortArrayElements(env, audio_data, 0);
-//LOGI("java audio buffer size: %i", length);
-
-AVCodecContext *audio_codec_ctx = audio_stream->codec;
-
-unsigned char *out = av_malloc(128000);
-
-AudioBuffer_Push(audio, length
-);
-
-int total_compressed = 0;
-while (
-
-AudioBuffer_Size()
-
->= audio_codec_ctx->frame_size) {
-AVPacket pkt;
-av_init_packet(&pkt);
-
-int compressed_length = avcodec_encode_audio(audio_codec_ctx, out, 128000,
-                                             AudioBuffer_Get());
-
-total_compressed +=
-compressed_length;
-audio_samples_written += audio_codec_ctx->
-frame_size;
-
-int new_pts = (audio_samples_written * 1000) / audio_sample_rate;
-if (compressed_length > 0) {
-pkt.
-size = compressed_length;
-pkt.
-pts = new_pts;
-last_audio_pts = new_pts;
-//LOGI("audio_samples_written: %i  comp_length: %i   pts: %i", (int)audio_samples_written, (int)compressed_length, (int)new_pts);
-pkt.flags |= 0x0001;
-pkt.
-stream_index = audio_stream->index;
-pkt.
-data = out;
-if (
-av_interleaved_write_frame(fmt_context,
-&pkt) != 0) {
-LOGI("Error writing audio frame");
-}
-}
-AudioBuffer_Pop(audio_codec_ctx
-->frame_size);
-}
-
-(*env)->
-ReleaseShortArrayElements(env, audio_data, audio,
-0);
-
-av_free(out);
-return
-total_compressed;
+static void ffmpeg_stopDvr(JNIEnv *env, jclass clazz, jlong handle) {
+    stop_dvr(get_session(handle));
+}
+
+// DvrStats fields and the recorder's writer throughput, as indexed by Ffmpeg.DVR_STAT_*.
+static jlong ffmpeg_getDvrStat(JNIEnv *env, jclass clazz, jlong handle, jint stat) {
+    EncoderSession *session = get_session(handle);
+    DvrStats stats;
+    PacketWriterStats writer_stats;
+    pthread_mutex_lock(&session->mux_mutex);
+    if (!session->dvr) {
+        pthread_mutex_unlock(&session->mux_mutex);
+        return 0;
+    }
+    dvr_ring_get_stats(&session->dvr->ring, &stats);
+    packet_writer_get_stats(&session->dvr->sink.writer, &writer_stats);
+    pthread_mutex_unlock(&session->mux_mutex);
+
+    switch ((DvrStat) stat) {
+        case DVR_STAT_BYTES_WRITTEN:
+            return stats.bytes_written;
+        case DVR_STAT_THROUGHPUT:
+            return writer_stats.throughput_bps;
+        case DVR_STAT_SEGMENTS_COMPLETED:
+            return stats.segments_completed;
+        case DVR_STAT_FORCED_ROTATIONS:
+            return stats.forced_rotations;
+        case DVR_STAT_LAST_SYNC_MICROS:
+            return stats.last_sync_us;
+        case DVR_STAT_MAX_SYNC_MICROS:
+            return stats.max_sync_us;
+        case DVR_STAT_AVERAGE_SYNC_MICROS:
+            return stats.syncs > 0 ? stats.total_sync_us / stats.syncs : 0;
+        case DVR_STAT_ERRORS:
+            return stats.errors;
+        case DVR_STAT_DROPPED_PACKETS:
+            return writer_stats.packets_dropped;
+        default:
+            (*env)->ThrowNew(env, illegal_argument_class, "unknown recorder stat");
+            return 0;
+    }
+}
+
+static JNINativeMethod ffmpeg_methods[] = {
+        {"nativeCreate",             "(L" FFMPEG_CLASS ";)J",         (void *) ffmpeg_create},
+        {"nativeRelease",            "(J)V",                          (void *) ffmpeg_release},
+        {"nativeInit",               "(JIIIII[Ljava/lang/String;)Z",  (void *) ffmpeg_init},
+        {"nativeShutdown",           "(J)V",                          (void *) ffmpeg_shutdown},
+        {"nativeEncodeVideoFrame",   "(J[BJ)I",                       (void *) ffmpeg_encodeVideoFrame},
+        {"nativeEncodeAudioFrame",   "(J[SIJ)I",                      (void *) ffmpeg_encodeAudioFrame},
+        {"nativeEncodeAudioFrame",   "(JLjava/nio/ByteBuffer;IJ)I",   (void *) ffmpeg_encodeAudioFrameDirect},
+        {"nativeGetAudioOverflowCount", "(J)J",                       (void *) ffmpeg_getAudioOverflowCount},
+        {"nativeGetAvOffsetMillis",  "(J)I",                          (void *) ffmpeg_getAvOffsetMillis},
+        {"nativeGetAudioResyncCount", "(J)J",                         (void *) ffmpeg_getAudioResyncCount},
+        {"nativeGetNativeAllocationCount", "(J)J",                    (void *) ffmpeg_getNativeAllocationCount},
+        {"nativeSetWriterWatermarks", "(JII)V",                       (void *) ffmpeg_setWriterWatermarks},
+        {"nativeReconfigure",        "(JIIIII)Z",                     (void *) ffmpeg_reconfigure},
+        {"nativeSetVideoBitrate",    "(JI)V",                         (void *) ffmpeg_setVideoBitrate},
+        {"nativeRequestKeyframe",    "(J)V",                          (void *) ffmpeg_requestKeyframe},
+        {"nativeSetAudioInput",      "(JII)V",                        (void *) ffmpeg_setAudioInput},
+        {"nativeGetSinkCount",       "(J)I",                          (void *) ffmpeg_getSinkCount},
+        {"nativeIsSinkOpen",         "(JI)Z",                         (void *) ffmpeg_isSinkOpen},
+        {"nativeGetWriterQueueDepth", "(JI)I",                        (void *) ffmpeg_getWriterQueueDepth},
+        {"nativeGetWriterBytesWritten", "(JI)J",                      (void *) ffmpeg_getWriterBytesWritten},
+        {"nativeGetWriterDroppedPackets", "(JI)J",                    (void *) ffmpeg_getWriterDroppedPackets},
+        {"nativeGetWriterThroughput", "(JI)J",                        (void *) ffmpeg_getWriterThroughput},
+        {"nativeGetWriterBacklogBytes", "(JI)J",                      (void *) ffmpeg_getWriterBacklogBytes},
+        {"nativeGetWriterReconnectCount", "(JI)J",                    (void *) ffmpeg_getWriterReconnectCount},
+        {"nativeGetWriterTrimmedPackets", "(JI)J",                    (void *) ffmpeg_getWriterTrimmedPackets},
+        {"nativeIsSinkConnected",    "(JI)Z",                         (void *) ffmpeg_isSinkConnected},
+        {"nativeSetWriterBacklog",   "(JLjava/lang/String;JI)V",      (void *) ffmpeg_setWriterBacklog},
+        {"nativeStartDvr",           "(JLjava/lang/String;II)Z",      (void *) ffmpeg_startDvr},
+        {"nativeStopDvr",            "(J)V",                          (void *) ffmpeg_stopDvr},
+        {"nativeGetDvrStat",         "(JI)J",                         (void *) ffmpeg_getDvrStat},
+};
+
+// Registers the natives explicitly rather than relying on name lookup, caches the class
+// references used from the encode paths and sets up ffmpeg once for every session.
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
+    }
+    java_vm = vm;
+
+    jclass clazz = (*env)->FindClass(env, FFMPEG_CLASS);
+    if (clazz == NULL) {
+        return JNI_ERR;
+    }
+    ffmpeg_class = (*env)->NewGlobalRef(env, clazz);
+
+    clazz = (*env)->FindClass(env, "java/lang/IllegalArgumentException");
+    if (clazz == NULL) {
+        return JNI_ERR;
+    }
+    illegal_argument_class = (*env)->NewGlobalRef(env, clazz);
+
+    clazz = (*env)->FindClass(env, "java/lang/IllegalStateException");
+    if (clazz == NULL) {
+        return JNI_ERR;
+    }
+    illegal_state_class = (*env)->NewGlobalRef(env, clazz);
+
+    on_writer_watermark_method = (*env)->GetMethodID(env, ffmpeg_class, "onWriterWatermark",
+                                                     "(IIZ)V");
+    if (on_writer_watermark_method == NULL) {
+        return JNI_ERR;
+    }
+    on_sink_connection_method = (*env)->GetMethodID(env, ffmpeg_class, "onSinkConnection",
+                                                    "(IZ)V");
+    if (on_sink_connection_method == NULL) {
+        return JNI_ERR;
+    }
+
+    if ((*env)->RegisterNatives(env, ffmpeg_class, ffmpeg_methods,
+                                sizeof(ffmpeg_methods) / sizeof(ffmpeg_methods[0])) < 0) {
+        LOGI("RegisterNatives failed");
+        return JNI_ERR;
+    }
+
+    avcodec_register_all();
+    av_register_all();
+    av_log_set_callback(log_callback);
+    if (av_lockmgr_register(lock_manager) != 0) {
+        LOGI("av_lockmgr_register failed");
+        return JNI_ERR;
+    }
+    return JNI_VERSION_1_6;
 }
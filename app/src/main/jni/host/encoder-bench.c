@@ -0,0 +1,543 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+// Profiles encoder settings on the host. NV21 frames, synthetic or read from a file of raw
+// camera frames, go through the same NV21 to I420 conversion and H.264 encoder setup as on the
+// device, once per combination of x264 preset, slices and refs. The output is decoded again and
+// compared with the source. PCM, synthetic or raw mono s16, goes through the AAC encoder once.
+//
+// Usage: encoder-bench [-s WxH] [-n frames] [-r fps] [-b bitrate] [-g gop]
+//                      [-i frames.nv21] [-a audio.s16] [-p presets] [-l slices] [-f refs]
+// presets, slices and refs are comma-separated lists.
+
+#include <inttypes.h>
+#include <math.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+
+#include "libavcodec/avcodec.h"
+
+#include "audio-convert.h"
+#include "encoder-core.h"
+#include "yuv-convert.h"
+
+#define MAX_VALUES 8
+// Source frames kept for comparison with what the decoder returns. Covers the encoder's delay.
+#define SOURCE_HISTORY 64
+#define AUDIO_SAMPLE_RATE 44100
+#define AUDIO_OUT_BUF_SIZE 128000
+#define SSIM_WINDOW 8
+#define SSIM_STEP 4
+
+typedef struct {
+    int width;
+    int height;
+    int frames;
+    int frame_rate;
+    int bitrate;
+    int gop_size;
+    const char *video_file;
+    const char *audio_file;
+    char *presets[MAX_VALUES];
+    int num_presets;
+    int slices[MAX_VALUES];
+    int num_slices;
+    int refs[MAX_VALUES];
+    int num_refs;
+} BenchOptions;
+
+// Where the frames come from, and the I420 copies of the last SOURCE_HISTORY of them.
+typedef struct {
+    int width;
+    int height;
+    FILE *file;
+    unsigned char *nv21;
+    unsigned char *history[SOURCE_HISTORY];
+    YuvConverter *converter;
+} FrameSource;
+
+typedef struct {
+    double *encode_us;
+    double convert_us;
+    int64_t bytes;
+    int decoded;
+    // Decoded frames whose source was still in the history.
+    int scored;
+    double psnr_sum;
+    double ssim_sum;
+} VideoResult;
+
+static double now_us(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1e6 + ts.tv_nsec / 1e3;
+}
+
+static int compare_doubles(const void *a, const void *b) {
+    double x = *(const double *) a;
+    double y = *(const double *) b;
+    return x < y ? -1 : x > y;
+}
+
+static int parse_ints(char *list, int *values) {
+    int count = 0;
+    for (char *token = strtok(list, ","); token && count < MAX_VALUES;
+         token = strtok(NULL, ",")) {
+        values[count++] = atoi(token);
+    }
+    return count;
+}
+
+static int parse_strings(char *list, char **values) {
+    int count = 0;
+    for (char *token = strtok(list, ","); token && count < MAX_VALUES;
+         token = strtok(NULL, ",")) {
+        values[count++] = token;
+    }
+    return count;
+}
+
+// A gradient and a box that both move, with noise on top, so that motion search and the
+// entropy coder have real work to do.
+static void synthesize_frame(FrameSource *source, int index) {
+    int width = source->width;
+    int height = source->height;
+    unsigned int seed = (unsigned int) index;
+    unsigned char *y_plane = source->nv21;
+    int box_x = (index * 7) % (width / 2);
+    int box_y = (index * 3) % (height / 2);
+    for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+            int value = (x + y + index * 4) & 0xff;
+            if (x >= box_x && x < box_x + width / 4 && y >= box_y && y < box_y + height / 4) {
+                value = 255 - value;
+            }
+            y_plane[y * width + x] = (unsigned char) (value + (rand_r(&seed) & 0x0f));
+        }
+    }
+    unsigned char *vu = source->nv21 + width * height;
+    for (int y = 0; y < height / 2; y++) {
+        for (int x = 0; x < width / 2; x++) {
+            vu[y * width + 2 * x] = (unsigned char) (128 + ((x + index) & 0x3f) - 32);
+            vu[y * width + 2 * x + 1] = (unsigned char) (128 + ((y - index) & 0x3f) - 32);
+        }
+    }
+}
+
+// Loads frame index into source->nv21, from the file (starting over at its end) or synthetic.
+static int next_frame(FrameSource *source, int index) {
+    size_t frame_bytes = (size_t) source->width * source->height * 3 / 2;
+    if (!source->file) {
+        synthesize_frame(source, index);
+        return 0;
+    }
+    if (fread(source->nv21, 1, frame_bytes, source->file) == frame_bytes) {
+        return 0;
+    }
+    rewind(source->file);
+    if (fread(source->nv21, 1, frame_bytes, source->file) != frame_bytes) {
+        fprintf(stderr, "Input holds less than one %ix%i NV21 frame\n", source->width,
+                source->height);
+        return -1;
+    }
+    return 0;
+}
+
+static double plane_mse(const unsigned char *a, int a_stride, const unsigned char *b,
+                        int b_stride, int width, int height, int64_t *count) {
+    int64_t sum = 0;
+    for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+            int diff = a[y * a_stride + x] - b[y * b_stride + x];
+            sum += diff * diff;
+        }
+    }
+    *count += (int64_t) width * height;
+    return (double) sum;
+}
+
+// Mean SSIM of the luma planes, over 8x8 windows every 4 pixels.
+static double luma_ssim(const unsigned char *a, int a_stride, const unsigned char *b,
+                        int b_stride, int width, int height) {
+    const double c1 = (0.01 * 255) * (0.01 * 255);
+    const double c2 = (0.03 * 255) * (0.03 * 255);
+    const double n = SSIM_WINDOW * SSIM_WINDOW;
+    double total = 0;
+    int windows = 0;
+    for (int y = 0; y + SSIM_WINDOW <= height; y += SSIM_STEP) {
+        for (int x = 0; x + SSIM_WINDOW <= width; x += SSIM_STEP) {
+            double sum_a = 0, sum_b = 0, sum_aa = 0, sum_bb = 0, sum_ab = 0;
+            for (int j = 0; j < SSIM_WINDOW; j++) {
+                for (int i = 0; i < SSIM_WINDOW; i++) {
+                    int pa = a[(y + j) * a_stride + x + i];
+                    int pb = b[(y + j) * b_stride + x + i];
+                    sum_a += pa;
+                    sum_b += pb;
+                    sum_aa += pa * pa;
+                    sum_bb += pb * pb;
+                    sum_ab += pa * pb;
+                }
+            }
+            double mean_a = sum_a / n;
+            double mean_b = sum_b / n;
+            double var_a = sum_aa / n - mean_a * mean_a;
+            double var_b = sum_bb / n - mean_b * mean_b;
+            double cov = sum_ab / n - mean_a * mean_b;
+            total += (2 * mean_a * mean_b + c1) * (2 * cov + c2) /
+                     ((mean_a * mean_a + mean_b * mean_b + c1) * (var_a + var_b + c2));
+            windows++;
+        }
+    }
+    return windows ? total / windows : 1.0;
+}
+
+// Compares a decoded frame with the I420 source it was encoded from.
+static void compare_frame(FrameSource *source, const unsigned char *i420, const AVFrame *decoded,
+                          VideoResult *result) {
+    int width = source->width;
+    int height = source->height;
+    const unsigned char *u = i420 + width * height;
+    const unsigned char *v = u + width * height / 4;
+    int64_t count = 0;
+    double squared = plane_mse(i420, width, decoded->data[0], decoded->linesize[0], width,
+                               height, &count);
+    squared += plane_mse(u, width / 2, decoded->data[1], decoded->linesize[1], width / 2,
+                         height / 2, &count);
+    squared += plane_mse(v, width / 2, decoded->data[2], decoded->linesize[2], width / 2,
+                         height / 2, &count);
+    double mse = squared / count;
+    result->psnr_sum += mse > 0 ? 10 * log10(255.0 * 255.0 / mse) : 100;
+    result->ssim_sum += luma_ssim(i420, width, decoded->data[0], decoded->linesize[0], width,
+                                  height);
+    result->scored++;
+}
+
+// Decodes a packet, or flushes the decoder with an empty one, and scores what comes out.
+static void decode_packet(AVCodecContext *decoder, AVFrame *decoded, unsigned char *data,
+                          int size, FrameSource *source, int encoded, VideoResult *result) {
+    AVPacket pkt;
+    av_init_packet(&pkt);
+    pkt.data = data;
+    pkt.size = size;
+    int got_picture;
+    do {
+        got_picture = 0;
+        if (avcodec_decode_video2(decoder, decoded, &got_picture, &pkt) < 0) {
+            fprintf(stderr, "Decoding failed\n");
+            return;
+        }
+        if (got_picture) {
+            // No B-frames, so frames come out in input order.
+            int index = result->decoded++;
+            if (index >= encoded - SOURCE_HISTORY) {
+                compare_frame(source, source->history[index % SOURCE_HISTORY], decoded, result);
+            }
+        }
+    } while (size == 0 && got_picture);
+}
+
+static int run_video(const BenchOptions *options, FrameSource *source, const char *preset,
+                     int slices, int refs) {
+    int width = options->width;
+    int height = options->height;
+    VideoEncoderSettings settings;
+    video_encoder_default_settings(&settings, width, height, options->bitrate,
+                                   options->gop_size, options->frame_rate);
+    settings.preset = preset;
+    settings.slices = slices;
+    settings.refs = refs;
+
+    AVCodecContext *encoder = avcodec_alloc_context3(NULL);
+    if (!encoder || video_encoder_open(encoder, &settings) < 0) {
+        fprintf(stderr, "Could not open the encoder with %s/%i/%i\n", preset, slices, refs);
+        av_free(encoder);
+        return -1;
+    }
+    AVCodec *h264 = avcodec_find_decoder(AV_CODEC_ID_H264);
+    AVCodecContext *decoder = avcodec_alloc_context3(h264);
+    // SPS and PPS are only in the global header, as for FLV.
+    decoder->extradata = av_mallocz(encoder->extradata_size + FF_INPUT_BUFFER_PADDING_SIZE);
+    memcpy(decoder->extradata, encoder->extradata, encoder->extradata_size);
+    decoder->extradata_size = encoder->extradata_size;
+    if (avcodec_open2(decoder, h264, NULL) < 0) {
+        fprintf(stderr, "Could not open the decoder\n");
+        return -1;
+    }
+
+    int frame_bytes = width * height * 3 / 2;
+    int out_size = frame_bytes + FF_INPUT_BUFFER_PADDING_SIZE;
+    unsigned char *out = av_malloc(out_size);
+    AVFrame *frame = avcodec_alloc_frame();
+    AVFrame *decoded = avcodec_alloc_frame();
+    VideoResult result;
+    memset(&result, 0, sizeof(result));
+    result.encode_us = calloc(options->frames, sizeof(double));
+
+    if (source->file) {
+        rewind(source->file);
+    }
+    int encoded = 0;
+    for (int i = 0; i < options->frames; i++) {
+        if (next_frame(source, i) < 0) {
+            return -1;
+        }
+        unsigned char *i420 = source->history[i % SOURCE_HISTORY];
+        double start = now_us();
+        memcpy(i420, source->nv21, width * height);
+        yuv_converter_nv21_to_i420(source->converter, source->nv21 + width * height,
+                                   i420 + width * height, i420 + width * height * 5 / 4);
+        result.convert_us += now_us() - start;
+
+        frame->data[0] = i420;
+        frame->data[1] = i420 + width * height;
+        frame->data[2] = i420 + width * height * 5 / 4;
+        frame->linesize[0] = width;
+        frame->linesize[1] = width / 2;
+        frame->linesize[2] = width / 2;
+        frame->pts = i;
+
+        start = now_us();
+        int size = avcodec_encode_video(encoder, out, out_size, frame);
+        result.encode_us[i] = now_us() - start;
+        encoded = i + 1;
+        if (size > 0) {
+            result.bytes += size;
+            decode_packet(decoder, decoded, out, size, source, encoded, &result);
+        }
+    }
+    int size;
+    while ((size = avcodec_encode_video(encoder, out, out_size, NULL)) > 0) {
+        result.bytes += size;
+        decode_packet(decoder, decoded, out, size, source, encoded, &result);
+    }
+    decode_packet(decoder, decoded, NULL, 0, source, encoded, &result);
+
+    int frames = options->frames;
+    double total_us = 0;
+    for (int i = 0; i < frames; i++) {
+        total_us += result.encode_us[i];
+    }
+    qsort(result.encode_us, frames, sizeof(double), compare_doubles);
+    int scored = result.scored;
+    printf("%-10s %6i %4i %9.0f %9.0f %9.0f %8.0f %10.0f %8" PRId64 " %7.2f %6.4f %5i\n",
+           preset, slices, refs, total_us / frames, result.encode_us[frames / 2],
+           result.encode_us[frames * 95 / 100], result.convert_us / frames,
+           result.bytes * 8.0 * options->frame_rate / frames / 1000, result.bytes / frames,
+           scored ? result.psnr_sum / scored : 0, scored ? result.ssim_sum / scored : 0,
+           result.decoded);
+
+    free(result.encode_us);
+    avcodec_free_frame(&frame);
+    avcodec_free_frame(&decoded);
+    av_free(out);
+    avcodec_close(encoder);
+    av_free(encoder);
+    avcodec_close(decoder);
+    av_freep(&decoder->extradata);
+    av_free(decoder);
+    return 0;
+}
+
+// Encodes as much audio as the video lasts, in AAC frames.
+static int run_audio(const BenchOptions *options) {
+    AVCodecContext *encoder = audio_encoder_open(AUDIO_SAMPLE_RATE);
+    if (!encoder) {
+        fprintf(stderr, "Could not open the audio encoder\n");
+        return -1;
+    }
+    int frame_size = encoder->frame_size;
+    int num_frames = (int) ((int64_t) options->frames * AUDIO_SAMPLE_RATE /
+                            options->frame_rate / frame_size);
+    short *pcm = calloc(frame_size, sizeof(short));
+    float *samples = calloc(frame_size, sizeof(float));
+    unsigned char *out = av_malloc(AUDIO_OUT_BUF_SIZE);
+    FILE *file = options->audio_file ? fopen(options->audio_file, "rb") : NULL;
+    if (options->audio_file && !file) {
+        fprintf(stderr, "Could not open %s\n", options->audio_file);
+        return -1;
+    }
+
+    double total_us = 0;
+    double max_us = 0;
+    int64_t bytes = 0;
+    int64_t sample = 0;
+    for (int i = 0; i < num_frames; i++) {
+        if (file) {
+            if (fread(pcm, sizeof(short), frame_size, file) != (size_t) frame_size) {
+                rewind(file);
+                memset(pcm, 0, frame_size * sizeof(short));
+            }
+        } else {
+            // A tone sweeping up from 220 Hz.
+            for (int j = 0; j < frame_size; j++, sample++) {
+                double t = (double) sample / AUDIO_SAMPLE_RATE;
+                pcm[j] = (short) (8000 * sin(2 * M_PI * (220 + 40 * t) * t));
+            }
+        }
+        // Give the encoder the sample format it was opened with.
+        const short *input = pcm;
+        if (encoder->sample_fmt == AV_SAMPLE_FMT_FLT) {
+            audio_s16_to_float(pcm, samples, frame_size);
+            input = (const short *) samples;
+        }
+        double start = now_us();
+        int size = avcodec_encode_audio(encoder, out, AUDIO_OUT_BUF_SIZE, input);
+        double elapsed = now_us() - start;
+        total_us += elapsed;
+        max_us = FFMAX(max_us, elapsed);
+        if (size > 0) {
+            bytes += size;
+        }
+    }
+    double frame_us = (double) frame_size * 1e6 / AUDIO_SAMPLE_RATE;
+    printf("\nAAC %i Hz mono, %i frames of %i samples: %.0f us/frame avg, %.0f us max,"
+           " %.0f bytes/frame, %.0f kbps, %.1f%% of real time\n", AUDIO_SAMPLE_RATE,
+           num_frames, frame_size, total_us / num_frames, max_us, (double) bytes / num_frames,
+           bytes * 8.0 / (num_frames * frame_us / 1e6) / 1000,
+           100.0 * total_us / (num_frames * frame_us));
+
+    if (file) {
+        fclose(file);
+    }
+    free(pcm);
+    free(samples);
+    av_free(out);
+    avcodec_close(encoder);
+    av_free(encoder);
+    return 0;
+}
+
+static void usage(void) {
+    fprintf(stderr, "usage: encoder-bench [-s WxH] [-n frames] [-r fps] [-b bitrate]"
+            " [-g gop] [-i frames.nv21] [-a audio.s16] [-p presets] [-l slices] [-f refs]\n");
+    exit(2);
+}
+
+int main(int argc, char **argv) {
+    BenchOptions options;
+    memset(&options, 0, sizeof(options));
+    options.width = 640;
+    options.height = 480;
+    options.frames = 300;
+    options.frame_rate = 30;
+    options.bitrate = 800 * 1000;
+    char default_presets[] = "ultrafast,superfast,veryfast";
+    char default_slices[] = "1,8";
+    char default_refs[] = "1,3";
+    char *presets = default_presets;
+    char *slices = default_slices;
+    char *refs = default_refs;
+
+    for (int i = 1; i < argc; i++) {
+        if (argv[i][0] != '-' || argv[i][2] != '\0' || i + 1 >= argc) {
+            usage();
+        }
+        char *value = argv[++i];
+        switch (argv[i - 1][1]) {
+            case 's':
+                if (sscanf(value, "%ix%i", &options.width, &options.height) != 2) {
+                    usage();
+                }
+                break;
+            case 'n':
+                options.frames = atoi(value);
+                break;
+            case 'r':
+                options.frame_rate = atoi(value);
+                break;
+            case 'b':
+                options.bitrate = atoi(value);
+                break;
+            case 'g':
+                options.gop_size = atoi(value);
+                break;
+            case 'i':
+                options.video_file = value;
+                break;
+            case 'a':
+                options.audio_file = value;
+                break;
+            case 'p':
+                presets = value;
+                break;
+            case 'l':
+                slices = value;
+                break;
+            case 'f':
+                refs = value;
+                break;
+            default:
+                usage();
+        }
+    }
+    if (options.gop_size <= 0) {
+        options.gop_size = options.frame_rate;
+    }
+    options.num_presets = parse_strings(presets, options.presets);
+    options.num_slices = parse_ints(slices, options.slices);
+    options.num_refs = parse_ints(refs, options.refs);
+    if (options.width <= 0 || options.height <= 0 || options.width % 2 || options.height % 2 ||
+        options.frames <= 0 || options.frame_rate <= 0 || options.bitrate <= 0) {
+        usage();
+    }
+
+    avcodec_register_all();
+
+    FrameSource source;
+    memset(&source, 0, sizeof(source));
+    source.width = options.width;
+    source.height = options.height;
+    source.nv21 = malloc(options.width * options.height * 3 / 2);
+    for (int i = 0; i < SOURCE_HISTORY; i++) {
+        source.history[i] = malloc(options.width * options.height * 3 / 2);
+    }
+    source.converter = yuv_converter_create(options.width, options.height);
+    if (options.video_file && !(source.file = fopen(options.video_file, "rb"))) {
+        fprintf(stderr, "Could not open %s\n", options.video_file);
+        return 1;
+    }
+
+    printf("%ix%i, %i frames at %i fps, gop %i, %i kbps target, %s\n\n", options.width,
+           options.height, options.frames, options.frame_rate, options.gop_size,
+           options.bitrate / 1000,
+           options.video_file ? options.video_file : "synthetic frames");
+    printf("%-10s %6s %4s %9s %9s %9s %8s %10s %8s %7s %6s %5s\n", "preset", "slices", "refs",
+           "enc_us", "p50_us", "p95_us", "nv21_us", "kbps", "B/frame", "psnr", "ssim",
+           "decod");
+    for (int p = 0; p < options.num_presets; p++) {
+        for (int s = 0; s < options.num_slices; s++) {
+            for (int r = 0; r < options.num_refs; r++) {
+                if (run_video(&options, &source, options.presets[p], options.slices[s],
+                              options.refs[r]) < 0) {
+                    return 1;
+                }
+            }
+        }
+    }
+    if (run_audio(&options) < 0) {
+        return 1;
+    }
+
+    if (source.file) {
+        fclose(source.file);
+    }
+    yuv_converter_destroy(source.converter);
+    for (int i = 0; i < SOURCE_HISTORY; i++) {
+        free(source.history[i]);
+    }
+    free(source.nv21);
+    return 0;
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#ifndef WATCHME_NEON_KERNELS_H
+#define WATCHME_NEON_KERNELS_H
+
+// NEON versions of the converters' inner loops. They live in files of their own so that only
+// those are built with NEON: armeabi-v7a doesn't guarantee it, and the rest of the library has
+// to run on CPUs without it. Call them only when neon_available() says so.
+#if defined(__aarch64__) || (defined(__ANDROID__) && defined(__ARM_ARCH_7A__))
+#define WATCHME_NEON_KERNELS 1
+
+#if defined(__aarch64__)
+static inline int neon_available(void) {
+    return 1;
+}
+#else
+#include <cpu-features.h>
+
+static inline int neon_available(void) {
+    return (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON) != 0;
+}
+#endif
+
+// Each handles as many leading elements as fit its vectors and returns how many that was; the
+// caller does the rest.
+int yuv_deinterleave_vu_neon(const unsigned char *vu, unsigned char *u, unsigned char *v,
+                             int count);
+int audio_s16_to_float_neon(const short *input, float *output, int count);
+int audio_downmix_s16_to_float_neon(const short *input, float *output, int frames);
+#endif
+
+#endif  // WATCHME_NEON_KERNELS_H
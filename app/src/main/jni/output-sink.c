@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#include <android/log.h>
+#include <string.h>
+
+#include "output-sink.h"
+
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "output-sink", __VA_ARGS__)
+#define URL_WRONLY 2
+
+// Copies what the FLV muxer needs to know about an encoder into a stream of this sink. The
+// encoder itself stays shared.
+static int copy_codec_params(AVCodecContext *dst, const AVCodecContext *src) {
+    dst->codec_id = src->codec_id;
+    dst->codec_type = src->codec_type;
+    dst->codec_tag = 0;
+    dst->bit_rate = src->bit_rate;
+    dst->time_base = src->time_base;
+    dst->width = src->width;
+    dst->height = src->height;
+    dst->pix_fmt = src->pix_fmt;
+    dst->sample_rate = src->sample_rate;
+    dst->channels = src->channels;
+    dst->sample_fmt = src->sample_fmt;
+    dst->frame_size = src->frame_size;
+    dst->flags |= src->flags & CODEC_FLAG_GLOBAL_HEADER;
+
+    av_freep(&dst->extradata);
+    dst->extradata_size = 0;
+    if (src->extradata_size > 0) {
+        dst->extradata = (uint8_t *) av_mallocz(src->extradata_size +
+                                                FF_INPUT_BUFFER_PADDING_SIZE);
+        if (!dst->extradata) {
+            return -1;
+        }
+        memcpy(dst->extradata, src->extradata, src->extradata_size);
+        dst->extradata_size = src->extradata_size;
+    }
+    return 0;
+}
+
+static void free_params(AVCodecContext **params) {
+    if (*params) {
+        av_freep(&(*params)->extradata);
+        av_freep(params);
+    }
+}
+
+static void free_sink_context(OutputSink *sink) {
+    if (!sink->fmt_context) {
+        return;
+    }
+    if (sink->fmt_context->pb && !sink->custom_io) {
+        avio_close(sink->fmt_context->pb);
+    }
+    // Frees the streams and their copies of the extradata too.
+    avformat_free_context(sink->fmt_context);
+    sink->fmt_context = NULL;
+    sink->video_stream = NULL;
+    sink->audio_stream = NULL;
+}
+
+static void free_sink(OutputSink *sink) {
+    free_sink_context(sink);
+    free_params(&sink->video_params);
+    free_params(&sink->audio_params);
+    av_freep(&sink->url);
+}
+
+// Creates the muxer from the stored parameters, connects and writes the header.
+static int open_context(OutputSink *sink, AVIOContext *io) {
+    AVOutputFormat *ofmt = av_guess_format("flv", NULL, NULL);
+    if (!ofmt) {
+        LOGI("av_guess_format fail");
+        return -1;
+    }
+    sink->fmt_context = avformat_alloc_context();
+    if (!sink->fmt_context) {
+        return -1;
+    }
+    AVFormatContext *fmt_context = sink->fmt_context;
+    fmt_context->oformat = ofmt;
+    fmt_context->bit_rate = 4000 * 1000;
+
+    // Stream indexes match across sinks, so one packet fits all of them.
+    sink->video_stream = av_new_stream(fmt_context, 0);
+    if (!sink->video_stream ||
+        copy_codec_params(sink->video_stream->codec, sink->video_params) < 0) {
+        free_sink_context(sink);
+        return -1;
+    }
+    if (sink->audio_params) {
+        sink->audio_stream = av_new_stream(fmt_context, 1);
+        if (!sink->audio_stream ||
+            copy_codec_params(sink->audio_stream->codec, sink->audio_params) < 0) {
+            free_sink_context(sink);
+            return -1;
+        }
+    }
+
+    if (io) {
+        fmt_context->pb = io;
+        sink->custom_io = 1;
+    } else if (!(ofmt->flags & AVFMT_NOFILE)) {
+        if (avio_open(&fmt_context->pb, sink->url, URL_WRONLY) < 0) {
+            LOGI("ERROR: Could not open %s", sink->url);
+            free_sink_context(sink);
+            return -1;
+        }
+    }
+
+    if (avformat_write_header(fmt_context, NULL) != 0) {
+        LOGI("ERROR: av_write_header failed for %s", sink->url);
+        free_sink_context(sink);
+        return -1;
+    }
+    return 0;
+}
+
+int output_sink_open(OutputSink *sink, const char *url, AVIOContext *io,
+                     AVCodecContext *video_codec_ctx, AVCodecContext *audio_codec_ctx,
+                     int queue_size, int low_watermark, int high_watermark,
+                     const PacketWriterCallbacks *callbacks) {
+    sink->url = av_strdup(url);
+    sink->video_params = avcodec_alloc_context3(NULL);
+    if (!sink->url || !sink->video_params ||
+        copy_codec_params(sink->video_params, video_codec_ctx) < 0) {
+        free_sink(sink);
+        return -1;
+    }
+    if (audio_codec_ctx) {
+        sink->audio_params = avcodec_alloc_context3(NULL);
+        if (!sink->audio_params || copy_codec_params(sink->audio_params, audio_codec_ctx) < 0) {
+            free_sink(sink);
+            return -1;
+        }
+    }
+
+    if (open_context(sink, io) < 0) {
+        free_sink(sink);
+        return -1;
+    }
+    if (packet_writer_init(&sink->writer, sink->fmt_context, queue_size, low_watermark,
+                           high_watermark, callbacks) < 0) {
+        free_sink(sink);
+        return -1;
+    }
+    sink->open = 1;
+    LOGI("Sink %i writing to %s", sink->index, url);
+    return 0;
+}
+
+int output_sink_start(OutputSink *sink) {
+    return packet_writer_start(&sink->writer);
+}
+
+AVFormatContext *output_sink_reconnect(void *opaque) {
+    OutputSink *sink = (OutputSink *) opaque;
+    // No trailer: the connection is gone.
+    free_sink_context(sink);
+    LOGI("Sink %i reconnecting to %s", sink->index, sink->url);
+    if (open_context(sink, NULL) < 0) {
+        return NULL;
+    }
+    return sink->fmt_context;
+}
+
+int output_sink_is_network_url(const char *url) {
+    return strstr(url, "://") != NULL && strncmp(url, "file:", 5) != 0;
+}
+
+int output_sink_enqueue(OutputSink *sink, const AVPacket *pkt, int is_video) {
+    if (!sink->open) {
+        return 0;
+    }
+    return packet_writer_enqueue(&sink->writer, pkt, is_video);
+}
+
+int output_sink_update_video(OutputSink *sink, AVCodecContext *video_codec_ctx) {
+    if (!sink->open) {
+        return 0;
+    }
+    // The muxer reads the stream's extradata for every video packet, and a reconnect creates
+    // the stream from the stored parameters.
+    packet_writer_lock_muxer(&sink->writer);
+    int result = copy_codec_params(sink->video_params, video_codec_ctx);
+    if (result == 0 && sink->video_stream) {
+        result = copy_codec_params(sink->video_stream->codec, video_codec_ctx);
+    }
+    packet_writer_unlock_muxer(&sink->writer);
+    return result;
+}
+
+void output_sink_close(OutputSink *sink) {
+    if (!sink->open) {
+        return;
+    }
+    packet_writer_stop(&sink->writer);
+    packet_writer_free(&sink->writer);
+    if (sink->fmt_context) {
+        av_write_trailer(sink->fmt_context);
+    }
+    free_sink(sink);
+    sink->open = 0;
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#ifndef WATCHME_OUTPUT_SINK_H
+#define WATCHME_OUTPUT_SINK_H
+
+#include "libavcodec/avcodec.h"
+#include "libavformat/avformat.h"
+
+#include "packet-writer.h"
+
+// One destination of the fan-out: an FLV muxer on its own URL, fed by its own writer thread.
+// Every sink gets the same encoded packets, and a sink that can't keep up only fills its own
+// queue.
+typedef struct {
+    char *url;
+    // NULL while a network sink is reconnecting.
+    AVFormatContext *fmt_context;
+    AVStream *video_stream;
+    AVStream *audio_stream;
+    // What the streams are created from on every (re)connect.
+    AVCodecContext *video_params;
+    AVCodecContext *audio_params;
+    PacketWriter writer;
+    // Position in the list of URLs the session was opened with.
+    int index;
+    // Set once the header is written.
+    int open;
+    // The output was handed in rather than opened here, and is closed by its owner.
+    int custom_io;
+    // Handed to the writer callbacks.
+    void *owner;
+} OutputSink;
+
+// Opens url (an RTMP URL or a file path) as FLV with streams matching the given encoders, which
+// must already be open, writes the header and sets up the writer. If io is given, the FLV goes
+// there instead and url only names the sink in the log. audio_codec_ctx may be NULL.
+int output_sink_open(OutputSink *sink, const char *url, AVIOContext *io,
+                     AVCodecContext *video_codec_ctx, AVCodecContext *audio_codec_ctx,
+                     int queue_size, int low_watermark, int high_watermark,
+                     const PacketWriterCallbacks *callbacks);
+
+// Starts the writer thread. Anything to configure on sink->writer goes before this.
+int output_sink_start(OutputSink *sink);
+
+// A PacketWriterCallbacks.reconnect for sinks opened from a URL; opaque is the sink.
+AVFormatContext *output_sink_reconnect(void *opaque);
+
+// True for URLs that are worth reconnecting to, as opposed to local files.
+int output_sink_is_network_url(const char *url);
+
+// Queues a packet if the sink is open. Returns -1 if the sink dropped it.
+int output_sink_enqueue(OutputSink *sink, const AVPacket *pkt, int is_video);
+
+// Picks up a reopened video encoder's size and extradata. The muxer is held off meanwhile.
+int output_sink_update_video(OutputSink *sink, AVCodecContext *video_codec_ctx);
+
+// Writes out what is still queued and the trailer, then closes the output. Also undoes a failed
+// output_sink_start.
+void output_sink_close(OutputSink *sink);
+
+#endif  // WATCHME_OUTPUT_SINK_H
@@ -0,0 +1,567 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#include <android/log.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <string.h>
+#include <sys/time.h>
+#include <unistd.h>
+
+#include "libavutil/time.h"
+
+#include "packet-writer.h"
+
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "packet-writer", __VA_ARGS__)
+#define THROUGHPUT_WINDOW_US 1000000
+// Reconnect attempts start this far apart and back off up to the maximum.
+#define RECONNECT_MIN_DELAY_MS 500
+#define RECONNECT_MAX_DELAY_MS 16000
+
+// Header of a packet in the spill file; the payload follows.
+typedef struct {
+    int64_t pts;
+    int32_t size;
+    int32_t stream_index;
+    int32_t flags;
+    int32_t padding;
+} SpillRecord;
+
+int packet_writer_init(PacketWriter *writer, AVFormatContext *fmt_context, int num_slots,
+                       int low_watermark, int high_watermark,
+                       const PacketWriterCallbacks *callbacks) {
+    memset(writer, 0, sizeof(PacketWriter));
+    writer->slots = (QueuedPacket *) av_mallocz(num_slots * sizeof(QueuedPacket));
+    if (!writer->slots) {
+        return -1;
+    }
+    writer->fmt_context = fmt_context;
+    writer->num_slots = num_slots;
+    writer->callbacks = *callbacks;
+    writer->spill_fd = -1;
+    writer->spill_key_pos = -1;
+    writer->connected = 1;
+    writer->max_catchup_ms = INT32_MAX;
+    writer->newest_pts = AV_NOPTS_VALUE;
+    pthread_mutex_init(&writer->mutex, NULL);
+    pthread_cond_init(&writer->cond, NULL);
+    pthread_mutex_init(&writer->mux_lock, NULL);
+    packet_writer_set_watermarks(writer, low_watermark, high_watermark);
+    return 0;
+}
+
+int packet_writer_set_backlog(PacketWriter *writer, const char *spill_path, int64_t max_bytes,
+                              int max_catchup_ms) {
+    writer->max_catchup_ms = max_catchup_ms;
+    if (!spill_path || max_bytes <= 0) {
+        return 0;
+    }
+    writer->spill_path = av_strdup(spill_path);
+    writer->spill_fd = open(spill_path, O_RDWR | O_CREAT | O_TRUNC, 0600);
+    if (!writer->spill_path || writer->spill_fd < 0) {
+        LOGI("Could not open spill file %s: %s", spill_path, strerror(errno));
+        av_freep(&writer->spill_path);
+        writer->spill_fd = -1;
+        return -1;
+    }
+    writer->spill_max_bytes = max_bytes;
+    return 0;
+}
+
+void packet_writer_set_watermarks(PacketWriter *writer, int low_watermark, int high_watermark) {
+    pthread_mutex_lock(&writer->mutex);
+    writer->high_watermark = FFMIN(FFMAX(high_watermark, 1), writer->num_slots);
+    writer->low_watermark = FFMIN(FFMAX(low_watermark, 0), writer->high_watermark - 1);
+    pthread_mutex_unlock(&writer->mutex);
+}
+
+// Packets waiting, in memory and on disk. Call with mutex held.
+static int backlog_depth(PacketWriter *writer) {
+    return writer->count + writer->spill_count;
+}
+
+// Waits until every record reserved in the spill file has been written. Call with mutex held.
+static void wait_for_spill_writes(PacketWriter *writer) {
+    while (writer->spill_pending > 0) {
+        pthread_cond_wait(&writer->cond, &writer->mutex);
+    }
+}
+
+// Empties the spill file. The file keeps its size, at most spill_max_bytes, and is overwritten
+// from the start. Call with mutex held.
+static void reset_spill(PacketWriter *writer) {
+    wait_for_spill_writes(writer);
+    writer->spill_count = 0;
+    writer->spill_read_pos = 0;
+    writer->spill_write_pos = 0;
+    writer->spill_key_pos = -1;
+    writer->spill_key_records = 0;
+    writer->spill_error = 0;
+}
+
+// Throws away everything in the spill file after it couldn't be written or read back. Call with
+// mutex held.
+static void drop_spill(PacketWriter *writer) {
+    LOGI("Spill file unusable, dropping it");
+    writer->stats.packets_dropped += writer->spill_count;
+    reset_spill(writer);
+    writer->wait_for_keyframe = 1;
+}
+
+// Appends pkt to the spill file, or counts it as dropped. Called with mutex held, which is
+// released while writing: the record's place is reserved first, so concurrent spills go to their
+// own offsets, and the writer thread doesn't read the file back until spill_pending drops to 0.
+static int spill(PacketWriter *writer, const AVPacket *pkt, int is_video) {
+    SpillRecord record;
+    memset(&record, 0, sizeof(record));
+    record.pts = pkt->pts;
+    record.size = pkt->size;
+    record.stream_index = pkt->stream_index;
+    record.flags = pkt->flags;
+    int64_t record_bytes = sizeof(record) + pkt->size;
+    int64_t pos = writer->spill_write_pos;
+    if (writer->spill_error || pos + record_bytes > writer->spill_max_bytes) {
+        writer->stats.packets_dropped++;
+        return -1;
+    }
+    if (is_video && (pkt->flags & AV_PKT_FLAG_KEY)) {
+        writer->spill_key_pos = pos;
+        writer->spill_key_records = 0;
+    }
+    if (writer->spill_key_pos >= 0) {
+        writer->spill_key_records++;
+    }
+    writer->spill_write_pos += record_bytes;
+    writer->spill_count++;
+    writer->spill_pending++;
+    pthread_mutex_unlock(&writer->mutex);
+
+    // Lands in the page cache; the encoder thread doesn't wait for the disk.
+    int result = 0;
+    if (pwrite(writer->spill_fd, &record, sizeof(record), pos) != (ssize_t) sizeof(record) ||
+        pwrite(writer->spill_fd, pkt->data, pkt->size, pos + sizeof(record)) !=
+        (ssize_t) pkt->size) {
+        LOGI("Could not spill packet: %s", strerror(errno));
+        result = -1;
+    }
+
+    pthread_mutex_lock(&writer->mutex);
+    if (result < 0) {
+        // The record stays in spill_count and is counted as dropped with the rest of the file.
+        writer->spill_error = 1;
+    }
+    writer->spill_pending--;
+    pthread_cond_signal(&writer->cond);
+    return result;
+}
+
+// Reads the spilled packet at pos into spill_packet. Writer thread only, without the mutex, so
+// a buffer allocation is reported in *allocated for the caller to count; returns the record's
+// length in the file, or -1.
+static int64_t read_spilled(PacketWriter *writer, int64_t pos, int *allocated) {
+    SpillRecord record;
+    QueuedPacket *packet = &writer->spill_packet;
+    if (pread(writer->spill_fd, &record, sizeof(record), pos) != (ssize_t) sizeof(record)) {
+        return -1;
+    }
+    if (packet->capacity < (unsigned int) record.size) {
+        av_fast_malloc(&packet->data, &packet->capacity, record.size);
+        *allocated = 1;
+        if (!packet->data) {
+            packet->capacity = 0;
+            return -1;
+        }
+    }
+    if (pread(writer->spill_fd, packet->data, record.size, pos + sizeof(record)) !=
+        (ssize_t) record.size) {
+        return -1;
+    }
+    packet->size = record.size;
+    packet->pts = record.pts;
+    packet->stream_index = record.stream_index;
+    packet->flags = record.flags;
+    return sizeof(record) + record.size;
+}
+
+// Drops the oldest packet. Call with mutex held.
+static void pop_packet(PacketWriter *writer, int64_t spilled_bytes) {
+    if (writer->count > 0) {
+        writer->head = (writer->head + 1) % writer->num_slots;
+        writer->count--;
+    } else if (writer->spill_count > 0) {
+        if (writer->spill_read_pos == writer->spill_key_pos) {
+            // Sent; trimming can't go back to it any more.
+            writer->spill_key_pos = -1;
+            writer->spill_key_records = 0;
+        }
+        writer->spill_read_pos += spilled_bytes;
+        if (--writer->spill_count == 0) {
+            reset_spill(writer);
+        }
+    }
+}
+
+// After a reconnect: if the backlog spans more than max_catchup_ms, keeps only what follows its
+// newest keyframe, since sending the rest would leave the stream that far behind for good.
+// Call with mutex held.
+static void trim_backlog(PacketWriter *writer) {
+    if (writer->count == 0 && writer->spill_count == 0) {
+        return;
+    }
+    int64_t oldest_pts;
+    if (writer->count > 0) {
+        oldest_pts = writer->slots[writer->head].pts;
+    } else {
+        // Only this thread moves spill_read_pos, so the record stays put while unlocked.
+        wait_for_spill_writes(writer);
+        int64_t pos = writer->spill_read_pos;
+        pthread_mutex_unlock(&writer->mutex);
+        SpillRecord record;
+        ssize_t bytes_read = pread(writer->spill_fd, &record, sizeof(record), pos);
+        pthread_mutex_lock(&writer->mutex);
+        if (bytes_read != (ssize_t) sizeof(record)) {
+            return;
+        }
+        oldest_pts = record.pts;
+    }
+    if (writer->newest_pts - oldest_pts <= writer->max_catchup_ms) {
+        return;
+    }
+
+    int before = backlog_depth(writer);
+    if (writer->spill_key_pos >= 0) {
+        // Everything in memory is older than the spill file.
+        writer->head = (writer->head + writer->count) % writer->num_slots;
+        writer->count = 0;
+        writer->spill_read_pos = writer->spill_key_pos;
+        writer->spill_count = writer->spill_key_records;
+    } else {
+        // The newest keyframe, if any, is in memory, and the spill file comes after it.
+        int key = -1;
+        for (int i = writer->count - 1; i >= 0; i--) {
+            QueuedPacket *slot = &writer->slots[(writer->head + i) % writer->num_slots];
+            if (slot->stream_index == 0 && (slot->flags & AV_PKT_FLAG_KEY)) {
+                key = i;
+                break;
+            }
+        }
+        if (key >= 0) {
+            writer->head = (writer->head + key) % writer->num_slots;
+            writer->count -= key;
+        } else {
+            writer->head = (writer->head + writer->count) % writer->num_slots;
+            writer->count = 0;
+            reset_spill(writer);
+            writer->wait_for_keyframe = 1;
+        }
+    }
+    writer->stats.packets_trimmed += before - backlog_depth(writer);
+    LOGI("Backlog too old to catch up on, trimmed %i packets", before - backlog_depth(writer));
+}
+
+// Waits up to delay_ms or until told to quit. Call with mutex held; returns non-zero on quit.
+static int wait_or_quit(PacketWriter *writer, int delay_ms) {
+    struct timeval now;
+    gettimeofday(&now, NULL);
+    int64_t deadline_us = (int64_t) now.tv_sec * 1000000 + now.tv_usec + delay_ms * 1000LL;
+    struct timespec deadline;
+    deadline.tv_sec = deadline_us / 1000000;
+    deadline.tv_nsec = (deadline_us % 1000000) * 1000;
+    while (!writer->quit) {
+        // Woken by every enqueue as well, so check the time again.
+        if (pthread_cond_timedwait(&writer->cond, &writer->mutex, &deadline) == ETIMEDOUT) {
+            break;
+        }
+    }
+    return writer->quit;
+}
+
+// Replaces the failed output, backing off between attempts. Called and returns with mutex
+// held; returns -1 if the writer is stopped first.
+static int reconnect(PacketWriter *writer) {
+    writer->connected = 0;
+    writer->stats.disconnects++;
+    pthread_mutex_unlock(&writer->mutex);
+    if (writer->callbacks.on_connection) {
+        writer->callbacks.on_connection(writer->callbacks.opaque, 0);
+    }
+    pthread_mutex_lock(&writer->mutex);
+
+    int delay_ms = RECONNECT_MIN_DELAY_MS;
+    for (;;) {
+        if (wait_or_quit(writer, delay_ms)) {
+            return -1;
+        }
+        pthread_mutex_unlock(&writer->mutex);
+        pthread_mutex_lock(&writer->mux_lock);
+        AVFormatContext *fmt_context = writer->callbacks.reconnect(writer->callbacks.opaque);
+        pthread_mutex_unlock(&writer->mux_lock);
+        pthread_mutex_lock(&writer->mutex);
+        if (fmt_context) {
+            writer->fmt_context = fmt_context;
+            break;
+        }
+        LOGI("Reconnect failed, next attempt in %i ms", delay_ms);
+        delay_ms = FFMIN(delay_ms * 2, RECONNECT_MAX_DELAY_MS);
+    }
+
+    writer->connected = 1;
+    writer->stats.reconnects++;
+    trim_backlog(writer);
+    pthread_mutex_unlock(&writer->mutex);
+    if (writer->callbacks.on_connection) {
+        writer->callbacks.on_connection(writer->callbacks.opaque, 1);
+    }
+    pthread_mutex_lock(&writer->mutex);
+    return 0;
+}
+
+static void *writer_main(void *arg) {
+    PacketWriter *writer = (PacketWriter *) arg;
+
+    pthread_mutex_lock(&writer->mutex);
+    for (;;) {
+        while (backlog_depth(writer) == 0 && !writer->quit && !writer->watermark_event) {
+            pthread_cond_wait(&writer->cond, &writer->mutex);
+        }
+
+        if (writer->watermark_event) {
+            int depth = writer->event_depth;
+            int above_high = writer->above_high;
+            writer->watermark_event = 0;
+            pthread_mutex_unlock(&writer->mutex);
+            if (writer->callbacks.on_watermark) {
+                writer->callbacks.on_watermark(writer->callbacks.opaque, depth, above_high);
+            }
+            pthread_mutex_lock(&writer->mutex);
+            continue;
+        }
+
+        if (backlog_depth(writer) == 0) {
+            break;  // Quitting, and everything is written.
+        }
+
+        // The memory queue holds the oldest packets. The head slot stays counted while it's
+        // being written, so producers leave it alone.
+        QueuedPacket *slot;
+        int64_t spilled_bytes = 0;
+        int allocated = 0;
+        if (writer->count > 0) {
+            slot = &writer->slots[writer->head];
+            pthread_mutex_unlock(&writer->mutex);
+        } else {
+            // Producers only append past spill_read_pos, so the file is read without the lock.
+            wait_for_spill_writes(writer);
+            int64_t pos = writer->spill_read_pos;
+            int spill_error = writer->spill_error;
+            pthread_mutex_unlock(&writer->mutex);
+            spilled_bytes = spill_error ? -1 : read_spilled(writer, pos, &allocated);
+            if (spilled_bytes < 0) {
+                pthread_mutex_lock(&writer->mutex);
+                writer->stats.buffer_allocations += allocated;
+                drop_spill(writer);
+                continue;
+            }
+            slot = &writer->spill_packet;
+        }
+
+        AVPacket pkt;
+        av_init_packet(&pkt);
+        pkt.data = slot->data;
+        pkt.size = slot->size;
+        pkt.pts = slot->pts;
+        pkt.stream_index = slot->stream_index;
+        pkt.flags = slot->flags;
+        pthread_mutex_lock(&writer->mux_lock);
+        if (writer->callbacks.before_write) {
+            writer->callbacks.before_write(writer->callbacks.opaque, &pkt);
+        }
+        int result = av_interleaved_write_frame(writer->fmt_context, &pkt);
+        pthread_mutex_unlock(&writer->mux_lock);
+        int64_t now_us = av_gettime();
+
+        pthread_mutex_lock(&writer->mutex);
+        writer->stats.buffer_allocations += allocated;
+        if (result != 0) {
+            LOGI("Error writing frame to stream %i: %i", slot->stream_index, result);
+            writer->stats.write_errors++;
+            if (writer->callbacks.reconnect) {
+                // The packet stays queued and goes out first on the new connection.
+                if (reconnect(writer) < 0) {
+                    break;
+                }
+                continue;
+            }
+        } else {
+            writer->stats.packets_written++;
+            writer->stats.bytes_written += slot->size;
+            writer->window_bytes += slot->size;
+        }
+        if (writer->window_start_us == 0) {
+            writer->window_start_us = now_us;
+        } else if (now_us - writer->window_start_us >= THROUGHPUT_WINDOW_US) {
+            writer->stats.throughput_bps = writer->window_bytes * 8 * 1000000 /
+                                           (now_us - writer->window_start_us);
+            writer->window_start_us = now_us;
+            writer->window_bytes = 0;
+        }
+        pop_packet(writer, spilled_bytes);
+        if (writer->above_high && backlog_depth(writer) <= writer->low_watermark) {
+            writer->above_high = 0;
+            writer->watermark_event = 1;
+            writer->event_depth = backlog_depth(writer);
+        }
+    }
+    // Stopped while the output was down: what is left can't be sent.
+    writer->stats.packets_dropped += backlog_depth(writer);
+    writer->head = (writer->head + writer->count) % writer->num_slots;
+    writer->count = 0;
+    if (writer->spill_count > 0) {
+        reset_spill(writer);
+    }
+    pthread_mutex_unlock(&writer->mutex);
+
+    if (writer->callbacks.on_thread_exit) {
+        writer->callbacks.on_thread_exit(writer->callbacks.opaque);
+    }
+    return NULL;
+}
+
+int packet_writer_start(PacketWriter *writer) {
+    writer->quit = 0;
+    if (pthread_create(&writer->thread, NULL, writer_main, writer) != 0) {
+        return -1;
+    }
+    writer->started = 1;
+    return 0;
+}
+
+int packet_writer_enqueue(PacketWriter *writer, const AVPacket *pkt, int is_video) {
+    int key_frame = pkt->flags & AV_PKT_FLAG_KEY;
+
+    pthread_mutex_lock(&writer->mutex);
+    if (is_video && writer->wait_for_keyframe && !key_frame) {
+        writer->stats.packets_dropped++;
+        pthread_mutex_unlock(&writer->mutex);
+        return -1;
+    }
+    if (writer->spill_count > 0 || writer->count == writer->num_slots) {
+        int result = -1;
+        if (writer->spill_fd >= 0) {
+            result = spill(writer, pkt, is_video);
+        } else {
+            writer->stats.packets_dropped++;
+        }
+        if (result < 0) {
+            if (is_video) {
+                writer->wait_for_keyframe = 1;
+            }
+            pthread_mutex_unlock(&writer->mutex);
+            return -1;
+        }
+    } else {
+        QueuedPacket *slot = &writer->slots[(writer->head + writer->count) % writer->num_slots];
+        if (slot->capacity < (unsigned int) pkt->size) {
+            // Slots only grow, so allocations stop once every slot has seen a large packet.
+            av_fast_malloc(&slot->data, &slot->capacity, pkt->size);
+            writer->stats.buffer_allocations++;
+            if (!slot->data) {
+                slot->capacity = 0;
+                writer->stats.packets_dropped++;
+                pthread_mutex_unlock(&writer->mutex);
+                return -1;
+            }
+        }
+        memcpy(slot->data, pkt->data, pkt->size);
+        slot->size = pkt->size;
+        slot->pts = pkt->pts;
+        slot->stream_index = pkt->stream_index;
+        slot->flags = pkt->flags;
+        writer->count++;
+    }
+    if (is_video && key_frame) {
+        writer->wait_for_keyframe = 0;
+    }
+    writer->newest_pts = pkt->pts;
+
+    int depth = backlog_depth(writer);
+    writer->stats.max_depth = FFMAX(writer->stats.max_depth, depth);
+    if (!writer->above_high && depth >= writer->high_watermark) {
+        writer->above_high = 1;
+        writer->watermark_event = 1;
+        writer->event_depth = depth;
+    }
+    pthread_cond_signal(&writer->cond);
+    pthread_mutex_unlock(&writer->mutex);
+    return 0;
+}
+
+void packet_writer_lock_muxer(PacketWriter *writer) {
+    pthread_mutex_lock(&writer->mux_lock);
+}
+
+void packet_writer_unlock_muxer(PacketWriter *writer) {
+    pthread_mutex_unlock(&writer->mux_lock);
+}
+
+void packet_writer_get_stats(PacketWriter *writer, PacketWriterStats *stats) {
+    if (!writer->slots) {
+        memset(stats, 0, sizeof(PacketWriterStats));
+        return;
+    }
+    int64_t now_us = av_gettime();
+    pthread_mutex_lock(&writer->mutex);
+    *stats = writer->stats;
+    stats->depth = backlog_depth(writer);
+    stats->backlog_bytes = writer->spill_write_pos - writer->spill_read_pos;
+    stats->connected = writer->connected;
+    int64_t elapsed_us = now_us - writer->window_start_us;
+    if (writer->window_start_us != 0 && elapsed_us >= 2 * THROUGHPUT_WINDOW_US) {
+        // Nothing has been written for a while; don't keep reporting the last good window.
+        stats->throughput_bps = writer->window_bytes * 8 * 1000000 / elapsed_us;
+    }
+    pthread_mutex_unlock(&writer->mutex);
+}
+
+void packet_writer_stop(PacketWriter *writer) {
+    if (!writer->started) {
+        return;
+    }
+    pthread_mutex_lock(&writer->mutex);
+    writer->quit = 1;
+    pthread_cond_signal(&writer->cond);
+    pthread_mutex_unlock(&writer->mutex);
+    pthread_join(writer->thread, NULL);
+    writer->started = 0;
+}
+
+void packet_writer_free(PacketWriter *writer) {
+    if (!writer->slots) {
+        return;
+    }
+    for (int i = 0; i < writer->num_slots; i++) {
+        av_freep(&writer->slots[i].data);
+    }
+    av_freep(&writer->slots);
+    av_freep(&writer->spill_packet.data);
+    if (writer->spill_fd >= 0) {
+        close(writer->spill_fd);
+        unlink(writer->spill_path);
+        writer->spill_fd = -1;
+    }
+    av_freep(&writer->spill_path);
+    pthread_cond_destroy(&writer->cond);
+    pthread_mutex_destroy(&writer->mutex);
+    pthread_mutex_destroy(&writer->mux_lock);
+}
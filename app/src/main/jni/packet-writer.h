@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#ifndef WATCHME_PACKET_WRITER_H
+#define WATCHME_PACKET_WRITER_H
+
+#include <pthread.h>
+#include <stdint.h>
+
+#include "libavformat/avformat.h"
+
+// Hooks called on the writer thread.
+typedef struct {
+    // The queue filled up to the high watermark (above_high = 1) or drained back down to the
+    // low watermark (above_high = 0).
+    void (*on_watermark)(void *opaque, int depth, int above_high);
+    // The writer thread is about to exit.
+    void (*on_thread_exit)(void *opaque);
+    // A packet is about to be muxed. Optional; called with the muxer lock held.
+    void (*before_write)(void *opaque, const AVPacket *pkt);
+    // Muxing failed: drop the broken output and open a new one, header written. Returns the new
+    // muxer or NULL to be tried again later. Optional; without it write errors are only
+    // counted. Called with the muxer lock held.
+    AVFormatContext *(*reconnect)(void *opaque);
+    // The output went down (connected = 0) or came back (connected = 1).
+    void (*on_connection)(void *opaque, int connected);
+    void *opaque;
+} PacketWriterCallbacks;
+
+typedef struct {
+    int64_t packets_written;
+    int64_t bytes_written;
+    int64_t packets_dropped;
+    int64_t write_errors;
+    int64_t buffer_allocations;
+    // Bytes written over the last full measurement window, in bits per second.
+    int64_t throughput_bps;
+    int64_t disconnects;
+    int64_t reconnects;
+    // Packets thrown away after a reconnect because the backlog was too old to catch up on.
+    int64_t packets_trimmed;
+    // Bytes waiting in the spill file.
+    int64_t backlog_bytes;
+    // Packets queued, in memory and on disk.
+    int depth;
+    int max_depth;
+    int connected;
+} PacketWriterStats;
+
+typedef struct {
+    uint8_t *data;
+    unsigned int capacity;
+    int size;
+    int64_t pts;
+    int stream_index;
+    int flags;
+} QueuedPacket;
+
+// Bounded queue of encoded packets drained into a muxer by its own thread, so a stalled
+// network write never blocks the encoders.
+//
+// When the output fails and a reconnect hook is set, the thread reconnects with exponential
+// backoff while packets keep queueing. Packets that don't fit the memory queue go to an optional
+// spill file; once anything is spilled, later packets follow it there until it has drained, so
+// order is kept. After reconnecting, the backlog is sent as fast as the output takes it, unless
+// it spans more than max_catchup_ms, in which case it is cut back to its newest keyframe.
+typedef struct {
+    AVFormatContext *fmt_context;
+    PacketWriterCallbacks callbacks;
+
+    pthread_mutex_t mutex;
+    pthread_cond_t cond;
+    // Held by the writer thread while it is inside the muxer.
+    pthread_mutex_t mux_lock;
+    pthread_t thread;
+    int started;
+    int quit;
+
+    QueuedPacket *slots;
+    int num_slots;
+    int head;
+    int count;
+
+    // Spill file, -1 if none. Records are appended at spill_write_pos and read back from
+    // spill_read_pos; both go back to 0 whenever it empties.
+    int spill_fd;
+    char *spill_path;
+    int64_t spill_max_bytes;
+    int64_t spill_write_pos;
+    int64_t spill_read_pos;
+    int spill_count;
+    // Position of the newest keyframe in the spill file, -1 if it holds none.
+    int64_t spill_key_pos;
+    int spill_key_records;  // Records from spill_key_pos to the end.
+    // Records reserved whose bytes are still being written, outside the mutex.
+    int spill_pending;
+    // A spilled record couldn't be written; the file is dropped once the writer reaches it.
+    int spill_error;
+    // Packet read back from the spill file. Writer thread only.
+    QueuedPacket spill_packet;
+
+    int connected;
+    int max_catchup_ms;
+    int64_t newest_pts;
+
+    int low_watermark;
+    int high_watermark;
+    int above_high;
+    int watermark_event;  // An on_watermark call is pending.
+    int event_depth;
+
+    // Set after a video packet is dropped; later video packets are dropped up to the next
+    // keyframe, since the decoder couldn't use them anyway.
+    int wait_for_keyframe;
+
+    // Bytes written since window_start_us, for the throughput figure.
+    int64_t window_start_us;
+    int64_t window_bytes;
+
+    PacketWriterStats stats;
+} PacketWriter;
+
+int packet_writer_init(PacketWriter *writer, AVFormatContext *fmt_context, int num_slots,
+                       int low_watermark, int high_watermark,
+                       const PacketWriterCallbacks *callbacks);
+
+int packet_writer_start(PacketWriter *writer);
+
+// Lets the queue overflow into a file at spill_path of up to max_bytes, and sets how much
+// backlog, in milliseconds of stream time, is still sent after a reconnect. Call before
+// packet_writer_start.
+int packet_writer_set_backlog(PacketWriter *writer, const char *spill_path, int64_t max_bytes,
+                              int max_catchup_ms);
+
+// Copies pkt into the queue. Never blocks on the network; returns -1 if the packet was dropped.
+int packet_writer_enqueue(PacketWriter *writer, const AVPacket *pkt, int is_video);
+
+void packet_writer_set_watermarks(PacketWriter *writer, int low_watermark, int high_watermark);
+
+// Waits for the packet being muxed, if any, and keeps the writer out of the muxer until
+// packet_writer_unlock_muxer. Packets can still be queued meanwhile.
+void packet_writer_lock_muxer(PacketWriter *writer);
+
+void packet_writer_unlock_muxer(PacketWriter *writer);
+
+void packet_writer_get_stats(PacketWriter *writer, PacketWriterStats *stats);
+
+// Writes out everything still queued, then stops the writer thread.
+void packet_writer_stop(PacketWriter *writer);
+
+void packet_writer_free(PacketWriter *writer);
+
+#endif  // WATCHME_PACKET_WRITER_H
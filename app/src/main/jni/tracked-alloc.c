@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+#include "libavutil/mem.h"
+
+#include "tracked-alloc.h"
+
+static int64_t allocations = 0;
+
+void *tracked_malloc(size_t size) {
+    tracked_count_allocation();
+    return av_malloc(size);
+}
+
+void *tracked_mallocz(size_t size) {
+    tracked_count_allocation();
+    return av_mallocz(size);
+}
+
+void tracked_free(void *ptr) {
+    av_free(ptr);
+}
+
+void tracked_count_allocation(void) {
+    __atomic_fetch_add(&allocations, 1, __ATOMIC_RELAXED);
+}
+
+int64_t tracked_allocation_count(void) {
+    return __atomic_load_n(&allocations, __ATOMIC_RELAXED);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+#ifndef WATCHME_TRACKED_ALLOC_H
+#define WATCHME_TRACKED_ALLOC_H
+
+#include <stddef.h>
+#include <stdint.h>
+
+// Every buffer the native code allocates for itself goes through here, so the count must stay
+// flat once streaming has started. Release them with tracked_free() or av_free().
+void *tracked_malloc(size_t size);
+
+// Same as tracked_malloc, with the memory zeroed.
+void *tracked_mallocz(size_t size);
+
+void tracked_free(void *ptr);
+
+// Counts an allocation a library call made for us, such as avcodec_alloc_frame().
+void tracked_count_allocation(void);
+
+int64_t tracked_allocation_count(void);
+
+#endif  // WATCHME_TRACKED_ALLOC_H
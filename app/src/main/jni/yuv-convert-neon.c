@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#include "neon-kernels.h"
+
+#if defined(WATCHME_NEON_KERNELS)
+#include <arm_neon.h>
+
+int yuv_deinterleave_vu_neon(const unsigned char *vu, unsigned char *u, unsigned char *v,
+                             int count) {
+    int i = 0;
+    for (; i + 16 <= count; i += 16) {
+        uint8x16x2_t pair = vld2q_u8(vu + 2 * i);
+        vst1q_u8(v + i, pair.val[0]);
+        vst1q_u8(u + i, pair.val[1]);
+    }
+    return i;
+}
+#endif
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#include <pthread.h>
+#include <stdlib.h>
+#include <unistd.h>
+
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#define YUV_USE_SSE2 1
+#if defined(__AVX2__)
+#include <immintrin.h>
+#define YUV_USE_AVX2 1
+#endif
+#endif
+
+#include "neon-kernels.h"
+#include "tracked-alloc.h"
+#include "yuv-convert.h"
+
+#define YUV_MAX_THREADS 4
+
+typedef struct {
+    YuvConverter *converter;
+    int part;
+    // The generation the worker has already handled. Set before the thread starts, so that a
+    // frame handed out before it first takes the mutex isn't mistaken for one already done.
+    unsigned int seen;
+    pthread_t thread;
+} YuvWorker;
+
+struct YuvConverter {
+    int width;
+    int height;
+    // Number of parts a frame is split into. Part 0 runs on the calling thread.
+    int num_parts;
+    YuvWorker workers[YUV_MAX_THREADS];
+
+    pthread_mutex_t mutex;
+    pthread_cond_t start_cond;
+    pthread_cond_t done_cond;
+    unsigned int generation;  // Bumped for every frame handed to the workers.
+    int pending;              // Workers still busy with the current frame.
+    int quit;
+
+    const unsigned char *vu;
+    unsigned char *u;
+    unsigned char *v;
+};
+
+void yuv_deinterleave_vu(const unsigned char *vu, unsigned char *u, unsigned char *v, int count) {
+    int i = 0;
+#if defined(WATCHME_NEON_KERNELS)
+    if (neon_available()) {
+        i = yuv_deinterleave_vu_neon(vu, u, v, count);
+    }
+#endif
+#if defined(YUV_USE_AVX2)
+    const __m256i low_bytes_256 = _mm256_set1_epi16(0x00ff);
+    for (; i + 32 <= count; i += 32) {
+        __m256i a = _mm256_loadu_si256((const __m256i *) (vu + 2 * i));
+        __m256i b = _mm256_loadu_si256((const __m256i *) (vu + 2 * i + 32));
+        __m256i v_out = _mm256_packus_epi16(_mm256_and_si256(a, low_bytes_256),
+                                            _mm256_and_si256(b, low_bytes_256));
+        __m256i u_out = _mm256_packus_epi16(_mm256_srli_epi16(a, 8), _mm256_srli_epi16(b, 8));
+        // packus works within 128 bit lanes; put the quadwords back in order.
+        _mm256_storeu_si256((__m256i *) (v + i), _mm256_permute4x64_epi64(v_out, 0xd8));
+        _mm256_storeu_si256((__m256i *) (u + i), _mm256_permute4x64_epi64(u_out, 0xd8));
+    }
+#endif
+#if defined(YUV_USE_SSE2)
+    const __m128i low_bytes = _mm_set1_epi16(0x00ff);
+    for (; i + 16 <= count; i += 16) {
+        __m128i a = _mm_loadu_si128((const __m128i *) (vu + 2 * i));
+        __m128i b = _mm_loadu_si128((const __m128i *) (vu + 2 * i + 16));
+        __m128i v_out = _mm_packus_epi16(_mm_and_si128(a, low_bytes), _mm_and_si128(b, low_bytes));
+        __m128i u_out = _mm_packus_epi16(_mm_srli_epi16(a, 8), _mm_srli_epi16(b, 8));
+        _mm_storeu_si128((__m128i *) (v + i), v_out);
+        _mm_storeu_si128((__m128i *) (u + i), u_out);
+    }
+#endif
+    for (; i < count; i++) {
+        v[i] = vu[i * 2];
+        u[i] = vu[i * 2 + 1];
+    }
+}
+
+static void convert_part(YuvConverter *converter, int part) {
+    // Chroma planes are width / 2 by height / 2 and unpadded, so whole rows are contiguous.
+    int rows = converter->height / 2;
+    int first = rows * part / converter->num_parts;
+    int last = rows * (part + 1) / converter->num_parts;
+    int row_pixels = converter->width / 2;
+    yuv_deinterleave_vu(converter->vu + first * row_pixels * 2,
+                        converter->u + first * row_pixels,
+                        converter->v + first * row_pixels,
+                        (last - first) * row_pixels);
+}
+
+static void *worker_main(void *arg) {
+    YuvWorker *worker = (YuvWorker *) arg;
+    YuvConverter *converter = worker->converter;
+
+    pthread_mutex_lock(&converter->mutex);
+    unsigned int seen = worker->seen;
+    for (;;) {
+        while (converter->generation == seen && !converter->quit) {
+            pthread_cond_wait(&converter->start_cond, &converter->mutex);
+        }
+        if (converter->quit) {
+            break;
+        }
+        seen = converter->generation;
+        pthread_mutex_unlock(&converter->mutex);
+
+        convert_part(converter, worker->part);
+
+        pthread_mutex_lock(&converter->mutex);
+        if (--converter->pending == 0) {
+            pthread_cond_signal(&converter->done_cond);
+        }
+    }
+    pthread_mutex_unlock(&converter->mutex);
+    return NULL;
+}
+
+YuvConverter *yuv_converter_create(int width, int height) {
+    YuvConverter *converter = (YuvConverter *) tracked_mallocz(sizeof(YuvConverter));
+    if (!converter) {
+        return NULL;
+    }
+    converter->width = width;
+    converter->height = height;
+    converter->num_parts = 1;
+    pthread_mutex_init(&converter->mutex, NULL);
+    pthread_cond_init(&converter->start_cond, NULL);
+    pthread_cond_init(&converter->done_cond, NULL);
+
+    if (width * height >= YUV_THREADED_MIN_PIXELS) {
+        long cpus = sysconf(_SC_NPROCESSORS_ONLN);
+        int parts = cpus > YUV_MAX_THREADS ? YUV_MAX_THREADS : (int) cpus;
+        for (int part = 1; part < parts; part++) {
+            YuvWorker *worker = &converter->workers[part];
+            worker->converter = converter;
+            worker->part = part;
+            worker->seen = converter->generation;
+            if (pthread_create(&worker->thread, NULL, worker_main, worker) != 0) {
+                break;
+            }
+            converter->num_parts = part + 1;
+        }
+    }
+    return converter;
+}
+
+void yuv_converter_destroy(YuvConverter *converter) {
+    if (!converter) {
+        return;
+    }
+    pthread_mutex_lock(&converter->mutex);
+    converter->quit = 1;
+    pthread_cond_broadcast(&converter->start_cond);
+    pthread_mutex_unlock(&converter->mutex);
+    for (int part = 1; part < converter->num_parts; part++) {
+        pthread_join(converter->workers[part].thread, NULL);
+    }
+    pthread_cond_destroy(&converter->done_cond);
+    pthread_cond_destroy(&converter->start_cond);
+    pthread_mutex_destroy(&converter->mutex);
+    tracked_free(converter);
+}
+
+void yuv_converter_nv21_to_i420(YuvConverter *converter, const unsigned char *vu,
+                                unsigned char *u, unsigned char *v) {
+    if (converter->num_parts == 1) {
+        yuv_deinterleave_vu(vu, u, v, converter->width / 2 * (converter->height / 2));
+        return;
+    }
+
+    pthread_mutex_lock(&converter->mutex);
+    converter->vu = vu;
+    converter->u = u;
+    converter->v = v;
+    converter->pending = converter->num_parts - 1;
+    converter->generation++;
+    pthread_cond_broadcast(&converter->start_cond);
+    pthread_mutex_unlock(&converter->mutex);
+
+    convert_part(converter, 0);
+
+    pthread_mutex_lock(&converter->mutex);
+    while (converter->pending > 0) {
+        pthread_cond_wait(&converter->done_cond, &converter->mutex);
+    }
+    pthread_mutex_unlock(&converter->mutex);
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+#ifndef WATCHME_YUV_CONVERT_H
+#define WATCHME_YUV_CONVERT_H
+
+// Frames with at least this many pixels have their chroma rows split across worker threads.
+#define YUV_THREADED_MIN_PIXELS (1280 * 720)
+
+typedef struct YuvConverter YuvConverter;
+
+// Creates a converter for width x height frames, or returns NULL on failure.
+YuvConverter *yuv_converter_create(int width, int height);
+
+void yuv_converter_destroy(YuvConverter *converter);
+
+// Splits the interleaved VU plane of an NV21 frame into separate U and V planes.
+void yuv_converter_nv21_to_i420(YuvConverter *converter, const unsigned char *vu,
+                                unsigned char *u, unsigned char *v);
+
+// Deinterleaves count VU pairs on the calling thread, using NEON, AVX2 or SSE2 when the target
+// has them.
+void yuv_deinterleave_vu(const unsigned char *vu, unsigned char *u, unsigned char *v, int count);
+
+#endif  // WATCHME_YUV_CONVERT_H
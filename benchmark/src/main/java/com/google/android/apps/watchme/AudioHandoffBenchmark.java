@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Per-chunk cost of the audio capture path: the record loop of {@link AudioFrameGrabber}, the
+ * {@link AudioFrameGrabber.FrameCallback} dispatch, the handoff to an encoder thread and the
+ * buffer's way back to the pool. The recorder never waits for audio, so the loop runs as fast as
+ * the handoff allows. One op is one chunk that reached the encoder thread.
+ */
+@State(Scope.Thread)
+public class AudioHandoffBenchmark {
+    // CONSTANTS.
+    private static final int CHUNKS = 10000;
+    private static final int SAMPLE_RATE = 44100;
+
+    private volatile CountDownLatch encoded;
+    private AudioFrameGrabber grabber;
+    private EncoderThread<CapturedFrame<ByteBuffer>> encoder;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        encoded = new CountDownLatch(CHUNKS);
+        grabber = new AudioFrameGrabber();
+        encoder = new EncoderThread<CapturedFrame<ByteBuffer>>("AudioEncoder",
+                AudioFrameGrabber.DEFAULT_BUFFER_COUNT) {
+            @Override
+            protected void encode(CapturedFrame<ByteBuffer> audio_data) {
+                grabber.recycleBuffer(audio_data);
+                encoded.countDown();
+            }
+
+            @Override
+            protected void discard(CapturedFrame<ByteBuffer> audio_data) {
+                grabber.recycleBuffer(audio_data);
+            }
+        };
+        grabber.setFrameCallback(new AudioFrameGrabber.FrameCallback() {
+            @Override
+            public boolean handleFrame(CapturedFrame<ByteBuffer> audio_data) {
+                return encoder.submit(audio_data);
+            }
+        });
+        encoder.start();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNKS)
+    public long recordAndHandOff() throws InterruptedException {
+        grabber.start(SAMPLE_RATE);
+        encoded.await();
+        grabber.stop();
+        encoder.shutdown();
+        return grabber.getChunksDropped();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme;
+
+import android.hardware.Camera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Per-frame cost of the video capture path: the preview callback of {@link VideoFrameGrabber},
+ * the {@link VideoFrameGrabber.FrameCallback} dispatch and giving the buffer back to the camera.
+ * One op is one captured frame.
+ */
+public class FrameDispatchBenchmark {
+
+    /**
+     * The receiver recycles the frame on the capture thread: dispatch and recycling only.
+     */
+    @Benchmark
+    public boolean dispatchAndRecycle(Inline state) {
+        return state.camera.capture();
+    }
+
+    /**
+     * Frames are handed to an encoder thread, which gives them back as VideoStreamingConnection
+     * does after encoding. Waits for a free buffer when all of them are in flight, so this is the
+     * sustainable frame rate of the handoff.
+     */
+    @Benchmark
+    public boolean handOffToEncoder(Threaded state) {
+        while (!state.camera.capture()) {
+            Thread.yield();
+        }
+        return true;
+    }
+
+    @State(Scope.Thread)
+    public static class Inline {
+        @Param({"320x240", "1280x720"})
+        public String size;
+
+        Camera camera;
+        VideoFrameGrabber grabber;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            camera = new Camera();
+            grabber = new VideoFrameGrabber();
+            start(camera, grabber, size);
+            grabber.setFrameCallback(new VideoFrameGrabber.FrameCallback() {
+                @Override
+                public void handleFrame(CapturedFrame<byte[]> frame) {
+                    grabber.recycleBuffer(frame.data);
+                }
+            });
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            grabber.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Threaded {
+        @Param({"320x240", "1280x720"})
+        public String size;
+
+        Camera camera;
+        VideoFrameGrabber grabber;
+        EncoderThread<CapturedFrame<byte[]>> encoder;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            camera = new Camera();
+            grabber = new VideoFrameGrabber();
+            start(camera, grabber, size);
+            encoder = new EncoderThread<CapturedFrame<byte[]>>("VideoEncoder",
+                    VideoFrameGrabber.DEFAULT_BUFFER_COUNT) {
+                @Override
+                protected void encode(CapturedFrame<byte[]> frame) {
+                    grabber.recycleBuffer(frame.data);
+                }
+
+                @Override
+                protected void discard(CapturedFrame<byte[]> frame) {
+                    grabber.recycleBuffer(frame.data);
+                }
+            };
+            grabber.setFrameCallback(new VideoFrameGrabber.FrameCallback() {
+                @Override
+                public void handleFrame(CapturedFrame<byte[]> frame) {
+                    if (!encoder.submit(frame)) {
+                        grabber.dropFrame(frame.data);
+                    }
+                }
+            });
+            encoder.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            encoder.shutdown();
+            grabber.stop();
+        }
+    }
+
+    private static void start(Camera camera, VideoFrameGrabber grabber, String size) {
+        String[] dimensions = size.split("x");
+        grabber.start(camera, Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * What the bitrate controller adds to every video frame: {@link BitrateController#update} and
+ * {@link BitrateController#shouldDropFrame}, with the clock advancing one frame per op so the
+ * sampling path runs at its real rate.
+ */
+@State(Scope.Thread)
+public class BitrateControllerBenchmark {
+    // CONSTANTS.
+    private static final long FRAME_MILLIS = 33;
+
+    private BitrateController controller;
+    private long nowMillis;
+    private int queueDepth;
+    private long bytesSent;
+
+    @Setup
+    public void setUp() {
+        controller = new BitrateController(new BitrateController.Output() {
+            @Override
+            public int getQueueDepth() {
+                return queueDepth;
+            }
+
+            @Override
+            public long getBytesSent() {
+                return bytesSent;
+            }
+
+            @Override
+            public void setBitrate(int bitrate) {
+            }
+        }, 200 * 1000, 3200 * 1000, 800 * 1000, 8, 64);
+    }
+
+    @Benchmark
+    public boolean updatePerFrame() {
+        nowMillis += FRAME_MILLIS;
+        bytesSent += 3000;
+        // Swing the queue across both watermarks so every branch is taken.
+        queueDepth = (int) (nowMillis / 1000 % 80);
+        controller.update(nowMillis);
+        return controller.shouldDropFrame();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import com.google.android.apps.watchme.tools.FakeYouTubeApi;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.youtube.YouTube;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long {@link YouTubeApi#createLiveEvent} takes against {@link FakeYouTubeApi} answering
+ * every request after the given latency, with a new stream inserted alongside the broadcast or
+ * with the stream of an earlier event reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateLiveEventBenchmark {
+    @Param({"false", "true"})
+    public boolean reuseStream;
+
+    @Param({"100"})
+    public int latencyMillis;
+
+    private FakeYouTubeApi api;
+    private YouTube youtube;
+    private String streamId;
+
+    @Setup
+    public void setUp() throws Exception {
+        api = new FakeYouTubeApi(0);
+        api.start();
+        youtube = new YouTube.Builder(new NetHttpTransport(), new GsonFactory(), null)
+                .setApplicationName("WatchMe benchmark")
+                .setRootUrl(api.getRootUrl())
+                .build();
+        if (reuseStream) {
+            streamId = YouTubeApi.createLiveEvent(youtube, "Benchmark", "Benchmark", null);
+        }
+        api.setLatencyMillis(latencyMillis);
+    }
+
+    @TearDown
+    public void tearDown() {
+        api.stop();
+    }
+
+    @Benchmark
+    public String createLiveEvent() throws IOException {
+        return YouTubeApi.createLiveEvent(youtube, "Benchmark", "Benchmark", streamId);
+    }
+}
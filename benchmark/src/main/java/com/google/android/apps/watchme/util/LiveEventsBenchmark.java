@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import com.google.android.apps.watchme.tools.FakeYouTubeApi;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.youtube.YouTube;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to list an account's upcoming broadcasts with their ingestion addresses,
+ * against {@link FakeYouTubeApi} answering every request after the given latency: the first page,
+ * which is what the events list waits for; all of them, with {@link YouTubeApi#getLiveEvents};
+ * and the first page through {@link LiveEventsCache}, revalidated with an ETag or served fresh.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LiveEventsBenchmark {
+    // CONSTANTS.
+    private static final String ACCOUNT_NAME = "benchmark@example.com";
+
+    @Param({"5", "40", "200"})
+    public int events;
+
+    @Param({"50"})
+    public int latencyMillis;
+
+    private FakeYouTubeApi api;
+    private YouTube youtube;
+    private LiveEventsCache cache;
+
+    @Setup
+    public void setUp() throws IOException {
+        api = new FakeYouTubeApi(0);
+        api.start();
+        youtube = new YouTube.Builder(new NetHttpTransport(), new GsonFactory(), null)
+                .setApplicationName("WatchMe benchmark")
+                .setRootUrl(api.getRootUrl())
+                .build();
+        for (int i = 0; i < events; i++) {
+            YouTubeApi.createLiveEvent(youtube, "Benchmark " + i, "Benchmark " + i);
+        }
+        api.setLatencyMillis(latencyMillis);
+        cache = new LiveEventsCache();
+        cache.getLiveEventsPage(youtube, ACCOUNT_NAME, null, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println(cache.getStatsSummary());
+        api.stop();
+    }
+
+    @Benchmark
+    public YouTubeApi.EventPage firstPage() throws IOException {
+        return YouTubeApi.getLiveEventsPage(youtube, null);
+    }
+
+    @Benchmark
+    public List<EventData> getLiveEvents() throws IOException {
+        return YouTubeApi.getLiveEvents(youtube);
+    }
+
+    @Benchmark
+    public YouTubeApi.EventPage revalidateCached() throws IOException {
+        return cache.getLiveEventsPage(youtube, ACCOUNT_NAME, null, true);
+    }
+
+    @Benchmark
+    public YouTubeApi.EventPage freshCached() throws IOException {
+        return cache.getLiveEventsPage(youtube, ACCOUNT_NAME, null, false);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The queue every frame and every audio chunk crosses on its way to the encoder thread, and the
+ * audio buffers on their way back.
+ */
+public class SpscRingBenchmark {
+    // CONSTANTS.
+    // Queue size between the grabbers and the encoder threads.
+    private static final int CAPACITY = 8;
+    private static final Object ITEM = new Object();
+
+    /**
+     * Offer and poll on one thread: the bare cost of the ring, without cache line transfers.
+     */
+    @Benchmark
+    public Object offerPoll(Local state) {
+        state.ring.offer(ITEM);
+        return state.ring.poll();
+    }
+
+    /**
+     * One producer and one consumer thread, as between a grabber and its encoder thread.
+     */
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean offer(Shared state) {
+        return state.ring.offer(ITEM);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public Object poll(Shared state) {
+        return state.ring.poll();
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        final SpscRing<Object> ring = new SpscRing<Object>(CAPACITY);
+    }
+
+    @State(Scope.Group)
+    public static class Shared {
+        final SpscRing<Object> ring = new SpscRing<Object>(CAPACITY);
+    }
+}
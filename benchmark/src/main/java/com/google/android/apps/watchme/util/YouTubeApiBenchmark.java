@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import com.google.android.apps.watchme.tools.FakeYouTubeApi;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.youtube.YouTube;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to live: how long {@link YouTubeApi#startEvent} takes against {@link FakeYouTubeApi} when
+ * the stream starts arriving ACTIVATION_DELAY_MILLIS after the call, with the given round trip
+ * to the API. The lower bound is the activation delay; the rest is polling slack and requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class YouTubeApiBenchmark {
+    // CONSTANTS.
+    private static final int ACTIVATION_DELAY_MILLIS = 1000;
+
+    @Param({"0", "100"})
+    public int latencyMillis;
+
+    private FakeYouTubeApi api;
+    private YouTube youtube;
+    private EventData event;
+
+    @Setup
+    public void setUp() throws IOException {
+        api = new FakeYouTubeApi(0);
+        api.start();
+        youtube = new YouTube.Builder(new NetHttpTransport(), new GsonFactory(), null)
+                .setApplicationName("WatchMe benchmark")
+                .setRootUrl(api.getRootUrl())
+                .build();
+    }
+
+    @Setup(Level.Iteration)
+    public void createEvent() throws IOException {
+        api.setLatencyMillis(0);
+        YouTubeApi.createLiveEvent(youtube, "Benchmark", "Benchmark");
+        List<EventData> events = YouTubeApi.getLiveEvents(youtube);
+        event = events.get(events.size() - 1);
+        api.setLatencyMillis(latencyMillis);
+        api.activateStream(event.getBoundStreamId(), ACTIVATION_DELAY_MILLIS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        api.stop();
+    }
+
+    @Benchmark
+    public void startEvent() throws IOException {
+        YouTubeApi.startEvent(youtube, event.getId(), event.getBoundStreamId());
+    }
+}
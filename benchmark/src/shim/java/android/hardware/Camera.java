@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.hardware;
+
+import android.graphics.ImageFormat;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JVM stand-in for the framework camera. Nothing is captured on its own: each {@link #capture}
+ * delivers one preview frame into the oldest queued callback buffer, the way the camera does
+ * when a frame comes off the sensor. Buffers may be added from any thread.
+ */
+public class Camera {
+    private final Parameters parameters = new Parameters();
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+    private volatile PreviewCallback callback;
+
+    public Parameters getParameters() {
+        return parameters;
+    }
+
+    public void setParameters(Parameters params) {
+    }
+
+    public void addCallbackBuffer(byte[] callbackBuffer) {
+        synchronized (buffers) {
+            buffers.add(callbackBuffer);
+        }
+    }
+
+    public void setPreviewCallbackWithBuffer(PreviewCallback cb) {
+        callback = cb;
+    }
+
+    /**
+     * Delivers one frame to the preview callback.
+     *
+     * @return false if no callback buffer was queued, in which case the frame is lost as it is
+     * on a device.
+     */
+    public boolean capture() {
+        byte[] buffer;
+        synchronized (buffers) {
+            buffer = buffers.poll();
+        }
+        if (buffer == null) {
+            return false;
+        }
+        PreviewCallback cb = callback;
+        if (cb != null) {
+            cb.onPreviewFrame(buffer, this);
+        }
+        return true;
+    }
+
+    public interface PreviewCallback {
+        void onPreviewFrame(byte[] data, Camera camera);
+    }
+
+    public class Size {
+        public int width;
+        public int height;
+
+        public Size(int w, int h) {
+            width = w;
+            height = h;
+        }
+    }
+
+    public class Parameters {
+        private final Size previewSize = new Size(640, 480);
+        private int previewFormat = ImageFormat.NV21;
+
+        public void setPreviewSize(int width, int height) {
+            previewSize.width = width;
+            previewSize.height = height;
+        }
+
+        public Size getPreviewSize() {
+            return previewSize;
+        }
+
+        public List<Integer> getSupportedPreviewFormats() {
+            return Arrays.asList(ImageFormat.NV21);
+        }
+
+        public void setPreviewFormat(int pixel_format) {
+            previewFormat = pixel_format;
+        }
+
+        public int getPreviewFormat() {
+            return previewFormat;
+        }
+    }
+}
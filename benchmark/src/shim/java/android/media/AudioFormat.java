@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.media;
+
+/**
+ * JVM stand-in for the framework class.
+ */
+public class AudioFormat {
+    public static final int ENCODING_PCM_16BIT = 2;
+    public static final int CHANNEL_CONFIGURATION_MONO = 2;
+    public static final int CHANNEL_CONFIGURATION_STEREO = 3;
+    public static final int CHANNEL_IN_MONO = 0x10;
+    public static final int CHANNEL_IN_STEREO = 0xc;
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.media;
+
+import java.nio.ByteBuffer;
+
+/**
+ * JVM stand-in for the framework recorder. Reads never wait for audio: each one fills the whole
+ * request at once, so a record loop runs as fast as what it hands the samples to.
+ */
+public class AudioRecord {
+    // Minimum buffer of a typical device at 44.1 kHz, 16 bit, per channel.
+    private static final int MIN_BUFFER_BYTES_PER_CHANNEL = 1792;
+
+    public AudioRecord(int audioSource, int sampleRateInHz, int channelConfig, int audioFormat,
+                       int bufferSizeInBytes) {
+    }
+
+    public static int getMinBufferSize(int sampleRateInHz, int channelConfig, int audioFormat) {
+        boolean stereo = channelConfig == AudioFormat.CHANNEL_CONFIGURATION_STEREO
+                || channelConfig == AudioFormat.CHANNEL_IN_STEREO;
+        return MIN_BUFFER_BYTES_PER_CHANNEL * (stereo ? 2 : 1);
+    }
+
+    public void startRecording() {
+    }
+
+    public void stop() {
+    }
+
+    public void release() {
+    }
+
+    public int read(ByteBuffer audioBuffer, int sizeInBytes) {
+        int size = Math.min(sizeInBytes, audioBuffer.capacity());
+        return size;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.text;
+
+/**
+ * JVM stand-in for the framework class.
+ */
+public final class TextUtils {
+    private TextUtils() {
+    }
+
+    public static String join(CharSequence delimiter, Iterable<?> tokens) {
+        StringBuilder joined = new StringBuilder();
+        boolean first = true;
+        for (Object token : tokens) {
+            if (!first) {
+                joined.append(delimiter);
+            }
+            joined.append(token);
+            first = false;
+        }
+        return joined.toString();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link BitrateController} with a simulated encoder whose packets go out over a local TCP
+ * connection, read on the other end at a limited rate.
+ */
+public class BitrateControllerTest {
+    // CONSTANTS.
+    private static final int MIN_BITRATE = 100 * 1000;
+    private static final int MAX_BITRATE = 1600 * 1000;
+    private static final int FRAME_RATE = 30;
+    private static final int LINK_BITRATE = 240 * 1000;
+    // Small socket buffers, so the queue backs up soon after the link does.
+    private static final int SOCKET_BUFFER_BYTES = 8 * 1024;
+    private static final long TIMEOUT_MILLIS = 30 * 1000;
+
+    private ServerSocket server;
+    private Socket sender;
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>();
+    private volatile long bytesSent;
+    private volatile int encoderBitrate = MAX_BITRATE;
+    // Bytes per second the receiving end reads; 0 for as fast as it can.
+    private volatile int readBytesPerSecond;
+    private volatile boolean running = true;
+    private BitrateController controller;
+    private Thread[] threads;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket();
+        server.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+        server.bind(null);
+        sender = new Socket();
+        sender.setSendBufferSize(SOCKET_BUFFER_BYTES);
+        sender.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                server.getLocalPort()));
+        final Socket receiver = server.accept();
+
+        controller = new BitrateController(new BitrateController.Output() {
+            @Override
+            public int getQueueDepth() {
+                return queue.size();
+            }
+
+            @Override
+            public long getBytesSent() {
+                return bytesSent;
+            }
+
+            @Override
+            public void setBitrate(int bitrate) {
+                encoderBitrate = bitrate;
+            }
+        }, MIN_BITRATE, MAX_BITRATE, MAX_BITRATE, 8, 64);
+
+        threads = new Thread[]{new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encode();
+            }
+        }, "Encoder"), new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        }, "Sender"), new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive(receiver);
+            }
+        }, "Receiver")};
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        running = false;
+        sender.close();
+        server.close();
+        for (Thread thread : threads) {
+            thread.interrupt();
+            thread.join(1000);
+        }
+    }
+
+    @Test
+    public void backsOffOnSlowLinkAndRecovers() throws InterruptedException {
+        readBytesPerSecond = LINK_BITRATE / 8;
+        assertTrue("Bitrate stayed at " + controller.getBitrate() + " on a "
+                        + LINK_BITRATE + " bps link",
+                awaitBitrate(LINK_BITRATE, false));
+        assertTrue("Bitrate went below the minimum", controller.getBitrate() >= MIN_BITRATE);
+
+        readBytesPerSecond = 0;
+        assertTrue("Bitrate stayed at " + controller.getBitrate() + " once the link cleared",
+                awaitBitrate(MAX_BITRATE / 2, true));
+        assertFalse("Still shedding frames once the link cleared", controller.isCongested());
+    }
+
+    @Test
+    public void stepsDownBeforeAnyThroughputIsMeasured() {
+        // Congested from the first sample, with nothing sent yet.
+        BitrateController stalled = new BitrateController(new BitrateController.Output() {
+            @Override
+            public int getQueueDepth() {
+                return 100;
+            }
+
+            @Override
+            public long getBytesSent() {
+                return 0;
+            }
+
+            @Override
+            public void setBitrate(int bitrate) {
+            }
+        }, MIN_BITRATE, MAX_BITRATE, MAX_BITRATE, 8, 64);
+        stalled.update(0);
+        stalled.update(BitrateController.SAMPLE_INTERVAL_MILLIS);
+        assertEquals(MAX_BITRATE * 85 / 100, stalled.getBitrate());
+        assertEquals(0, stalled.getThroughput());
+    }
+
+    /**
+     * @param above - Whether to wait for the bitrate to reach the target from below rather than
+     *              to drop under it.
+     * @return whether it did within TIMEOUT_MILLIS.
+     */
+    private boolean awaitBitrate(int target, boolean above) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            int bitrate = controller.getBitrate();
+            if (above ? bitrate >= target : bitrate < target) {
+                return true;
+            }
+            Thread.sleep(100);
+        }
+        return false;
+    }
+
+    // Queues a frame's worth of bytes at the current bitrate FRAME_RATE times a second, as the
+    // video encoder thread does, and lets the controller sample as it goes.
+    private void encode() {
+        long frameMillis = 1000 / FRAME_RATE;
+        try {
+            while (running) {
+                controller.update(System.nanoTime() / 1000000);
+                if (!controller.shouldDropFrame()) {
+                    queue.put(new byte[encoderBitrate / 8 / FRAME_RATE]);
+                }
+                Thread.sleep(frameMillis);
+            }
+        } catch (InterruptedException e) {
+            // Test over.
+        }
+    }
+
+    private void send() {
+        try {
+            OutputStream out = sender.getOutputStream();
+            while (running) {
+                byte[] packet = queue.take();
+                out.write(packet);
+                bytesSent += packet.length;
+            }
+        } catch (IOException e) {
+            // Closed at the end of the test.
+        } catch (InterruptedException e) {
+            // Test over.
+        }
+    }
+
+    private void receive(Socket receiver) {
+        byte[] buffer = new byte[1024];
+        try {
+            InputStream in = receiver.getInputStream();
+            while (running) {
+                int read = in.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                int rate = readBytesPerSecond;
+                if (rate > 0) {
+                    Thread.sleep(read * 1000L / rate);
+                }
+            }
+            receiver.close();
+        } catch (IOException e) {
+            // Closed at the end of the test.
+        } catch (InterruptedException e) {
+            // Test over.
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.util;
+
+import com.google.android.apps.watchme.tools.FakeYouTubeApi;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.youtube.YouTube;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Takes events live with {@link YouTubeApi#startEvent} against {@link FakeYouTubeApi}, pointed
+ * at as the app is with YOUTUBE_ROOT_URL. The fake refuses the transition while the stream is
+ * inactive, like YouTube.
+ */
+public class YouTubeApiTest {
+    // CONSTANTS.
+    private static final int ACTIVATION_DELAY_MILLIS = 1000;
+    private static final int DEADLINE_MILLIS = 2000;
+    private static final String TRANSITION = "POST liveBroadcasts/transition";
+
+    private FakeYouTubeApi api;
+    private YouTube youtube;
+    private String broadcastId;
+    private String streamId;
+
+    @Before
+    public void setUp() throws IOException {
+        api = new FakeYouTubeApi(0);
+        api.start();
+        youtube = new YouTube.Builder(new NetHttpTransport(), new GsonFactory(), null)
+                .setApplicationName("WatchMe test")
+                .setRootUrl(api.getRootUrl())
+                .build();
+        streamId = YouTubeApi.createLiveEvent(youtube, "Test", "Test", null);
+        broadcastId = api.getBroadcastIds().get(0);
+    }
+
+    @After
+    public void tearDown() {
+        api.stop();
+    }
+
+    @Test
+    public void goesLiveOnceStreamIsActive() throws IOException {
+        api.activateStream(streamId, ACTIVATION_DELAY_MILLIS);
+        long startMillis = System.currentTimeMillis();
+        YouTubeApi.startEvent(youtube, broadcastId, streamId, DEADLINE_MILLIS);
+
+        assertTrue("Went live before the stream was active",
+                System.currentTimeMillis() - startMillis >= ACTIVATION_DELAY_MILLIS);
+        assertEquals("live", getLifeCycleStatus());
+        assertEquals("Transition tried before the stream was active",
+                1, api.getRequestCount(TRANSITION));
+    }
+
+    @Test
+    public void looksUpTheBoundStream() throws IOException {
+        api.activateStream(streamId, 0);
+        YouTubeApi.startEvent(youtube, broadcastId, null, DEADLINE_MILLIS);
+
+        assertEquals("live", getLifeCycleStatus());
+    }
+
+    @Test
+    public void failsWhenStreamNeverTurnsActive() throws IOException {
+        try {
+            YouTubeApi.startEvent(youtube, broadcastId, streamId, DEADLINE_MILLIS);
+            fail("Went live without an active stream");
+        } catch (YouTubeApi.StreamInactiveException e) {
+            // Expected.
+        }
+
+        assertEquals(0, api.getRequestCount(TRANSITION));
+        assertEquals("ready", getLifeCycleStatus());
+    }
+
+    private String getLifeCycleStatus() throws IOException {
+        return youtube.liveBroadcasts().list("status").setId(broadcastId).execute().getItems()
+                .get(0).getStatus().getLifeCycleStatus();
+    }
+}
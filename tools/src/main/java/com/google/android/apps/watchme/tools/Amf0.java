@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The part of AMF0 that RTMP commands from a publishing client use. Values map to Double,
+ * Boolean, String, Map (objects and ECMA arrays), List (strict arrays) and null.
+ */
+final class Amf0 {
+    // CONSTANTS.
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NUMBER = 0x00;
+    private static final int BOOLEAN = 0x01;
+    private static final int STRING = 0x02;
+    private static final int OBJECT = 0x03;
+    private static final int NULL = 0x05;
+    private static final int UNDEFINED = 0x06;
+    private static final int ECMA_ARRAY = 0x08;
+    private static final int OBJECT_END = 0x09;
+    private static final int STRICT_ARRAY = 0x0a;
+    private static final int DATE = 0x0b;
+    private static final int LONG_STRING = 0x0c;
+
+    private Amf0() {
+    }
+
+    /**
+     * Decodes every value in data.
+     */
+    static List<Object> decodeAll(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        List<Object> values = new ArrayList<Object>();
+        while (buffer.hasRemaining()) {
+            values.add(decode(buffer));
+        }
+        return values;
+    }
+
+    static Object decode(ByteBuffer buffer) throws IOException {
+        int type = buffer.get() & 0xff;
+        switch (type) {
+            case NUMBER:
+                return buffer.getDouble();
+            case BOOLEAN:
+                return buffer.get() != 0;
+            case STRING:
+                return readString(buffer, buffer.getShort() & 0xffff);
+            case LONG_STRING:
+                return readString(buffer, buffer.getInt());
+            case OBJECT:
+                return readProperties(buffer);
+            case ECMA_ARRAY:
+                buffer.getInt();  // Count; the end marker is what counts.
+                return readProperties(buffer);
+            case STRICT_ARRAY:
+                int count = buffer.getInt();
+                List<Object> list = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) {
+                    list.add(decode(buffer));
+                }
+                return list;
+            case DATE:
+                double millis = buffer.getDouble();
+                buffer.getShort();  // Time zone, unused.
+                return millis;
+            case NULL:
+            case UNDEFINED:
+                return null;
+            default:
+                throw new IOException("Unsupported AMF0 type " + type);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static Map<String, Object> readProperties(ByteBuffer buffer) throws IOException {
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        for (; ; ) {
+            String key = readString(buffer, buffer.getShort() & 0xffff);
+            if (key.isEmpty() && (buffer.get(buffer.position()) & 0xff) == OBJECT_END) {
+                buffer.get();
+                return properties;
+            }
+            properties.put(key, decode(buffer));
+        }
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        out.write(STRING);
+        writeUtf8(out, value);
+    }
+
+    static void writeNumber(ByteArrayOutputStream out, double value) {
+        out.write(NUMBER);
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+
+    static void writeNull(ByteArrayOutputStream out) {
+        out.write(NULL);
+    }
+
+    /**
+     * @param properties - Values may be Number, Boolean, String or null.
+     */
+    static void writeObject(ByteArrayOutputStream out, Map<String, Object> properties) {
+        out.write(OBJECT);
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            writeUtf8(out, property.getKey());
+            Object value = property.getValue();
+            if (value instanceof Number) {
+                writeNumber(out, ((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                out.write(BOOLEAN);
+                out.write((Boolean) value ? 1 : 0);
+            } else if (value instanceof String) {
+                writeString(out, (String) value);
+            } else {
+                writeNull(out);
+            }
+        }
+        out.write(0);
+        out.write(0);
+        out.write(OBJECT_END);
+    }
+
+    private static void writeUtf8(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.write(bytes.length >> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,621 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.tools;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Local stand-in for the parts of the YouTube Data API v3 the app uses: inserting, listing,
+ * binding and transitioning live broadcasts, and inserting and listing live streams. State is
+ * kept in memory. Every request can be delayed to stand in for the round trip to Google, and
+ * requests are counted per method and resource, so API call patterns can be timed locally.
+ * <p/>
+ * A stream reports streamStatus "active" once data arrives for it: with --rtmp-port, when a
+ * publish for its stream name reaches the built-in ingest; in process, through
+ * {@link #activateStream}. Like the real API, a broadcast only transitions to testing or live
+ * while its bound stream is active. List responses carry an ETag, and a request whose
+ * If-None-Match matches the current one is answered 304 Not Modified. Lists are paged with
+ * maxResults and pageToken.
+ * <p/>
+ * Usage: FakeYouTubeApi [--port 8080] [--latency millis] [--rtmp-port 1935]
+ * <p/>
+ * Point the app at it by building with -PyoutubeRootUrl=http://10.0.2.2:8080/ (emulator host).
+ */
+public class FakeYouTubeApi {
+    // CONSTANTS.
+    public static final String SERVICE_PATH = "/youtube/v3/";
+    private static final int DEFAULT_PORT = 8080;
+    // Page sizes of list responses, as documented for the real API.
+    private static final int MAX_RESULTS_DEFAULT = 5;
+    private static final int MAX_RESULTS_LIMIT = 50;
+    private static final String PAGE_TOKEN_PREFIX = "page";
+    private static final String STREAM_READY = "ready";
+    private static final String STREAM_ACTIVE = "active";
+    private static final String STREAM_INACTIVE = "inactive";
+    private static final List<String> UPCOMING = Arrays.asList(
+            "created", "ready", "testStarting", "testing");
+    private static final List<String> ACTIVE = Arrays.asList("liveStarting", "live");
+
+    // Member variables.
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final Random random = new Random();
+    private final Map<String, JsonObject> broadcasts = new LinkedHashMap<String, JsonObject>();
+    private final Map<String, JsonObject> streams = new LinkedHashMap<String, JsonObject>();
+    private final Map<String, AtomicInteger> requestCounts = new HashMap<String, AtomicInteger>();
+    private final Map<String, Integer> failures = new HashMap<String, Integer>();
+    private volatile int latencyMillis;
+    private String ingestionAddress = "rtmp://127.0.0.1/live2";
+    private int nextId;
+
+    /**
+     * @param port - Port to listen on; 0 picks a free one.
+     */
+    public FakeYouTubeApi(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(SERVICE_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleRequest(exchange);
+            }
+        });
+        // Requests are served concurrently, as by the real API.
+        server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        int latency = 0;
+        int rtmpPort = -1;
+        for (int i = 0; i < args.length; i++) {
+            if ("--port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("--latency".equals(args[i]) && i + 1 < args.length) {
+                latency = Integer.parseInt(args[++i]);
+            } else if ("--rtmp-port".equals(args[i]) && i + 1 < args.length) {
+                rtmpPort = Integer.parseInt(args[++i]);
+            } else {
+                System.err.println("Usage: FakeYouTubeApi [--port n] [--latency millis]"
+                        + " [--rtmp-port n]");
+                System.exit(2);
+            }
+        }
+
+        final FakeYouTubeApi api = new FakeYouTubeApi(port);
+        api.setLatencyMillis(latency);
+        api.start();
+        System.out.println("Serving the YouTube Data API at " + api.getRootUrl());
+        if (rtmpPort >= 0) {
+            ServerSocket serverSocket = new ServerSocket(rtmpPort);
+            api.setIngestionAddress("rtmp://10.0.2.2:" + serverSocket.getLocalPort() + "/live2");
+            System.out.println("Listening for RTMP publishes on port "
+                    + serverSocket.getLocalPort());
+            RtmpIngestServer.serve(serverSocket, null, new RtmpIngestServer.ReportingListener() {
+                @Override
+                public void onPublish(RtmpSession session) {
+                    super.onPublish(session);
+                    api.setStreamStatusByName(session.getStreamName(), STREAM_ACTIVE);
+                }
+
+                @Override
+                public void onSessionEnded(RtmpSession session, IngestStats stats) {
+                    if (session.getStreamName() != null) {
+                        api.setStreamStatusByName(session.getStreamName(), STREAM_INACTIVE);
+                    }
+                    super.onSessionEnded(session, stats);
+                }
+            });
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return root URL to hand to the client library, e.g. "http://127.0.0.1:8080/".
+     */
+    public String getRootUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param millis - How long every request is held before it is answered.
+     */
+    public void setLatencyMillis(int millis) {
+        latencyMillis = millis;
+    }
+
+    /**
+     * @param address - Ingestion address given to streams inserted from now on.
+     */
+    public synchronized void setIngestionAddress(String address) {
+        ingestionAddress = address;
+    }
+
+    /**
+     * Marks a stream as receiving data after a delay, as if its encoder had connected.
+     *
+     * @param streamId    - Id of an inserted stream.
+     * @param delayMillis - How long from now.
+     */
+    public void activateStream(final String streamId, long delayMillis) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                setStreamStatus(streamId, STREAM_ACTIVE);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param key - HTTP method and resource, e.g. "GET liveStreams" or "POST liveBroadcasts/bind".
+     * @return requests served for it so far.
+     */
+    public synchronized int getRequestCount(String key) {
+        AtomicInteger count = requestCounts.get(key);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return requests served so far, all methods and resources.
+     */
+    public synchronized int getRequestCount() {
+        int total = 0;
+        for (AtomicInteger count : requestCounts.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * Makes the next request for the key fail, to exercise the app's error paths.
+     *
+     * @param key  - HTTP method and resource, e.g. "POST liveStreams".
+     * @param code - HTTP status to answer with.
+     */
+    public synchronized void failNextRequest(String key, int code) {
+        failures.put(key, code);
+    }
+
+    /**
+     * @return ids of the broadcasts created and not deleted, oldest first.
+     */
+    public synchronized List<String> getBroadcastIds() {
+        return new ArrayList<String>(broadcasts.keySet());
+    }
+
+    /**
+     * @return ids of the streams created and not deleted, oldest first.
+     */
+    public synchronized List<String> getStreamIds() {
+        return new ArrayList<String>(streams.keySet());
+    }
+
+    private synchronized void setStreamStatus(String streamId, String status) {
+        JsonObject stream = streams.get(streamId);
+        if (stream != null) {
+            stream.getAsJsonObject("status").addProperty("streamStatus", status);
+        }
+    }
+
+    private synchronized void setStreamStatusByName(String streamName, String status) {
+        for (JsonObject stream : streams.values()) {
+            String name = stream.getAsJsonObject("cdn").getAsJsonObject("ingestionInfo")
+                    .get("streamName").getAsString();
+            if (name.equals(streamName)) {
+                stream.getAsJsonObject("status").addProperty("streamStatus", status);
+            }
+        }
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        try {
+            String resource = exchange.getRequestURI().getPath()
+                    .substring(SERVICE_PATH.length());
+            String method = exchange.getRequestMethod();
+            Integer failure;
+            synchronized (this) {
+                String key = method + " " + resource;
+                if (!requestCounts.containsKey(key)) {
+                    requestCounts.put(key, new AtomicInteger());
+                }
+                requestCounts.get(key).incrementAndGet();
+                failure = failures.remove(key);
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            if (failure != null) {
+                throw new ApiException(failure, "backendError", "Injected failure");
+            }
+
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String etag = null;
+            String response;
+            synchronized (this) {
+                JsonObject json = dispatch(method, resource, query, readBody(exchange));
+                if (json == null) {
+                    // Deletes answer without a body.
+                    exchange.sendResponseHeaders(204, -1);
+                    exchange.close();
+                    return;
+                }
+                if ("GET".equals(method)) {
+                    // List responses carry an ETag over their contents, like the real ones.
+                    etag = etag(json.toString());
+                    json.addProperty("etag", etag);
+                }
+                response = json.toString();
+            }
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+            send(exchange, 200, response);
+        } catch (ApiException e) {
+            send(exchange, e.code, e.toJson().toString());
+        } catch (InterruptedException e) {
+            exchange.close();
+        } catch (RuntimeException e) {
+            send(exchange, 400,
+                    new ApiException(400, "badRequest", String.valueOf(e)).toJson().toString());
+        }
+    }
+
+    private JsonObject dispatch(String method, String resource, Map<String, String> query,
+                                InputStream body) throws IOException, ApiException {
+        if ("GET".equals(method) && "liveBroadcasts".equals(resource)) {
+            return listBroadcasts(query);
+        } else if ("POST".equals(method) && "liveBroadcasts".equals(resource)) {
+            return insertBroadcast(readJson(body));
+        } else if ("DELETE".equals(method) && "liveBroadcasts".equals(resource)) {
+            deleteBroadcast(query.get("id"));
+            return null;
+        } else if ("POST".equals(method) && "liveBroadcasts/bind".equals(resource)) {
+            return bind(query.get("id"), query.get("streamId"));
+        } else if ("POST".equals(method) && "liveBroadcasts/transition".equals(resource)) {
+            return transition(query.get("id"), query.get("broadcastStatus"));
+        } else if ("GET".equals(method) && "liveStreams".equals(resource)) {
+            return listStreams(query);
+        } else if ("POST".equals(method) && "liveStreams".equals(resource)) {
+            return insertStream(readJson(body));
+        } else if ("DELETE".equals(method) && "liveStreams".equals(resource)) {
+            deleteStream(query.get("id"));
+            return null;
+        }
+        throw new ApiException(404, "notFound", method + " " + resource + " is not supported");
+    }
+
+    private JsonObject listBroadcasts(Map<String, String> query) throws ApiException {
+        String filter = query.get("broadcastStatus");
+        List<JsonObject> items = new ArrayList<JsonObject>();
+        for (JsonObject broadcast : select(broadcasts, query.get("id"))) {
+            String lifeCycle = broadcast.getAsJsonObject("status").get("lifeCycleStatus")
+                    .getAsString();
+            if (filter == null || "all".equals(filter)
+                    || ("upcoming".equals(filter) && UPCOMING.contains(lifeCycle))
+                    || ("active".equals(filter) && ACTIVE.contains(lifeCycle))
+                    || ("completed".equals(filter) && "complete".equals(lifeCycle))) {
+                items.add(broadcast);
+            }
+        }
+        return listResponse("youtube#liveBroadcastListResponse", items, query);
+    }
+
+    private JsonObject listStreams(Map<String, String> query) throws ApiException {
+        return listResponse("youtube#liveStreamListResponse", select(streams, query.get("id")),
+                query);
+    }
+
+    private JsonObject insertBroadcast(JsonObject broadcast) {
+        String id = newId("broadcast");
+        broadcast.addProperty("kind", "youtube#liveBroadcast");
+        broadcast.addProperty("id", id);
+        JsonObject snippet = child(broadcast, "snippet");
+        JsonObject thumbnail = new JsonObject();
+        thumbnail.addProperty("url", "//i.ytimg.com/vi/" + id + "/default_live.jpg");
+        JsonObject thumbnails = new JsonObject();
+        thumbnails.add("default", thumbnail);
+        snippet.add("thumbnails", thumbnails);
+        child(broadcast, "status").addProperty("lifeCycleStatus", "created");
+        child(broadcast, "contentDetails");
+        broadcasts.put(id, broadcast);
+        return broadcast;
+    }
+
+    private void deleteBroadcast(String broadcastId) throws ApiException {
+        if (broadcasts.remove(broadcastId) == null) {
+            throw new ApiException(404, "liveBroadcastNotFound", "Broadcast not found");
+        }
+    }
+
+    private JsonObject insertStream(JsonObject stream) {
+        String id = newId("stream");
+        stream.addProperty("kind", "youtube#liveStream");
+        stream.addProperty("id", id);
+        JsonObject ingestionInfo = child(child(stream, "cdn"), "ingestionInfo");
+        ingestionInfo.addProperty("ingestionAddress", ingestionAddress);
+        ingestionInfo.addProperty("streamName", String.format("%04x-%04x-%04x-%04x",
+                random.nextInt(0x10000), random.nextInt(0x10000), random.nextInt(0x10000),
+                random.nextInt(0x10000)));
+        child(stream, "status").addProperty("streamStatus", STREAM_READY);
+        streams.put(id, stream);
+        return stream;
+    }
+
+    private void deleteStream(String streamId) throws ApiException {
+        if (streams.remove(streamId) == null) {
+            throw new ApiException(404, "liveStreamNotFound", "Stream not found");
+        }
+    }
+
+    private JsonObject bind(String broadcastId, String streamId) throws ApiException {
+        JsonObject broadcast = broadcasts.get(broadcastId);
+        if (broadcast == null) {
+            throw new ApiException(404, "liveBroadcastNotFound", "Broadcast not found");
+        }
+        if (streamId != null && !streams.containsKey(streamId)) {
+            throw new ApiException(404, "liveStreamNotFound", "Stream not found");
+        }
+        broadcast.getAsJsonObject("contentDetails").addProperty("boundStreamId", streamId);
+        broadcast.getAsJsonObject("status").addProperty("lifeCycleStatus",
+                streamId != null ? "ready" : "created");
+        return broadcast;
+    }
+
+    private JsonObject transition(String broadcastId, String target) throws ApiException {
+        JsonObject broadcast = broadcasts.get(broadcastId);
+        if (broadcast == null) {
+            throw new ApiException(404, "liveBroadcastNotFound", "Broadcast not found");
+        }
+        if ("completed".equals(target)) {
+            // What the app asks for when it ends an event.
+            target = "complete";
+        }
+        JsonObject status = broadcast.getAsJsonObject("status");
+        String lifeCycle = status.get("lifeCycleStatus").getAsString();
+        String next;
+        if ("testing".equals(target) && "ready".equals(lifeCycle)) {
+            next = "testing";
+        } else if ("live".equals(target)
+                && ("ready".equals(lifeCycle) || "testing".equals(lifeCycle))) {
+            next = "live";
+        } else if ("complete".equals(target)
+                && ("live".equals(lifeCycle) || "testing".equals(lifeCycle))) {
+            next = "complete";
+        } else if (lifeCycle.equals(target)) {
+            throw new ApiException(403, "redundantTransition", "Already " + lifeCycle);
+        } else {
+            throw new ApiException(403, "invalidTransition",
+                    "Can't go from " + lifeCycle + " to " + target);
+        }
+        if (!"complete".equals(next)) {
+            JsonObject contentDetails = broadcast.getAsJsonObject("contentDetails");
+            if (!contentDetails.has("boundStreamId")
+                    || contentDetails.get("boundStreamId").isJsonNull()) {
+                throw new ApiException(403, "errorStreamInactive", "No stream is bound");
+            }
+            JsonObject stream = streams.get(contentDetails.get("boundStreamId").getAsString());
+            String streamStatus = stream.getAsJsonObject("status").get("streamStatus")
+                    .getAsString();
+            if (!STREAM_ACTIVE.equals(streamStatus)) {
+                throw new ApiException(403, "errorStreamInactive",
+                        "The bound stream is " + streamStatus);
+            }
+        }
+        status.addProperty("lifeCycleStatus", next);
+        return broadcast;
+    }
+
+    private String newId(String prefix) {
+        return String.format("%s%06d", prefix, ++nextId);
+    }
+
+    private static List<JsonObject> select(Map<String, JsonObject> resources, String ids) {
+        if (ids == null) {
+            return new ArrayList<JsonObject>(resources.values());
+        }
+        List<JsonObject> selected = new ArrayList<JsonObject>();
+        for (String id : ids.split(",")) {
+            JsonObject resource = resources.get(id);
+            if (resource != null) {
+                selected.add(resource);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Answers one page of items, maxResults long (MAX_RESULTS_DEFAULT if not given), starting
+     * where pageToken says. Lookups by id aren't paged.
+     */
+    private static JsonObject listResponse(String kind, List<JsonObject> items,
+                                           Map<String, String> query) throws ApiException {
+        int maxResults = query.containsKey("id") ? MAX_RESULTS_LIMIT
+                : query.containsKey("maxResults") ? Integer.parseInt(query.get("maxResults"))
+                : MAX_RESULTS_DEFAULT;
+        if (maxResults < 0 || maxResults > MAX_RESULTS_LIMIT) {
+            throw new ApiException(400, "invalidValue", "maxResults out of range");
+        }
+        int start = 0;
+        String pageToken = query.get("pageToken");
+        if (pageToken != null) {
+            if (!pageToken.startsWith(PAGE_TOKEN_PREFIX)) {
+                throw new ApiException(400, "invalidPageToken", "Bad page token");
+            }
+            start = Math.min(Integer.parseInt(pageToken.substring(PAGE_TOKEN_PREFIX.length())),
+                    items.size());
+        }
+        int end = Math.min(start + maxResults, items.size());
+
+        JsonObject response = new JsonObject();
+        response.addProperty("kind", kind);
+        if (end < items.size()) {
+            response.addProperty("nextPageToken", PAGE_TOKEN_PREFIX + end);
+        }
+        if (start > 0) {
+            response.addProperty("prevPageToken",
+                    PAGE_TOKEN_PREFIX + Math.max(0, start - maxResults));
+        }
+        JsonObject pageInfo = new JsonObject();
+        pageInfo.addProperty("totalResults", items.size());
+        pageInfo.addProperty("resultsPerPage", maxResults);
+        response.add("pageInfo", pageInfo);
+        JsonArray array = new JsonArray();
+        for (JsonObject item : items.subList(start, end)) {
+            array.add(item);
+        }
+        response.add("items", array);
+        return response;
+    }
+
+    private static JsonObject child(JsonObject parent, String name) {
+        if (!parent.has(name) || !parent.get(name).isJsonObject()) {
+            parent.add(name, new JsonObject());
+        }
+        return parent.getAsJsonObject(name);
+    }
+
+    private static String etag(String content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content.getBytes("UTF-8"));
+            return "\"" + new BigInteger(1, digest).toString(16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static InputStream readBody(HttpExchange exchange) throws IOException {
+        // The client library gzips request bodies.
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            return new GZIPInputStream(exchange.getRequestBody());
+        }
+        return exchange.getRequestBody();
+    }
+
+    private static JsonObject readJson(InputStream body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = body.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        if (bytes.size() == 0) {
+            return new JsonObject();
+        }
+        return new JsonParser().parse(bytes.toString("UTF-8")).getAsJsonObject();
+    }
+
+    private static Map<String, String> parseQuery(String query)
+            throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * An error answered in the API's error format.
+     */
+    private static class ApiException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+        final String reason;
+
+        ApiException(int code, String reason, String message) {
+            super(message);
+            this.code = code;
+            this.reason = reason;
+        }
+
+        JsonObject toJson() {
+            JsonObject error = new JsonObject();
+            error.addProperty("domain", "youtube.liveBroadcast");
+            error.addProperty("reason", reason);
+            error.addProperty("message", getMessage());
+            JsonArray errors = new JsonArray();
+            errors.add(error);
+            JsonObject details = new JsonObject();
+            details.addProperty("code", code);
+            details.addProperty("message", getMessage());
+            details.add("errors", errors);
+            JsonObject body = new JsonObject();
+            body.add("error", details);
+            return body;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Feeds the tags of an FLV file, such as a recorded segment or a file sink, to an
+ * {@link IngestStats}. A file cut short is read up to its last complete tag.
+ */
+final class FlvReader {
+    // CONSTANTS.
+    private static final int FLV_HEADER_SIZE = 9;
+
+    private FlvReader() {
+    }
+
+    static void read(File file, IngestStats stats) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            byte[] header = new byte[FLV_HEADER_SIZE];
+            in.readFully(header);
+            if (header[0] != 'F' || header[1] != 'L' || header[2] != 'V') {
+                throw new IOException(file + " is not an FLV file");
+            }
+            in.skipBytes(readInt(header, 5) - FLV_HEADER_SIZE);
+            byte[] body = new byte[0];
+            for (; ; ) {
+                in.readInt();  // Size of the previous tag.
+                int type = in.readUnsignedByte() & 0x1f;
+                int size = readUint24(in);
+                long timestamp = readUint24(in) | (long) in.readUnsignedByte() << 24;
+                readUint24(in);  // Stream id, always 0.
+                if (body.length < size) {
+                    body = new byte[size];
+                }
+                in.readFully(body, 0, size);
+                stats.onTag(type, timestamp, body, size, 0);
+            }
+        } catch (EOFException e) {
+            // End of the file, or of what was written of it.
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readUint24(DataInputStream in) throws IOException {
+        return in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+}
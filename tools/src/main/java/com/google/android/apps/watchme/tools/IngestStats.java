@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.tools;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Per-stream figures of what reached the ingest: arrival time, bitrate, keyframe spacing and
+ * audio/video interleave skew. Fed with one FLV tag at a time by {@link RtmpSession} or
+ * {@link FlvReader}. Not thread safe; each stream has its own instance.
+ */
+final class IngestStats {
+    // CONSTANTS.
+    static final int TAG_AUDIO = 8;
+    static final int TAG_VIDEO = 9;
+    static final int TAG_SCRIPT = 18;
+    private static final int FLV_CODEC_AVC = 7;
+    private static final int FLV_CODEC_AAC = 10;
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
+    private static final long NANOS_PER_SECOND = 1000 * NANOS_PER_MILLI;
+
+    private final String name;
+    // False when reading a file, which has no arrival times.
+    private final boolean live;
+    private final PrintWriter csv;
+
+    private long firstArrivalNanos = -1;
+    private long lastArrivalNanos;
+    private long firstTimestamp = -1;
+    private long videoPackets;
+    private long audioPackets;
+    private long videoBytes;
+    private long audioBytes;
+    private long scriptTags;
+    private long sequenceHeaders;
+    private long lastVideoTimestamp = -1;
+    private long lastAudioTimestamp = -1;
+    private long backwardTimestamps;
+    // Keyframe spacing, in stream milliseconds.
+    private long lastKeyframeTimestamp = -1;
+    private final List<Long> keyframeSpacings = new ArrayList<Long>();
+    // Newest audio timestamp minus newest video timestamp, sampled at every packet once both
+    // have been seen.
+    private long skewSamples;
+    private long skewSum;
+    private long maxSkew = Long.MIN_VALUE;
+    private long minSkew = Long.MAX_VALUE;
+    // How far the arrival clock ran behind the stream clock, relative to the first packet.
+    private long maxArrivalLagMillis;
+    private long arrivalLagSum;
+    // Bytes received in each wall-clock second since the first packet.
+    private final List<Long> bytesPerSecond = new ArrayList<Long>();
+
+    /**
+     * @param name - Stream name to print in the report.
+     * @param live - Whether packets arrive over the network rather than from a file.
+     * @param csv  - Where to write one line per packet, or null.
+     */
+    IngestStats(String name, boolean live, PrintWriter csv) {
+        this.name = name;
+        this.live = live;
+        this.csv = csv;
+        if (csv != null) {
+            csv.println("arrival_ms,type,timestamp_ms,size,keyframe,sequence_header,av_skew_ms");
+        }
+    }
+
+    /**
+     * @param type         - FLV tag type.
+     * @param timestamp    - Tag timestamp in milliseconds.
+     * @param body         - Tag payload.
+     * @param length       - Payload size.
+     * @param arrivalNanos - System.nanoTime() at which the tag was complete; ignored for files.
+     */
+    void onTag(int type, long timestamp, byte[] body, int length, long arrivalNanos) {
+        if (type == TAG_SCRIPT) {
+            scriptTags++;
+            return;
+        }
+        if ((type != TAG_AUDIO && type != TAG_VIDEO) || length < 1) {
+            return;
+        }
+        if (!live) {
+            arrivalNanos = timestamp * NANOS_PER_MILLI;
+        }
+        if (firstArrivalNanos < 0) {
+            firstArrivalNanos = arrivalNanos;
+            firstTimestamp = timestamp;
+        }
+        lastArrivalNanos = arrivalNanos;
+
+        boolean keyframe = false;
+        boolean sequenceHeader = false;
+        if (type == TAG_VIDEO) {
+            keyframe = (body[0] & 0xf0) >> 4 == 1;
+            sequenceHeader = (body[0] & 0x0f) == FLV_CODEC_AVC && length > 1 && body[1] == 0;
+        } else {
+            sequenceHeader = (body[0] & 0xf0) >> 4 == FLV_CODEC_AAC && length > 1 && body[1] == 0;
+        }
+        if (sequenceHeader) {
+            // Codec configuration, not media; it carries no timing worth measuring.
+            sequenceHeaders++;
+            writeCsv(arrivalNanos, type, timestamp, length, keyframe, true, "");
+            return;
+        }
+
+        if (type == TAG_VIDEO) {
+            videoPackets++;
+            videoBytes += length;
+            if (timestamp < lastVideoTimestamp) {
+                backwardTimestamps++;
+            }
+            lastVideoTimestamp = timestamp;
+            if (keyframe) {
+                if (lastKeyframeTimestamp >= 0) {
+                    keyframeSpacings.add(timestamp - lastKeyframeTimestamp);
+                }
+                lastKeyframeTimestamp = timestamp;
+            }
+        } else {
+            audioPackets++;
+            audioBytes += length;
+            if (timestamp < lastAudioTimestamp) {
+                backwardTimestamps++;
+            }
+            lastAudioTimestamp = timestamp;
+        }
+
+        String skew = "";
+        if (lastVideoTimestamp >= 0 && lastAudioTimestamp >= 0) {
+            long sample = lastAudioTimestamp - lastVideoTimestamp;
+            skewSamples++;
+            skewSum += sample;
+            maxSkew = Math.max(maxSkew, sample);
+            minSkew = Math.min(minSkew, sample);
+            skew = Long.toString(sample);
+        }
+
+        long arrivalMillis = (arrivalNanos - firstArrivalNanos) / NANOS_PER_MILLI;
+        long lag = arrivalMillis - (timestamp - firstTimestamp);
+        maxArrivalLagMillis = Math.max(maxArrivalLagMillis, lag);
+        arrivalLagSum += lag;
+
+        int second = (int) ((arrivalNanos - firstArrivalNanos) / NANOS_PER_SECOND);
+        while (bytesPerSecond.size() <= second) {
+            bytesPerSecond.add(0L);
+        }
+        bytesPerSecond.set(second, bytesPerSecond.get(second) + length);
+
+        writeCsv(arrivalNanos, type, timestamp, length, keyframe, false, skew);
+    }
+
+    private void writeCsv(long arrivalNanos, int type, long timestamp, int length,
+                          boolean keyframe, boolean sequenceHeader, String skew) {
+        if (csv == null) {
+            return;
+        }
+        csv.println((arrivalNanos - firstArrivalNanos) / NANOS_PER_MILLI + ","
+                + (type == TAG_VIDEO ? "video" : "audio") + "," + timestamp + "," + length + ","
+                + (keyframe ? 1 : 0) + "," + (sequenceHeader ? 1 : 0) + "," + skew);
+    }
+
+    long getPackets() {
+        return videoPackets + audioPackets;
+    }
+
+    /**
+     * Prints the summary of everything seen so far.
+     */
+    void report(PrintStream out) {
+        long packets = getPackets();
+        out.println("== " + name + (live ? "" : " (file)"));
+        if (packets == 0) {
+            out.println("   no media packets");
+            return;
+        }
+        long durationMillis = (lastArrivalNanos - firstArrivalNanos) / NANOS_PER_MILLI;
+        long streamMillis = Math.max(lastVideoTimestamp, lastAudioTimestamp) - firstTimestamp;
+        out.println(String.format(Locale.US,
+                "   packets: %d video, %d audio, %d sequence headers, %d script tags",
+                videoPackets, audioPackets, sequenceHeaders, scriptTags));
+        out.println(String.format(Locale.US, "   duration: %.1f s stream%s", streamMillis / 1000.0,
+                live ? String.format(Locale.US, ", %.1f s arrival", durationMillis / 1000.0) : ""));
+        if (durationMillis > 0) {
+            out.println(String.format(Locale.US,
+                    "   bitrate: %d kbps video, %d kbps audio, %d kbps total",
+                    videoBytes * 8 / durationMillis, audioBytes * 8 / durationMillis,
+                    (videoBytes + audioBytes) * 8 / durationMillis));
+            out.println(String.format(Locale.US, "   video frame rate: %.1f fps",
+                    videoPackets * 1000.0 / durationMillis));
+        }
+        if (live && bytesPerSecond.size() > 2) {
+            // The first and last seconds are partial.
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 1; i < bytesPerSecond.size() - 1; i++) {
+                min = Math.min(min, bytesPerSecond.get(i));
+                max = Math.max(max, bytesPerSecond.get(i));
+            }
+            out.println(String.format(Locale.US, "   per-second bitrate: %d..%d kbps",
+                    min * 8 / 1000, max * 8 / 1000));
+        }
+        if (!keyframeSpacings.isEmpty()) {
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            long sum = 0;
+            for (long spacing : keyframeSpacings) {
+                min = Math.min(min, spacing);
+                max = Math.max(max, spacing);
+                sum += spacing;
+            }
+            out.println(String.format(Locale.US,
+                    "   keyframe spacing: %d ms min, %d ms avg, %d ms max over %d keyframes",
+                    min, sum / keyframeSpacings.size(), max, keyframeSpacings.size() + 1));
+        } else {
+            out.println("   keyframe spacing: fewer than two keyframes");
+        }
+        if (skewSamples > 0) {
+            out.println(String.format(Locale.US,
+                    "   a/v skew (audio - video): %d ms min, %d ms avg, %d ms max",
+                    minSkew, skewSum / skewSamples, maxSkew));
+        }
+        if (live) {
+            out.println(String.format(Locale.US,
+                    "   arrival lag behind stream clock: %d ms avg, %d ms max",
+                    arrivalLagSum / packets, maxArrivalLagMillis));
+        }
+        if (backwardTimestamps > 0) {
+            out.println("   timestamps going backwards: " + backwardTimestamps);
+        }
+    }
+}
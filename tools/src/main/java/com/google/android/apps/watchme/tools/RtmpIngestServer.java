@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Local stand-in for the YouTube ingest. Accepts RTMP publishes on the given port, under any
+ * application and stream name, and prints what arrived once each publisher disconnects:
+ * bitrate, keyframe spacing, audio/video skew and how far arrival lagged the stream clock.
+ * <p/>
+ * Usage: RtmpIngestServer [--port 1935] [--csv directory] [--flv file...]
+ * <p/>
+ * With --csv, each stream also gets a CSV with one line per packet. With --flv, the given FLV
+ * files (recorded segments, file sinks) are analysed instead and the server doesn't start.
+ */
+public class RtmpIngestServer {
+    // CONSTANTS.
+    private static final int DEFAULT_PORT = 1935;
+
+    public static void main(String[] args) throws IOException {
+        int port = DEFAULT_PORT;
+        File csvDirectory = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("--port".equals(args[i]) && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if ("--csv".equals(args[i]) && i + 1 < args.length) {
+                csvDirectory = new File(args[++i]);
+                if (!csvDirectory.isDirectory() && !csvDirectory.mkdirs()) {
+                    throw new IOException("Could not create " + csvDirectory);
+                }
+            } else if ("--flv".equals(args[i])) {
+                for (i++; i < args.length; i++) {
+                    File file = new File(args[i]);
+                    IngestStats stats = new IngestStats(file.getName(), false, null);
+                    FlvReader.read(file, stats);
+                    stats.report(System.out);
+                }
+                return;
+            } else {
+                System.err.println("Usage: RtmpIngestServer [--port n] [--csv directory]"
+                        + " [--flv file...]");
+                System.exit(2);
+            }
+        }
+        serve(port, csvDirectory);
+    }
+
+    private static void serve(int port, File csvDirectory) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Listening for RTMP publishes on port " + port);
+        serve(serverSocket, csvDirectory, new ReportingListener());
+    }
+
+    /**
+     * Accepts publishes until the socket is closed, each on its own thread.
+     */
+    static void serve(ServerSocket serverSocket, File csvDirectory, RtmpSession.Listener listener)
+            throws IOException {
+        for (; ; ) {
+            Socket socket = serverSocket.accept();
+            Thread thread = new Thread(new RtmpSession(socket, csvDirectory, listener),
+                    "RtmpSession-" + socket.getRemoteSocketAddress());
+            thread.start();
+        }
+    }
+
+    /**
+     * Prints when a publish starts and the figures of each stream once it ends.
+     */
+    static class ReportingListener implements RtmpSession.Listener {
+        @Override
+        public void onPublish(RtmpSession session) {
+            System.out.println("Publishing started: " + session.getStreamName());
+        }
+
+        @Override
+        public void onSessionEnded(RtmpSession session, IngestStats stats) {
+            if (stats != null) {
+                // Sessions end concurrently; keep each report in one piece.
+                synchronized (System.out) {
+                    stats.report(System.out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.apps.watchme.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Server side of one RTMP publishing connection: just enough of the protocol for a client to
+ * connect, create a stream and publish into it. Every audio, video and data message is handed
+ * to an {@link IngestStats} as the FLV tag it would be in a file.
+ */
+final class RtmpSession implements Runnable {
+    // CONSTANTS.
+    private static final int HANDSHAKE_SIZE = 1536;
+    private static final int DEFAULT_CHUNK_SIZE = 128;
+    private static final int SERVER_CHUNK_SIZE = 4096;
+    private static final int WINDOW_ACK_SIZE = 2500000;
+    private static final int PUBLISH_STREAM_ID = 1;
+
+    private static final int MSG_SET_CHUNK_SIZE = 1;
+    private static final int MSG_ABORT = 2;
+    private static final int MSG_ACK = 3;
+    private static final int MSG_USER_CONTROL = 4;
+    private static final int MSG_WINDOW_ACK_SIZE = 5;
+    private static final int MSG_SET_PEER_BANDWIDTH = 6;
+    private static final int MSG_AUDIO = 8;
+    private static final int MSG_VIDEO = 9;
+    private static final int MSG_DATA_AMF3 = 15;
+    private static final int MSG_COMMAND_AMF3 = 17;
+    private static final int MSG_DATA_AMF0 = 18;
+    private static final int MSG_COMMAND_AMF0 = 20;
+
+    private static final int CSID_CONTROL = 2;
+    private static final int CSID_COMMAND = 3;
+
+    private final Socket socket;
+    private final File csvDirectory;
+    private final Listener listener;
+    private DataInputStream in;
+    private OutputStream out;
+    private int inChunkSize = DEFAULT_CHUNK_SIZE;
+    private int outChunkSize = DEFAULT_CHUNK_SIZE;
+    private long bytesRead;
+    private long lastAckBytes;
+    private int peerWindowAckSize;
+    private final Map<Integer, ChunkStream> chunkStreams = new HashMap<Integer, ChunkStream>();
+    private String streamName;
+    private IngestStats stats;
+    private PrintWriter csv;
+
+    /**
+     * @param socket       - Accepted connection; closed when the session ends.
+     * @param csvDirectory - Where to write a per-packet CSV of each stream, or null.
+     * @param listener     - Told when publishing starts and when the connection ends.
+     */
+    RtmpSession(Socket socket, File csvDirectory, Listener listener) {
+        this.socket = socket;
+        this.csvDirectory = csvDirectory;
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            handshake();
+            for (; ; ) {
+                readChunk();
+            }
+        } catch (EOFException e) {
+            // Client went away; the usual way for a publish to end.
+        } catch (IOException e) {
+            System.err.println(socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+            if (csv != null) {
+                csv.close();
+            }
+            listener.onSessionEnded(this, stats);
+        }
+    }
+
+    String getStreamName() {
+        return streamName;
+    }
+
+    private void handshake() throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != 3) {
+            throw new IOException("Unsupported RTMP version " + version);
+        }
+        byte[] c1 = new byte[HANDSHAKE_SIZE];
+        in.readFully(c1);
+        bytesRead += 1 + HANDSHAKE_SIZE;
+
+        byte[] s1 = new byte[HANDSHAKE_SIZE];
+        new Random().nextBytes(s1);
+        // Time and zero fields; clients check neither with the simple handshake.
+        for (int i = 0; i < 8; i++) {
+            s1[i] = 0;
+        }
+        out.write(3);
+        out.write(s1);
+        out.write(c1);
+        out.flush();
+
+        in.readFully(new byte[HANDSHAKE_SIZE]);
+        bytesRead += HANDSHAKE_SIZE;
+    }
+
+    private void readChunk() throws IOException {
+        int first = in.readUnsignedByte();
+        bytesRead++;
+        int format = first >> 6;
+        int csid = first & 0x3f;
+        if (csid == 0) {
+            csid = 64 + in.readUnsignedByte();
+            bytesRead++;
+        } else if (csid == 1) {
+            csid = 64 + in.readUnsignedByte() + in.readUnsignedByte() * 256;
+            bytesRead += 2;
+        }
+
+        ChunkStream chunkStream = chunkStreams.get(csid);
+        if (chunkStream == null) {
+            if (format != 0) {
+                throw new IOException("Chunk stream " + csid + " starts with format " + format);
+            }
+            chunkStream = new ChunkStream();
+            chunkStreams.put(csid, chunkStream);
+        }
+
+        boolean newMessage = chunkStream.received == 0;
+        long timestampField = 0;
+        if (format <= 2) {
+            timestampField = readUint24();
+        }
+        if (format <= 1) {
+            chunkStream.length = readUint24();
+            chunkStream.type = in.readUnsignedByte();
+            bytesRead++;
+        }
+        if (format == 0) {
+            chunkStream.streamId = Integer.reverseBytes(in.readInt());
+            bytesRead += 4;
+        }
+        if (format <= 2) {
+            chunkStream.extended = timestampField == 0xffffff;
+        }
+        if (chunkStream.extended) {
+            timestampField = in.readInt() & 0xffffffffL;
+            bytesRead += 4;
+        }
+
+        if (format == 0) {
+            chunkStream.timestamp = timestampField;
+            chunkStream.delta = 0;
+        } else if (format <= 2) {
+            chunkStream.delta = timestampField;
+            chunkStream.timestamp += timestampField;
+        } else if (newMessage) {
+            chunkStream.timestamp += chunkStream.delta;
+        }
+
+        if (newMessage) {
+            chunkStream.body = new byte[chunkStream.length];
+        }
+        int size = Math.min(inChunkSize, chunkStream.length - chunkStream.received);
+        in.readFully(chunkStream.body, chunkStream.received, size);
+        bytesRead += size;
+        chunkStream.received += size;
+        maybeAcknowledge();
+
+        if (chunkStream.received == chunkStream.length) {
+            chunkStream.received = 0;
+            onMessage(chunkStream.type, chunkStream.timestamp, chunkStream.streamId,
+                    chunkStream.body);
+        }
+    }
+
+    private int readUint24() throws IOException {
+        bytesRead += 3;
+        return in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+    }
+
+    private void maybeAcknowledge() throws IOException {
+        if (peerWindowAckSize > 0 && bytesRead - lastAckBytes >= peerWindowAckSize) {
+            lastAckBytes = bytesRead;
+            sendMessage(CSID_CONTROL, MSG_ACK, 0, int32((int) bytesRead));
+        }
+    }
+
+    private void onMessage(int type, long timestamp, int streamId, byte[] body)
+            throws IOException {
+        switch (type) {
+            case MSG_SET_CHUNK_SIZE:
+                inChunkSize = readInt32(body) & 0x7fffffff;
+                break;
+            case MSG_WINDOW_ACK_SIZE:
+                peerWindowAckSize = readInt32(body);
+                break;
+            case MSG_ABORT:
+                chunkStreams.remove(readInt32(body));
+                break;
+            case MSG_ACK:
+            case MSG_USER_CONTROL:
+            case MSG_SET_PEER_BANDWIDTH:
+                break;
+            case MSG_AUDIO:
+            case MSG_VIDEO:
+            case MSG_DATA_AMF0:
+                if (stats != null) {
+                    stats.onTag(type, timestamp, body, body.length, System.nanoTime());
+                }
+                break;
+            case MSG_DATA_AMF3:
+                break;
+            case MSG_COMMAND_AMF3:
+                // AMF3 commands carry a leading format byte and are AMF0 after it.
+                byte[] command = new byte[body.length - 1];
+                System.arraycopy(body, 1, command, 0, command.length);
+                onCommand(streamId, command);
+                break;
+            case MSG_COMMAND_AMF0:
+                onCommand(streamId, body);
+                break;
+            default:
+                System.err.println("Ignoring RTMP message type " + type);
+        }
+    }
+
+    private void onCommand(int streamId, byte[] body) throws IOException {
+        List<Object> values = Amf0.decodeAll(body);
+        String name = (String) values.get(0);
+        double transactionId = values.size() > 1 && values.get(1) instanceof Double
+                ? (Double) values.get(1) : 0;
+
+        if ("connect".equals(name)) {
+            sendMessage(CSID_CONTROL, MSG_WINDOW_ACK_SIZE, 0, int32(WINDOW_ACK_SIZE));
+            byte[] bandwidth = new byte[5];
+            System.arraycopy(int32(WINDOW_ACK_SIZE), 0, bandwidth, 0, 4);
+            bandwidth[4] = 2;  // Dynamic.
+            sendMessage(CSID_CONTROL, MSG_SET_PEER_BANDWIDTH, 0, bandwidth);
+            sendMessage(CSID_CONTROL, MSG_SET_CHUNK_SIZE, 0, int32(SERVER_CHUNK_SIZE));
+            outChunkSize = SERVER_CHUNK_SIZE;
+
+            Map<String, Object> properties = new LinkedHashMap<String, Object>();
+            properties.put("fmsVer", "FMS/3,0,1,123");
+            properties.put("capabilities", 31);
+            Map<String, Object> information = new LinkedHashMap<String, Object>();
+            information.put("level", "status");
+            information.put("code", "NetConnection.Connect.Success");
+            information.put("description", "Connection succeeded.");
+            information.put("objectEncoding", 0);
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            Amf0.writeString(result, "_result");
+            Amf0.writeNumber(result, transactionId);
+            Amf0.writeObject(result, properties);
+            Amf0.writeObject(result, information);
+            sendMessage(CSID_COMMAND, MSG_COMMAND_AMF0, 0, result.toByteArray());
+        } else if ("createStream".equals(name)) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            Amf0.writeString(result, "_result");
+            Amf0.writeNumber(result, transactionId);
+            Amf0.writeNull(result);
+            Amf0.writeNumber(result, PUBLISH_STREAM_ID);
+            sendMessage(CSID_COMMAND, MSG_COMMAND_AMF0, 0, result.toByteArray());
+        } else if ("publish".equals(name)) {
+            streamName = values.size() > 3 ? String.valueOf(values.get(3)) : "unnamed";
+            startStats();
+
+            Map<String, Object> information = new LinkedHashMap<String, Object>();
+            information.put("level", "status");
+            information.put("code", "NetStream.Publish.Start");
+            information.put("description", "Publishing " + streamName + ".");
+            ByteArrayOutputStream status = new ByteArrayOutputStream();
+            Amf0.writeString(status, "onStatus");
+            Amf0.writeNumber(status, 0);
+            Amf0.writeNull(status);
+            Amf0.writeObject(status, information);
+            sendMessage(CSID_COMMAND, MSG_COMMAND_AMF0, streamId, status.toByteArray());
+            listener.onPublish(this);
+        } else if (transactionId != 0) {
+            // releaseStream, FCPublish and the like only need an answer.
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            Amf0.writeString(result, "_result");
+            Amf0.writeNumber(result, transactionId);
+            Amf0.writeNull(result);
+            Amf0.writeNull(result);
+            sendMessage(CSID_COMMAND, MSG_COMMAND_AMF0, 0, result.toByteArray());
+        }
+    }
+
+    private void startStats() throws IOException {
+        if (csvDirectory != null) {
+            String fileName = streamName.replaceAll("[^A-Za-z0-9._-]", "_") + "-"
+                    + System.currentTimeMillis() + ".csv";
+            csv = new PrintWriter(new FileWriter(new File(csvDirectory, fileName)));
+        }
+        stats = new IngestStats(socket.getRemoteSocketAddress() + " " + streamName, true, csv);
+    }
+
+    private void sendMessage(int csid, int type, int streamId, byte[] body) throws IOException {
+        int offset = 0;
+        do {
+            if (offset == 0) {
+                out.write(csid);
+                // Server messages carry no media, timestamp 0 throughout.
+                out.write(0);
+                out.write(0);
+                out.write(0);
+                out.write(body.length >> 16);
+                out.write(body.length >> 8);
+                out.write(body.length);
+                out.write(type);
+                out.write(int32(Integer.reverseBytes(streamId)));
+            } else {
+                out.write(0xc0 | csid);
+            }
+            int size = Math.min(outChunkSize, body.length - offset);
+            out.write(body, offset, size);
+            offset += size;
+        } while (offset < body.length);
+        out.flush();
+    }
+
+    private static byte[] int32(int value) {
+        return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8),
+                (byte) value};
+    }
+
+    private static int readInt32(byte[] body) {
+        return (body[0] & 0xff) << 24 | (body[1] & 0xff) << 16 | (body[2] & 0xff) << 8
+                | (body[3] & 0xff);
+    }
+
+    /**
+     * Reassembly state of one chunk stream.
+     */
+    private static final class ChunkStream {
+        long timestamp;
+        long delta;
+        boolean extended;
+        int length;
+        int type;
+        int streamId;
+        byte[] body;
+        int received;
+    }
+
+    interface Listener {
+        void onPublish(RtmpSession session);
+
+        /**
+         * @param stats - Figures of the published stream, or null if nothing was published.
+         */
+        void onSessionEnded(RtmpSession session, IngestStats stats);
+    }
+}